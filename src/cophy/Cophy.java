@@ -26,13 +26,21 @@
 
 package cophy;
 
+import cophy.dhsl.DHSLApproximateLikelihood;
+import cophy.dhsl.DHSLExactLikelihood;
 import cophy.dhsl.DHSLModel;
+import cophy.dhsl.DHSLMultipleTryOperator;
+import cophy.dhsl.DHSLSMCSampler;
 import cophy.dhsl.DHSLSimulator;
 import cophy.model.Reconciliation;
+import cophy.model.ReconciliationSummaryLogger;
 import cophy.model.CophylogenyLikelihood;
 import cophy.operation.CospeciationOperator;
 import cophy.operation.HostSwitchOperator;
 import cophy.operation.LeafHostSwitchOperator;
+import cophy.operation.ParticleGibbsOperator;
+import cophy.operation.SubtreeHostSwitchOperator;
+import cophy.particlefiltration.DelayedAcceptanceLikelihood;
 import dr.app.plugin.Plugin;
 import dr.xml.XMLObjectParser;
 
@@ -51,18 +59,26 @@ public class Cophy implements Plugin {
 
         // Model
         parsers.add(Reconciliation.PARSER);
+        parsers.add(ReconciliationSummaryLogger.PARSER);
 
         // Operation
         parsers.add(CospeciationOperator.PARSER);
         parsers.add(HostSwitchOperator.PARSER);
         parsers.add(LeafHostSwitchOperator.PARSER);
+        parsers.add(ParticleGibbsOperator.PARSER);
+        parsers.add(SubtreeHostSwitchOperator.PARSER);
 
         // Particle Filtration
         parsers.add(CophylogenyLikelihood.PARSER);
+        parsers.add(DelayedAcceptanceLikelihood.PARSER);
 
         // DHSL Model
         parsers.add(DHSLModel.PARSER);
         parsers.add(DHSLSimulator.PARSER);
+        parsers.add(DHSLApproximateLikelihood.PARSER);
+        parsers.add(DHSLExactLikelihood.PARSER);
+        parsers.add(DHSLMultipleTryOperator.PARSER);
+        parsers.add(DHSLSMCSampler.PARSER);
 
     }
 
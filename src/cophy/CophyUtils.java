@@ -191,6 +191,42 @@ public final class CophyUtils {
         throw new RuntimeException();
     }
 
+    /**
+     * @return {@code log(sum(exp(logValues)))}, computed without overflow
+     */
+    public static final double logSumExp(final double...logValues) {
+        double max = Double.NEGATIVE_INFINITY;
+        for (final double logValue : logValues)
+            max = Math.max(max, logValue);
+        if (max == Double.NEGATIVE_INFINITY || max == Double.POSITIVE_INFINITY)
+            return max;
+        double sum = 0.0;
+        for (final double logValue : logValues)
+            sum += Math.exp(logValue - max);
+        return max + Math.log(sum);
+    }
+
+    /**
+     * @return an index drawn in proportion to {@code exp(logWeights)}, or
+     *         {@code -1} if every weight is zero
+     */
+    public static final int nextLogWeightedInteger(final double...logWeights) {
+        final double logTotalWeight = logSumExp(logWeights);
+        if (logTotalWeight == Double.NEGATIVE_INFINITY)
+            return -1;
+        double u = MathUtils.nextDouble();
+        int last = -1;
+        for (int i = 0; i < logWeights.length; ++i) {
+            if (logWeights[i] == Double.NEGATIVE_INFINITY)
+                continue;
+            last = i;
+            u -= Math.exp(logWeights[i] - logTotalWeight);
+            if (u < 0.0)
+                return i;
+        }
+        return last;
+    }
+
     public static class RandomWeightedObject<T> {
 
         final Map<T,? extends Number> weights;
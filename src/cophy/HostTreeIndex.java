@@ -0,0 +1,240 @@
+/*
+ * HostTreeIndex.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package cophy;
+
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.MutableTreeListener;
+import dr.evolution.tree.Tree;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * An immutable, purely numeric index of the structure of a host tree: node
+ * heights, parents and the host lineages present between consecutive node
+ * heights, so that lineage lookups by height are binary searches. Indices are
+ * shared between all trees with the same structure, so chains running in the
+ * same JVM on copies of one host tree hold a single index between them, and
+ * are discarded once no tree or other holder refers to them.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public final class HostTreeIndex {
+
+    private static final Map<Tree,HostTreeIndex> treesToIndices =
+            new WeakHashMap<Tree,HostTreeIndex>();
+    private static final Set<Tree> listenedTrees =
+            Collections.newSetFromMap(new WeakHashMap<Tree,Boolean>());
+    private static final Map<String,WeakReference<HostTreeIndex>> sharedIndices =
+            new HashMap<String,WeakReference<HostTreeIndex>>();
+
+    private static final MutableTreeListener INVALIDATOR =
+            new MutableTreeListener() {
+                @Override
+                public void treeChanged(final Tree tree) {
+                    synchronized (HostTreeIndex.class) {
+                        treesToIndices.remove(tree);
+                    }
+                }
+            };
+
+    private final double[] heights;
+    private final int[] parents;
+    private final double[] intervalHeights;
+    private final int[][] intervalLineages;
+    private final double[] cumulativeLengths;
+
+    private HostTreeIndex(final double[] heights, final int[] parents) {
+
+        this.heights = heights;
+        this.parents = parents;
+
+        final double[] sorted = heights.clone();
+        Arrays.sort(sorted);
+        int count = 0;
+        for (int i = 0; i < sorted.length; ++i)
+            if (i == 0 || sorted[i] != sorted[i - 1])
+                sorted[count++] = sorted[i];
+        intervalHeights = Arrays.copyOf(sorted, count);
+
+        intervalLineages = new int[count][];
+        final int[] lineages = new int[heights.length];
+        for (int k = 0; k < count; ++k) {
+            final double height = intervalHeights[k];
+            int lineageCount = 0;
+            for (int i = 0; i < heights.length; ++i)
+                if (heights[i] <= height
+                        && (parents[i] < 0 || heights[parents[i]] > height))
+                    lineages[lineageCount++] = i;
+            intervalLineages[k] = Arrays.copyOf(lineages, lineageCount);
+        }
+
+        cumulativeLengths = new double[count];
+        for (int k = 1; k < count; ++k)
+            cumulativeLengths[k] = cumulativeLengths[k - 1]
+                    + intervalLineages[k - 1].length
+                    * (intervalHeights[k] - intervalHeights[k - 1]);
+    }
+
+    /**
+     * @return the index of {@code tree}, shared with every other tree of the
+     *         same structure
+     */
+    public static synchronized HostTreeIndex getIndex(final Tree tree) {
+
+        HostTreeIndex index = treesToIndices.get(tree);
+        if (index != null)
+            return index;
+
+        final int nodeCount = tree.getNodeCount();
+        final double[] heights = new double[nodeCount];
+        final int[] parents = new int[nodeCount];
+        final StringBuilder key = new StringBuilder();
+        for (int i = 0; i < nodeCount; ++i) {
+            heights[i] = tree.getNodeHeight(tree.getNode(i));
+            parents[i] = tree.isRoot(tree.getNode(i)) ? -1
+                    : tree.getParent(tree.getNode(i)).getNumber();
+            key.append(Double.doubleToLongBits(heights[i]))
+                    .append(':').append(parents[i]).append(';');
+        }
+
+        final WeakReference<HostTreeIndex> reference =
+                sharedIndices.get(key.toString());
+        index = reference != null ? reference.get() : null;
+        if (index == null) {
+            evictSharedIndices();
+            index = new HostTreeIndex(heights, parents);
+            sharedIndices.put(key.toString(),
+                              new WeakReference<HostTreeIndex>(index));
+        }
+
+        if (tree instanceof MutableTree && listenedTrees.add(tree))
+            ((MutableTree) tree).addMutableTreeListener(INVALIDATOR);
+        treesToIndices.put(tree, index);
+
+        return index;
+    }
+
+    private static void evictSharedIndices() {
+        final Iterator<WeakReference<HostTreeIndex>> iterator =
+                sharedIndices.values().iterator();
+        while (iterator.hasNext())
+            if (iterator.next().get() == null)
+                iterator.remove();
+    }
+
+    public int getNodeCount() {
+        return heights.length;
+    }
+
+    public double getNodeHeight(final int node) {
+        return heights[node];
+    }
+
+    /**
+     * @return the parent of {@code node}, or {@code -1} for the root
+     */
+    public int getParent(final int node) {
+        return parents[node];
+    }
+
+    public int getLineageCountAtHeight(final double height) {
+        final int k = getInterval(height);
+        return k < 0 ? 0 : intervalLineages[k].length;
+    }
+
+    /**
+     * @return the numbers of the lineages present at {@code height}; the
+     *         array is shared and must not be modified
+     */
+    public int[] getLineagesAtHeight(final double height) {
+        final int k = getInterval(height);
+        return k < 0 ? new int[0] : intervalLineages[k];
+    }
+
+    public int getIntervalCount() {
+        return intervalHeights.length;
+    }
+
+    /**
+     * @return the interval between consecutive node heights containing
+     *         {@code height}, or {@code -1} if it is below every node
+     */
+    public int getInterval(final double height) {
+        final int k = Arrays.binarySearch(intervalHeights, height);
+        return k >= 0 ? k : -k - 2;
+    }
+
+    /**
+     * @return the height at the bottom of {@code interval}
+     */
+    public double getIntervalHeight(final int interval) {
+        return intervalHeights[interval];
+    }
+
+    /**
+     * @return the total length of the host lineages below {@code height}
+     */
+    public double getCumulativeLength(final double height) {
+        final int k = getInterval(height);
+        return k < 0 ? 0.0 : cumulativeLengths[k]
+                + intervalLineages[k].length * (height - intervalHeights[k]);
+    }
+
+    /**
+     * @return the total length of the host lineages below
+     *         {@code interval}
+     */
+    public double getCumulativeLength(final int interval) {
+        return cumulativeLengths[interval];
+    }
+
+    /**
+     * @return the interval within which the total length of the host
+     *         lineages below reaches {@code length}
+     */
+    public int getIntervalAtCumulativeLength(final double length) {
+        final int k = Arrays.binarySearch(cumulativeLengths, length);
+        return Math.max(k >= 0 ? k : -k - 2, 0);
+    }
+
+    /**
+     * @return the numbers of the lineages present throughout
+     *         {@code interval}, in increasing order; the array is shared and
+     *         must not be modified
+     */
+    public int[] getIntervalLineages(final int interval) {
+        return intervalLineages[interval];
+    }
+
+}
@@ -0,0 +1,260 @@
+/*
+ * MultiChainRunner.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package cophy.app;
+
+import cophy.Cophy;
+import cophy.model.CophylogenyModel;
+import cophy.model.Reconciliation;
+import cophy.model.ReconciliationSummaryLogger;
+import dr.app.beast.BeastParser;
+import dr.evolution.tree.Tree;
+import dr.inference.model.Model;
+import dr.math.MathUtils;
+import dr.xml.ObjectStore;
+import dr.xml.XMLObjectParser;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
+import java.io.File;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Runs several independent chains of one BEAST XML file in a single JVM, one
+ * thread per chain. The file is read once. The first chain parses all of it,
+ * and every host tree of its cophylogeny models and reconciliations is then
+ * given to the other chains in place of its element, so all chains share the
+ * host trees together with their {@link cophy.HostTreeIndex} and cospeciation
+ * schedule. A host tree that is itself a {@link Model}, e.g. one whose node
+ * heights are sampled, holds chain state and is parsed separately by each
+ * chain instead, as are all other elements such as the reconciliations,
+ * guest trees and particle filters. The {@code fileName} of every logger is
+ * rewritten so that chain {@code k} logs to {@code name.k.ext}.
+ *
+ * <p>BEAST draws every random number from one process-wide generator, so
+ * concurrent chains are not reproducible. If a seed {@code s} is given, the
+ * chains are instead parsed and run one after another, chain {@code k}
+ * seeded with {@code s + k - 1}, so that each is reproducible on its own.
+ *
+ * <pre>java cophy.app.MultiChainRunner [-chains n] [-seed s] file.xml</pre>
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public final class MultiChainRunner {
+
+    private static final String ID = "id";
+    private static final String IDREF = "idref";
+    private static final String FILE_NAME = "fileName";
+    private static final Set<String> LOGGERS = new HashSet<String>(
+            Arrays.asList("log",
+                          "logTree",
+                          ReconciliationSummaryLogger.RECONCILIATION_SUMMARY_LOGGER));
+
+    private MultiChainRunner() {}
+
+    public static void main(final String[] args) throws Exception {
+
+        int chainCount = 4;
+        Long seed = null;
+        String fileName = null;
+        for (int i = 0; i < args.length; ++i) {
+            if (args[i].equals("-chains"))
+                chainCount = Integer.parseInt(args[++i]);
+            else if (args[i].equals("-seed"))
+                seed = Long.parseLong(args[++i]);
+            else
+                fileName = args[i];
+        }
+        if (fileName == null || chainCount < 1) {
+            System.err.println("Usage: MultiChainRunner [-chains n] [-seed s] file.xml");
+            System.exit(1);
+        }
+
+        final Document document = DocumentBuilderFactory.newInstance()
+                .newDocumentBuilder().parse(new File(fileName));
+        final String[] parserArgs = {fileName};
+
+        Map<String,Tree> hostTrees = Collections.emptyMap();
+        final List<Thread> threads = new ArrayList<Thread>(chainCount);
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        for (int k = 1; k <= chainCount; ++k) {
+
+            if (seed != null)
+                MathUtils.setSeed(seed + k - 1);
+
+            final ObjectStore objects = parseChain(parserArgs,
+                    createChainXML(document, k, hostTrees.keySet()),
+                    hostTrees);
+            if (k == 1)
+                hostTrees = getHostTrees(objects);
+
+            final List<Runnable> runnables = new ArrayList<Runnable>();
+            for (final Object object : objects.getObjects())
+                if (object instanceof Runnable)
+                    runnables.add((Runnable) object);
+
+            final Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        for (final Runnable runnable : runnables)
+                            runnable.run();
+                    } catch (final Throwable t) {
+                        synchronized (failures) {
+                            failures.add(t);
+                        }
+                    }
+                }
+            }, "chain" + k);
+            threads.add(thread);
+            if (seed != null) {
+                thread.start();
+                thread.join();
+            }
+        }
+
+        // Every chain is parsed before any starts, as they share host trees
+        if (seed == null) {
+            for (final Thread thread : threads)
+                thread.start();
+            for (final Thread thread : threads)
+                thread.join();
+        }
+
+        for (final Throwable t : failures)
+            t.printStackTrace();
+        if (!failures.isEmpty())
+            System.exit(1);
+    }
+
+    private static ObjectStore parseChain(final String[] parserArgs,
+                                          final String xml,
+                                          final Map<String,Tree> hostTrees)
+            throws Exception {
+
+        final BeastParser parser =
+                new BeastParser(parserArgs, null, false, true, false);
+        for (final XMLObjectParser p : new Cophy().getParsers()) {
+            try {
+                parser.addXMLObjectParser(p);
+            } catch (final IllegalArgumentException e) {
+                // Already loaded as a plugin
+            }
+        }
+        for (final Map.Entry<String,Tree> entry : hostTrees.entrySet())
+            parser.storeObject(entry.getKey(), entry.getValue());
+        return parser.parse(new StringReader(xml), false);
+    }
+
+    /**
+     * @return the host trees among {@code objects} that were parsed from an
+     *         element with an id and are not models, by id
+     */
+    private static Map<String,Tree> getHostTrees(final ObjectStore objects) {
+
+        final Set<Object> parsed = Collections.newSetFromMap(
+                new IdentityHashMap<Object,Boolean>());
+        parsed.addAll(objects.getObjects());
+
+        final Map<String,Tree> hostTrees = new HashMap<String,Tree>();
+        for (final Object object : parsed) {
+            final Tree hostTree;
+            if (object instanceof CophylogenyModel)
+                hostTree = ((CophylogenyModel) object).getHostTree();
+            else if (object instanceof Reconciliation)
+                hostTree = ((Reconciliation) object).getHostTree();
+            else
+                continue;
+            // A model changes as its chain runs, so it cannot be shared
+            if (hostTree instanceof Model)
+                continue;
+            if (hostTree.getId() != null && parsed.contains(hostTree))
+                hostTrees.put(hostTree.getId(), hostTree);
+        }
+        return hostTrees;
+    }
+
+    private static String createChainXML(final Document document,
+                                         final int k,
+                                         final Set<String> sharedIds)
+            throws Exception {
+
+        final Document chainDocument = (Document) document.cloneNode(true);
+        final NodeList elements = chainDocument.getElementsByTagName("*");
+        final List<Element> shared = new ArrayList<Element>();
+        for (int i = 0; i < elements.getLength(); ++i) {
+            final Element element = (Element) elements.item(i);
+            if (sharedIds.contains(element.getAttribute(ID)))
+                shared.add(element);
+            else if (LOGGERS.contains(element.getTagName())
+                    && element.hasAttribute(FILE_NAME))
+                element.setAttribute(FILE_NAME,
+                        getChainFileName(element.getAttribute(FILE_NAME), k));
+        }
+
+        // Refer to the shared objects instead of parsing them again
+        for (final Element element : shared) {
+            if (element.getParentNode() == chainDocument.getDocumentElement()) {
+                chainDocument.getDocumentElement().removeChild(element);
+            } else {
+                final Element reference =
+                        chainDocument.createElement(element.getTagName());
+                reference.setAttribute(IDREF, element.getAttribute(ID));
+                element.getParentNode().replaceChild(reference, element);
+            }
+        }
+
+        final StringWriter writer = new StringWriter();
+        TransformerFactory.newInstance().newTransformer()
+                .transform(new DOMSource(chainDocument), new StreamResult(writer));
+        return writer.toString();
+    }
+
+    private static String getChainFileName(final String fileName, final int k) {
+        final int dot = fileName.lastIndexOf('.');
+        final int separator = fileName.lastIndexOf(File.separatorChar);
+        if (dot > separator + 1)
+            return fileName.substring(0, dot) + "." + k + fileName.substring(dot);
+        else
+            return fileName + "." + k;
+    }
+
+}
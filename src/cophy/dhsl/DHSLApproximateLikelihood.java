@@ -0,0 +1,207 @@
+/*
+ * DHSLApproximateLikelihood.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package cophy.dhsl;
+
+import cophy.HostTreeIndex;
+import cophy.model.PFCophylogenyLikelihood;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.xml.AbstractXMLObjectParser;
+import dr.xml.ElementRule;
+import dr.xml.XMLObject;
+import dr.xml.XMLParseException;
+import dr.xml.XMLSyntaxRule;
+
+/**
+ * A cheap deterministic approximation to the DHSL likelihood of a reconciled
+ * guest tree, meant as a surrogate for screening proposals. Every observed
+ * birth contributes the birth rate and every guest branch the probability of
+ * no further events. A branch that follows its host down through host
+ * speciations pays the birth-death extinction probability of the copy left
+ * in each sister host, and a branch that ends outside the host lineage it
+ * started in pays for one host switch to a uniformly chosen host.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class DHSLApproximateLikelihood extends PFCophylogenyLikelihood {
+
+    private static final long serialVersionUID = 6114797546911208426L;
+
+    protected final DHSLModel model;
+
+    public DHSLApproximateLikelihood(final DHSLModel model,
+                                     final Tree guestTree,
+                                     final Reconciliation reconciliation) {
+        super(model, guestTree, reconciliation);
+        if (model.getEpochCount() > 1)
+            throw new RuntimeException("Epoch-varying rates are not supported.");
+        if (model.hasHostSwitchKernel())
+            throw new RuntimeException("Host-switch kernels are not supported.");
+        if (model.getHostRateMultipliers() != null)
+            throw new RuntimeException("Host rate multipliers are not supported.");
+        this.model = model;
+    }
+
+    @Override
+    protected double calculateValidLogLikelihood() {
+
+        final double birthRate = model.getBirthRate();
+        final double deathRate = model.getDeathRate();
+        final double hostSwitchRate = model.getHostSwitchRate();
+        final double originHeight = model.getOriginHeight();
+
+        double logLikelihood = 0.0;
+
+        for (int i = 0; i < guestTree.getNodeCount(); ++i) {
+
+            final NodeRef guest = guestTree.getNode(i);
+            final NodeRef host = reconciliation.getHost(guest);
+            final double height = guestTree.getNodeHeight(guest);
+
+            if (guestTree.isExternal(guest))
+                logLikelihood += Math.log(model.getSamplingProbability(host));
+            else if (!isCospeciation(guest))
+                logLikelihood += Math.log(birthRate);
+
+            final double parentHeight;
+            final NodeRef parentHost;
+            final boolean parentCospeciates;
+            if (guestTree.isRoot(guest)) {
+                parentHeight = originHeight;
+                parentHost = hostTree.getRoot();
+                parentCospeciates = false;
+            } else {
+                final NodeRef parent = guestTree.getParent(guest);
+                parentHeight = guestTree.getNodeHeight(parent);
+                parentHost = reconciliation.getHost(parent);
+                parentCospeciates = isCospeciation(parent);
+            }
+            final double length = parentHeight - height;
+
+            logLikelihood -= (birthRate + deathRate) * length;
+
+            if (isDescendant(host, parentHost)
+                    && !(parentCospeciates && host.equals(parentHost))) {
+                for (NodeRef h = host; !h.equals(parentHost); h = hostTree.getParent(h)) {
+                    final NodeRef speciation = hostTree.getParent(h);
+                    if (parentCospeciates && speciation.equals(parentHost))
+                        continue;
+                    logLikelihood += Math.log(getExtinctionProbability(
+                            hostTree.getNodeHeight(speciation),
+                            birthRate,
+                            deathRate));
+                }
+            } else {
+                final int hostCount = HostTreeIndex.getIndex(hostTree)
+                        .getLineageCountAtHeight(height);
+                logLikelihood += Math.log(-Math.expm1(-hostSwitchRate * length))
+                        - Math.log(Math.max(1, hostCount - 1));
+            }
+
+        }
+
+        return logLikelihood;
+    }
+
+    private boolean isCospeciation(final NodeRef guest) {
+        return guestTree.getNodeHeight(guest)
+                == hostTree.getNodeHeight(reconciliation.getHost(guest));
+    }
+
+    private boolean isDescendant(NodeRef host, final NodeRef ancestor) {
+        while (host != null) {
+            if (host.equals(ancestor))
+                return true;
+            host = hostTree.getParent(host);
+        }
+        return false;
+    }
+
+    /**
+     * @return the probability that a lineage of a birth-death process started
+     *         at {@code height} has no descendants at the present
+     */
+    private static double getExtinctionProbability(final double height,
+                                                   final double birthRate,
+                                                   final double deathRate) {
+        final double r = birthRate - deathRate;
+        if (r == 0.0)
+            return birthRate * height / (1 + birthRate * height);
+        final double e = Math.exp(-r * height);
+        return deathRate * (1 - e) / (birthRate - deathRate * e);
+    }
+
+    public static final AbstractXMLObjectParser PARSER =
+            new AbstractXMLObjectParser() {
+
+                private static final String DHSL_APPROXIMATE_LIKELIHOOD =
+                        "dhslApproximateLikelihood";
+
+                @Override
+                public String getParserName() {
+                    return DHSL_APPROXIMATE_LIKELIHOOD;
+                }
+
+                @Override
+                public Object parseXMLObject(final XMLObject xo)
+                        throws XMLParseException {
+
+                    final DHSLModel model =
+                            (DHSLModel) xo.getChild(DHSLModel.class);
+                    final Tree guestTree = (Tree) xo.getChild(Tree.class);
+                    final Reconciliation reconciliation =
+                            (Reconciliation) xo.getChild(Reconciliation.class);
+
+                    return new DHSLApproximateLikelihood(model,
+                                                         guestTree,
+                                                         reconciliation);
+                }
+
+                private final XMLSyntaxRule[] rules = {
+                        new ElementRule(DHSLModel.class),
+                        new ElementRule(Tree.class),
+                        new ElementRule(Reconciliation.class)
+                };
+                @Override
+                public XMLSyntaxRule[] getSyntaxRules() {
+                    return rules;
+                }
+
+                @Override
+                public String getParserDescription() {
+                    return "A cheap approximation to the DHSL likelihood.";
+                }
+
+                @Override
+                public Class<DHSLApproximateLikelihood> getReturnType() {
+                    return DHSLApproximateLikelihood.class;
+                }
+
+    };
+
+}
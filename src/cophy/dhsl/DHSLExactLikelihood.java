@@ -0,0 +1,455 @@
+/*
+ * DHSLExactLikelihood.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package cophy.dhsl;
+
+import cophy.model.PFCophylogenyLikelihood;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.xml.*;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+/**
+ * Deterministic DHSL likelihood of a reconciled guest tree, integrating the
+ * lineage-probability equations along the host tree from the present to the
+ * origin with the classical Runge-Kutta method. For every live host
+ * {@code h}, {@code E_h(t)} is the probability that a guest lineage in
+ * {@code h} at height {@code t} leaves no sampled descendants; for every
+ * guest branch and live host, {@code D_h(t)} is the probability density that
+ * the branch, if in {@code h} at height {@code t}, gives rise to exactly the
+ * observed subtree below it. With duplication, host-switch and loss rates
+ * {@code d}, {@code s}, {@code l} and {@code n} live hosts,
+ * <pre>
+ * dE_h/dt = -(d + s + l) E_h + l + d E_h^2 + s E_h E'_h
+ * dD_h/dt = -(d + s + l) D_h + 2 d E_h D_h + s (D_h E'_h + E_h D'_h)
+ * </pre>
+ * where primes denote means over the other {@code n - 1} live hosts and
+ * {@code s} is zero while there is a single host. Host speciations,
+ * cospeciations and guest births combine the solutions exactly as the
+ * particle filter of {@link DHSLSimulator} weights them, so the two estimate
+ * the same quantity. Guest tips are assumed to be sampled at the present.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class DHSLExactLikelihood extends PFCophylogenyLikelihood {
+
+    private static final long serialVersionUID = -4270968226478186011L;
+
+    protected final DHSLModel model;
+    private final int stepCount;
+
+    private final int hostNodeCount;
+    private final double[] extinction;
+    private final double[][] densities;
+    private final int[] liveHosts;
+    private final int[] liveBranches;
+    private final int[] pendingBranches;
+    private int liveHostCount;
+    private int liveBranchCount;
+    private double logScale;
+
+    private final double[][] stageE;
+    private final double[][][] stageD;
+    private final double[] startE;
+    private final double[][] startD;
+
+    /**
+     * @param stepCount the number of integration steps between the present
+     *                  and the origin
+     */
+    public DHSLExactLikelihood(final DHSLModel model,
+                               final Tree guestTree,
+                               final Reconciliation reconciliation,
+                               final int stepCount) {
+
+        super(model, guestTree, reconciliation);
+        if (model.getEpochCount() > 1)
+            throw new RuntimeException("Epoch-varying rates are not supported.");
+        if (model.hasHostSwitchKernel())
+            throw new RuntimeException("Host-switch kernels are not supported.");
+        if (model.getHostRateMultipliers() != null)
+            throw new RuntimeException("Host rate multipliers are not supported.");
+        this.model = model;
+        this.stepCount = stepCount;
+
+        hostNodeCount = hostTree.getNodeCount();
+        final int guestNodeCount = guestTree.getNodeCount();
+        extinction = new double[hostNodeCount];
+        densities = new double[guestNodeCount][hostNodeCount];
+        liveHosts = new int[hostNodeCount];
+        liveBranches = new int[guestNodeCount];
+        pendingBranches = new int[guestNodeCount];
+
+        stageE = new double[4][hostNodeCount];
+        stageD = new double[4][guestNodeCount][hostNodeCount];
+        startE = new double[hostNodeCount];
+        startD = new double[guestNodeCount][hostNodeCount];
+    }
+
+    /**
+     * @return a likelihood with the same number of integration steps as this
+     *         one of {@code guestTree} reconciled by {@code reconciliation}
+     *         under {@code model}
+     */
+    public DHSLExactLikelihood copy(final DHSLModel model,
+                                    final Tree guestTree,
+                                    final Reconciliation reconciliation) {
+        return new DHSLExactLikelihood(model,
+                                       guestTree,
+                                       reconciliation,
+                                       stepCount);
+    }
+
+    @Override
+    protected double calculateValidLogLikelihood() {
+
+        final NodeRef[] hostNodes = getNodesByHeight(hostTree);
+        final NodeRef[] guestNodes = getNodesByHeight(guestTree);
+        final double originHeight = model.getOriginHeight();
+        final double stepSize = originHeight / stepCount;
+
+        liveHostCount = 0;
+        liveBranchCount = 0;
+        logScale = 0.0;
+
+        int nextHost = 0;
+        int nextGuest = 0;
+        double height = 0.0;
+        while (true) {
+
+            final double hostHeight = nextHost < hostNodes.length
+                    ? hostTree.getNodeHeight(hostNodes[nextHost]) : Double.POSITIVE_INFINITY;
+            final double guestHeight = nextGuest < guestNodes.length
+                    ? guestTree.getNodeHeight(guestNodes[nextGuest]) : Double.POSITIVE_INFINITY;
+            final double eventHeight = Math.min(originHeight, Math.min(hostHeight, guestHeight));
+
+            if (eventHeight > height) {
+                final int steps = (int) Math.ceil((eventHeight - height) / stepSize);
+                final double h = (eventHeight - height) / steps;
+                for (int i = 0; i < steps; ++i)
+                    step(h);
+                height = eventHeight;
+                rescale();
+            }
+
+            if (eventHeight == originHeight && hostHeight > originHeight && guestHeight > originHeight)
+                break;
+
+            // Guest nodes see the hosts as they were just below this height
+            int pendingCount = 0;
+            while (nextGuest < guestNodes.length
+                    && guestTree.getNodeHeight(guestNodes[nextGuest]) == eventHeight) {
+                final NodeRef guest = guestNodes[nextGuest++];
+                if (!speciate(guest))
+                    return Double.NEGATIVE_INFINITY;
+                pendingBranches[pendingCount++] = guest.getNumber();
+            }
+
+            while (nextHost < hostNodes.length
+                    && hostTree.getNodeHeight(hostNodes[nextHost]) == eventHeight)
+                addHost(hostNodes[nextHost++]);
+
+            for (int i = 0; i < pendingCount; ++i) {
+                final int branch = pendingBranches[i];
+                if (!isLive(reconciliation.getHost(guestTree.getNode(branch)).getNumber()))
+                    return Double.NEGATIVE_INFINITY;
+                liveBranches[liveBranchCount++] = branch;
+            }
+        }
+
+        final int root = guestTree.getRoot().getNumber();
+        final double rootDensity = densities[root][hostTree.getRoot().getNumber()];
+        return rootDensity > 0.0 ? Math.log(rootDensity) + logScale : Double.NEGATIVE_INFINITY;
+    }
+
+    private void addHost(final NodeRef host) {
+
+        final int h = host.getNumber();
+        if (hostTree.isExternal(host)) {
+            extinction[h] = hostTree.getNodeHeight(host) == 0.0
+                    ? 1 - model.getSamplingProbability(host) : 1.0;
+            for (int b = 0; b < liveBranchCount; ++b)
+                densities[liveBranches[b]][h] = 0.0;
+            liveHosts[liveHostCount++] = h;
+            return;
+        }
+
+        final int left = hostTree.getChild(host, 0).getNumber();
+        final int right = hostTree.getChild(host, 1).getNumber();
+        for (int b = 0; b < liveBranchCount; ++b) {
+            final double[] d = densities[liveBranches[b]];
+            d[h] = d[left] * extinction[right] + d[right] * extinction[left];
+            d[left] = 0.0;
+            d[right] = 0.0;
+        }
+        extinction[h] = extinction[left] * extinction[right];
+        removeHost(left);
+        removeHost(right);
+        liveHosts[liveHostCount++] = h;
+    }
+
+    /**
+     * Sets the density of the branch above {@code guest} at its node, which
+     * becomes live once the hosts at the same height have been added.
+     *
+     * @return {@code false} if the guest node cannot be placed in its host
+     */
+    private boolean speciate(final NodeRef guest) {
+
+        final int g = guest.getNumber();
+        final NodeRef hostNode = reconciliation.getHost(guest);
+        final int host = hostNode.getNumber();
+        final double[] d = densities[g];
+        Arrays.fill(d, 0.0);
+
+        if (guestTree.isExternal(guest)) {
+            d[host] = model.getSamplingProbability(hostNode);
+            return true;
+        }
+
+        final int c1 = guestTree.getChild(guest, 0).getNumber();
+        final int c2 = guestTree.getChild(guest, 1).getNumber();
+        final double[] d1 = densities[c1];
+        final double[] d2 = densities[c2];
+        removeBranch(c1);
+        removeBranch(c2);
+
+        if (hostTree.getNodeHeight(hostNode) == guestTree.getNodeHeight(guest)) {
+            // Cospeciation, with each child assigned to a host child at random
+            final int left = hostTree.getChild(hostNode, 0).getNumber();
+            final int right = hostTree.getChild(hostNode, 1).getNumber();
+            d[host] = 0.5 * (d1[left] * d2[right] + d1[right] * d2[left]);
+        } else {
+            if (!isLive(host))
+                return false;
+            if (liveHostCount > 1) {
+                double switched = 0.0;
+                for (int k = 0; k < liveHostCount; ++k) {
+                    final int other = liveHosts[k];
+                    if (other != host)
+                        switched += d1[host] * d2[other] + d1[other] * d2[host];
+                }
+                d[host] = model.getDuplicationRate() * d1[host] * d2[host]
+                        + model.getHostSwitchRate() * 0.5 * switched / (liveHostCount - 1);
+            } else { // As in DHSLSimulator, every birth is then a duplication
+                d[host] = model.getBirthRate() * d1[host] * d2[host];
+            }
+        }
+
+        return true;
+    }
+
+    private void step(final double h) {
+
+        for (int k = 0; k < liveHostCount; ++k)
+            startE[liveHosts[k]] = extinction[liveHosts[k]];
+        for (int b = 0; b < liveBranchCount; ++b)
+            System.arraycopy(densities[liveBranches[b]], 0, startD[liveBranches[b]], 0, hostNodeCount);
+
+        final double[] weights = {h / 2, h / 2, h, 0.0};
+        for (int s = 0; s < 4; ++s) {
+            derivative(stageE[s], stageD[s]);
+            if (s < 3) {
+                for (int k = 0; k < liveHostCount; ++k) {
+                    final int host = liveHosts[k];
+                    extinction[host] = startE[host] + weights[s] * stageE[s][host];
+                }
+                for (int b = 0; b < liveBranchCount; ++b) {
+                    final int branch = liveBranches[b];
+                    for (int k = 0; k < liveHostCount; ++k) {
+                        final int host = liveHosts[k];
+                        densities[branch][host] = startD[branch][host]
+                                + weights[s] * stageD[s][branch][host];
+                    }
+                }
+            }
+        }
+
+        for (int k = 0; k < liveHostCount; ++k) {
+            final int host = liveHosts[k];
+            extinction[host] = startE[host] + h / 6 * (stageE[0][host]
+                    + 2 * stageE[1][host] + 2 * stageE[2][host] + stageE[3][host]);
+        }
+        for (int b = 0; b < liveBranchCount; ++b) {
+            final int branch = liveBranches[b];
+            for (int k = 0; k < liveHostCount; ++k) {
+                final int host = liveHosts[k];
+                densities[branch][host] = startD[branch][host] + h / 6
+                        * (stageD[0][branch][host] + 2 * stageD[1][branch][host]
+                           + 2 * stageD[2][branch][host] + stageD[3][branch][host]);
+            }
+        }
+    }
+
+    private void derivative(final double[] dE, final double[][] dD) {
+
+        final double duplicationRate = model.getDuplicationRate();
+        final double hostSwitchRate = liveHostCount > 1 ? model.getHostSwitchRate() : 0.0;
+        final double lossRate = model.getLossRate();
+        final double totalRate = duplicationRate + hostSwitchRate + lossRate;
+        final int others = Math.max(1, liveHostCount - 1);
+
+        double sumE = 0.0;
+        for (int k = 0; k < liveHostCount; ++k)
+            sumE += extinction[liveHosts[k]];
+
+        for (int k = 0; k < liveHostCount; ++k) {
+            final int host = liveHosts[k];
+            final double e = extinction[host];
+            final double otherE = (sumE - e) / others;
+            dE[host] = -totalRate * e + lossRate + duplicationRate * e * e
+                    + hostSwitchRate * e * otherE;
+        }
+
+        for (int b = 0; b < liveBranchCount; ++b) {
+            final int branch = liveBranches[b];
+            final double[] d = densities[branch];
+            double sumD = 0.0;
+            for (int k = 0; k < liveHostCount; ++k)
+                sumD += d[liveHosts[k]];
+            for (int k = 0; k < liveHostCount; ++k) {
+                final int host = liveHosts[k];
+                final double e = extinction[host];
+                final double otherE = (sumE - e) / others;
+                final double otherD = (sumD - d[host]) / others;
+                dD[branch][host] = -totalRate * d[host] + 2 * duplicationRate * e * d[host]
+                        + hostSwitchRate * (d[host] * otherE + e * otherD);
+            }
+        }
+    }
+
+    /**
+     * Rescales every branch density by its maximum, which the equations for
+     * {@code D} are linear in, to keep them from underflowing.
+     */
+    private void rescale() {
+        for (int b = 0; b < liveBranchCount; ++b) {
+            final double[] d = densities[liveBranches[b]];
+            double max = 0.0;
+            for (int k = 0; k < liveHostCount; ++k)
+                max = Math.max(max, d[liveHosts[k]]);
+            if (max > 0.0) {
+                for (int k = 0; k < liveHostCount; ++k)
+                    d[liveHosts[k]] /= max;
+                logScale += Math.log(max);
+            }
+        }
+    }
+
+    private boolean isLive(final int host) {
+        for (int k = 0; k < liveHostCount; ++k)
+            if (liveHosts[k] == host)
+                return true;
+        return false;
+    }
+
+    private void removeHost(final int host) {
+        for (int k = 0; k < liveHostCount; ++k) {
+            if (liveHosts[k] == host) {
+                liveHosts[k] = liveHosts[--liveHostCount];
+                return;
+            }
+        }
+    }
+
+    private void removeBranch(final int branch) {
+        for (int b = 0; b < liveBranchCount; ++b) {
+            if (liveBranches[b] == branch) {
+                liveBranches[b] = liveBranches[--liveBranchCount];
+                return;
+            }
+        }
+    }
+
+    private static NodeRef[] getNodesByHeight(final Tree tree) {
+        final NodeRef[] nodes = new NodeRef[tree.getNodeCount()];
+        for (int i = 0; i < nodes.length; ++i)
+            nodes[i] = tree.getNode(i);
+        Arrays.sort(nodes, new Comparator<NodeRef>() {
+            @Override
+            public int compare(final NodeRef a, final NodeRef b) {
+                return Double.compare(tree.getNodeHeight(a), tree.getNodeHeight(b));
+            }
+        });
+        return nodes;
+    }
+
+    public static final AbstractXMLObjectParser PARSER =
+            new AbstractXMLObjectParser() {
+
+                private static final String DHSL_EXACT_LIKELIHOOD =
+                        "dhslExactLikelihood";
+                private static final String STEP_COUNT = "stepCount";
+
+                @Override
+                public String getParserName() {
+                    return DHSL_EXACT_LIKELIHOOD;
+                }
+
+                @Override
+                public Object parseXMLObject(final XMLObject xo)
+                        throws XMLParseException {
+
+                    final DHSLModel model =
+                            (DHSLModel) xo.getChild(DHSLModel.class);
+                    final Tree guestTree = (Tree) xo.getChild(Tree.class);
+                    final Reconciliation reconciliation =
+                            (Reconciliation) xo.getChild(Reconciliation.class);
+                    final int stepCount = xo.getAttribute(STEP_COUNT, 1000);
+
+                    return new DHSLExactLikelihood(model,
+                                                   guestTree,
+                                                   reconciliation,
+                                                   stepCount);
+                }
+
+                private final XMLSyntaxRule[] rules = {
+                        new ElementRule(DHSLModel.class),
+                        new ElementRule(Tree.class),
+                        new ElementRule(Reconciliation.class),
+                        AttributeRule.newIntegerRule(STEP_COUNT, true)
+                };
+                @Override
+                public XMLSyntaxRule[] getSyntaxRules() {
+                    return rules;
+                }
+
+                @Override
+                public String getParserDescription() {
+                    return "Computes the DHSL likelihood by numerical integration.";
+                }
+
+                @Override
+                public Class<DHSLExactLikelihood> getReturnType() {
+                    return DHSLExactLikelihood.class;
+                }
+
+    };
+
+}
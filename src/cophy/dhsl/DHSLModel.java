@@ -27,6 +27,7 @@
 package cophy.dhsl;
 
 import cophy.model.CophylogenyModel;
+import cophy.HostTreeIndex;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 import dr.evolution.util.Units;
@@ -41,7 +42,28 @@ import dr.xml.XMLObject;
 import dr.xml.XMLParseException;
 import dr.xml.XMLSyntaxRule;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
+ * The duplication, host-switch, loss model. The rates derived from its
+ * parameters are kept in an immutable {@link RateSnapshot} that is rebuilt
+ * whenever a parameter changes and restored along with the parameters.
+ * <p>
+ * Given {@code K} epoch heights, the rates are piecewise constant in time:
+ * epoch {@code 0} runs from the present to the lowest height, and epoch
+ * {@code K} from the highest height to the origin. Each rate parameter then
+ * has either one value shared by all epochs or one value per epoch.
+ * <p>
+ * Host-switch destinations are uniform over the other live hosts unless a
+ * host-switch decay is given, in which case they are weighted by a
+ * {@link HostSwitchKernel} on the patristic distance to the source. Host
+ * rate multipliers, indexed by host node number, scale all event rates of
+ * the guests in each host. A single multiplier applies to duplication, host
+ * switching and loss together, so a host with elevated duplication alone, or
+ * loss alone, cannot be expressed; the particles keep only one weighted
+ * guest count.
  *
  * @author Arman D. Bilge <armanbilge@gmail.com>
  *
@@ -57,6 +79,18 @@ public class DHSLModel extends CophylogenyModel {
     protected final Parameter hostSwitchProportionParameter;
     protected final Parameter originHeightParameter;
     protected final Parameter samplingProbabilityParameter;
+    protected final Parameter epochHeightsParameter;
+    protected final Parameter hostSwitchDecayParameter;
+    protected final Parameter hostRateMultipliersParameter;
+
+    private RateSnapshot[] epochRates;
+    private RateSnapshot[] storedEpochRates;
+    private double[] breakpoints;
+    private double[] storedBreakpoints;
+    private HostSwitchKernel hostSwitchKernel = null;
+    private HostSwitchKernel storedHostSwitchKernel = null;
+    private double[] hostRateMultipliers;
+    private double[] storedHostRateMultipliers;
 
     public DHSLModel(final Tree hostTree,
                      final Parameter birthDiffRateParameter,
@@ -65,6 +99,38 @@ public class DHSLModel extends CophylogenyModel {
                      final Parameter originHeightParameter,
                      final Parameter samplingProbabilityParameter,
                      final Units.Type units) {
+        this(hostTree,
+             birthDiffRateParameter,
+             relativeDeathRateParameter,
+             hostSwitchProportionParameter,
+             originHeightParameter,
+             samplingProbabilityParameter,
+             null,
+             null,
+             null,
+             units);
+    }
+
+    /**
+     * @param epochHeightsParameter the heights at which the rates change, or
+     *                              {@code null} for constant rates
+     * @param hostSwitchDecayParameter the decay of host-switch weights with
+     *                                 patristic distance, or {@code null} for
+     *                                 uniform destinations
+     * @param hostRateMultipliersParameter the rate multiplier of each host by
+     *                                     node number, or {@code null} for
+     *                                     equal rates in all hosts
+     */
+    public DHSLModel(final Tree hostTree,
+                     final Parameter birthDiffRateParameter,
+                     final Parameter relativeDeathRateParameter,
+                     final Parameter hostSwitchProportionParameter,
+                     final Parameter originHeightParameter,
+                     final Parameter samplingProbabilityParameter,
+                     final Parameter epochHeightsParameter,
+                     final Parameter hostSwitchDecayParameter,
+                     final Parameter hostRateMultipliersParameter,
+                     final Units.Type units) {
 
         super(DHSL_MODEL, hostTree, units);
 
@@ -82,44 +148,291 @@ public class DHSLModel extends CophylogenyModel {
 
         this.samplingProbabilityParameter = samplingProbabilityParameter;
         addVariable(samplingProbabilityParameter);
+
+        this.epochHeightsParameter = epochHeightsParameter;
+        if (epochHeightsParameter != null)
+            addVariable(epochHeightsParameter);
+
+        this.hostSwitchDecayParameter = hostSwitchDecayParameter;
+        if (hostSwitchDecayParameter != null)
+            addVariable(hostSwitchDecayParameter);
+
+        this.hostRateMultipliersParameter = hostRateMultipliersParameter;
+        if (hostRateMultipliersParameter != null) {
+            if (hostRateMultipliersParameter.getDimension() != hostTree.getNodeCount())
+                throw new RuntimeException("Host rate multipliers must have dimension "
+                                           + hostTree.getNodeCount() + ".");
+            addVariable(hostRateMultipliersParameter);
+        }
+
+        final int epochCount = getEpochCount();
+        for (final Parameter parameter : new Parameter[]{birthDiffRateParameter,
+                                                         relativeDeathRateParameter,
+                                                         hostSwitchProportionParameter}) {
+            if (parameter.getDimension() != 1 && parameter.getDimension() != epochCount)
+                throw new RuntimeException("Rate parameters must have dimension 1 or "
+                                           + epochCount + ".");
+        }
+
+        updateRates();
+        updateBreakpoints();
+        updateHostRateMultipliers();
+        storedEpochRates = epochRates;
+        storedBreakpoints = breakpoints;
+        storedHostRateMultipliers = hostRateMultipliers;
+    }
+
+    private void updateHostRateMultipliers() {
+        if (hostRateMultipliersParameter == null) {
+            hostRateMultipliers = null;
+            return;
+        }
+        final double[] hostRateMultipliers = new double[hostRateMultipliersParameter.getDimension()];
+        for (int i = 0; i < hostRateMultipliers.length; ++i)
+            hostRateMultipliers[i] = hostRateMultipliersParameter.getParameterValue(i);
+        this.hostRateMultipliers = hostRateMultipliers;
+    }
+
+    private void updateRates() {
+        final RateSnapshot[] epochRates = new RateSnapshot[getEpochCount()];
+        for (int epoch = 0; epoch < epochRates.length; ++epoch)
+            epochRates[epoch] = new RateSnapshot(getEpochValue(birthDiffRateParameter, epoch),
+                                                 getEpochValue(relativeDeathRateParameter, epoch),
+                                                 getEpochValue(hostSwitchProportionParameter, epoch));
+        this.epochRates = epochRates;
+    }
+
+    private static double getEpochValue(final Parameter parameter,
+                                        final int epoch) {
+        return parameter.getParameterValue(parameter.getDimension() > 1 ? epoch : 0);
+    }
+
+    private void updateBreakpoints() {
+        if (epochHeightsParameter == null) {
+            breakpoints = NO_BREAKPOINTS;
+            return;
+        }
+        final double[] breakpoints = new double[epochHeightsParameter.getDimension()];
+        for (int i = 0; i < breakpoints.length; ++i)
+            breakpoints[i] = epochHeightsParameter.getParameterValue(i);
+        Arrays.sort(breakpoints);
+        this.breakpoints = breakpoints;
+    }
+
+    /**
+     * The rates of the model at fixed parameter values.
+     */
+    public static final class RateSnapshot {
+
+        public final double birthDiffRate;
+        public final double relativeDeathRate;
+        public final double birthRate;
+        public final double logBirthRate;
+        public final double deathRate;
+        public final double duplicationProportion;
+        public final double hostSwitchProportion;
+        public final double duplicationRate;
+        public final double hostSwitchRate;
+        public final double lossRate;
+        /**
+         * The total event rate of a guest lineage
+         */
+        public final double totalRate;
+        /**
+         * The total event rate of a guest lineage when it cannot switch
+         */
+        public final double totalRateWithoutSwitching;
+
+        RateSnapshot(final double birthDiffRate,
+                     final double relativeDeathRate,
+                     final double hostSwitchProportion) {
+            this.birthDiffRate = birthDiffRate;
+            this.relativeDeathRate = relativeDeathRate;
+            birthRate = birthDiffRate / (1 - relativeDeathRate);
+            logBirthRate = Math.log(birthRate);
+            deathRate = birthRate - birthDiffRate;
+            this.hostSwitchProportion = hostSwitchProportion;
+            duplicationProportion = 1 - hostSwitchProportion;
+            duplicationRate = birthRate * duplicationProportion;
+            hostSwitchRate = birthRate * hostSwitchProportion;
+            lossRate = deathRate;
+            totalRateWithoutSwitching = duplicationRate + lossRate;
+            totalRate = totalRateWithoutSwitching + hostSwitchRate;
+        }
+
+    }
+
+    /**
+     * @return the rates of the present-day epoch
+     */
+    public RateSnapshot getRates() {
+        return epochRates[0];
+    }
+
+    public RateSnapshot getRates(final int epoch) {
+        return epochRates[epoch];
+    }
+
+    @Override
+    public double getHostRateMultiplier(final int host) {
+        return hostRateMultipliers != null ? hostRateMultipliers[host] : 1.0;
+    }
+
+    @Override
+    public double[] getHostRateMultipliers() {
+        return hostRateMultipliers;
+    }
+
+    public boolean hasHostSwitchKernel() {
+        return hostSwitchDecayParameter != null;
+    }
+
+    /**
+     * @return the number of the destination of a host switch from
+     *         {@code source} just below {@code height}, chosen with the uniform
+     *         variate {@code u} in proportion to the host-switch kernel
+     */
+    public int getHostSwitchDestination(final double height,
+                                        final int source,
+                                        final double u) {
+        return getHostSwitchKernel().getDestination(height, source, u);
+    }
+
+    private HostSwitchKernel getHostSwitchKernel() {
+        HostSwitchKernel kernel = hostSwitchKernel;
+        if (kernel == null) {
+            kernel = new HostSwitchKernel(HostTreeIndex.getIndex(hostTree),
+                                          hostSwitchDecayParameter.getParameterValue(0));
+            hostSwitchKernel = kernel;
+        }
+        return kernel;
+    }
+
+    @Override
+    public void prepareSimulation() {
+        if (hasHostSwitchKernel())
+            getHostSwitchKernel();
+    }
+
+    public int getEpochCount() {
+        return epochHeightsParameter != null ? epochHeightsParameter.getDimension() + 1 : 1;
+    }
+
+    @Override
+    public double[] getEpochBreakpoints() {
+        return breakpoints;
+    }
+
+    /**
+     * @return a model on the same host tree with independent copies of the
+     *         parameters of this model
+     */
+    public DHSLModel copy() {
+        return new DHSLModel(hostTree,
+                             new Parameter.Default(birthDiffRateParameter.getParameterValues()),
+                             new Parameter.Default(relativeDeathRateParameter.getParameterValues()),
+                             new Parameter.Default(hostSwitchProportionParameter.getParameterValues()),
+                             new Parameter.Default(originHeightParameter.getParameterValues()),
+                             new Parameter.Default(samplingProbabilityParameter.getParameterValues()),
+                             epochHeightsParameter != null
+                                     ? new Parameter.Default(epochHeightsParameter.getParameterValues())
+                                     : null,
+                             hostSwitchDecayParameter != null
+                                     ? new Parameter.Default(hostSwitchDecayParameter.getParameterValues())
+                                     : null,
+                             hostRateMultipliersParameter != null
+                                     ? new Parameter.Default(hostRateMultipliersParameter.getParameterValues())
+                                     : null,
+                             units);
+    }
+
+    private Parameter[] getParameters() {
+        final List<Parameter> parameters = new ArrayList<Parameter>();
+        parameters.add(birthDiffRateParameter);
+        parameters.add(relativeDeathRateParameter);
+        parameters.add(hostSwitchProportionParameter);
+        parameters.add(originHeightParameter);
+        parameters.add(samplingProbabilityParameter);
+        if (epochHeightsParameter != null)
+            parameters.add(epochHeightsParameter);
+        if (hostSwitchDecayParameter != null)
+            parameters.add(hostSwitchDecayParameter);
+        if (hostRateMultipliersParameter != null)
+            parameters.add(hostRateMultipliersParameter);
+        return parameters.toArray(new Parameter[parameters.size()]);
+    }
+
+    @Override
+    public int getDimension() {
+        int dimension = 0;
+        for (final Parameter parameter : getParameters())
+            dimension += parameter.getDimension();
+        return dimension;
+    }
+
+    @Override
+    public void getParameterValues(final double[] values) {
+        int k = 0;
+        for (final Parameter parameter : getParameters())
+            for (int i = 0; i < parameter.getDimension(); ++i)
+                values[k++] = parameter.getParameterValue(i);
+    }
+
+    /**
+     * Sets all parameters of this model from {@code values}, as laid out by
+     * {@link #getParameterValues(double[])}, changing only those that differ.
+     */
+    public void setParameterValues(final double[] values) {
+        int k = 0;
+        for (final Parameter parameter : getParameters()) {
+            for (int i = 0; i < parameter.getDimension(); ++i, ++k) {
+                if (parameter.getParameterValue(i) != values[k])
+                    parameter.setParameterValue(i, values[k]);
+            }
+        }
     }
 
     public double getBirthDiffRate() {
-        return birthDiffRateParameter.getParameterValue(0);
+        return getRates().birthDiffRate;
     }
 
     public double getRelativeDeathRate() {
-        return relativeDeathRateParameter.getParameterValue(0);
+        return getRates().relativeDeathRate;
     }
 
     public double getDuplicationProportion() {
-        return 1 - getHostSwitchProportion();
+        return getRates().duplicationProportion;
     }
 
     public double getHostSwitchProportion() {
-        return hostSwitchProportionParameter.getParameterValue(0);
+        return getRates().hostSwitchProportion;
     }
 
     @Override
     public double getBirthRate() {
-        return getBirthDiffRate() / (1 - getRelativeDeathRate());
+        return getRates().birthRate;
+    }
+
+    @Override
+    public double getBirthRate(final double height) {
+        return epochRates[getEpoch(height)].birthRate;
     }
 
     @Override
     public double getDeathRate() {
-        return getBirthRate() - getBirthDiffRate();
+        return getRates().deathRate;
     }
 
     public double getDuplicationRate() {
-        return getBirthRate() * getDuplicationProportion();
+        return getRates().duplicationRate;
     }
 
     public double getHostSwitchRate() {
-        return getBirthRate() * getHostSwitchProportion();
+        return getRates().hostSwitchRate;
     }
 
     public double getLossRate() {
-        return getDeathRate();
+        return getRates().lossRate;
     }
 
     @Override
@@ -138,6 +451,8 @@ public class DHSLModel extends CophylogenyModel {
     protected void handleModelChangedEvent(final Model model,
                                            final Object object,
                                            final int index) {
+        if (model == hostTree)
+            hostSwitchKernel = null;
         fireModelChanged();
     }
 
@@ -146,17 +461,33 @@ public class DHSLModel extends CophylogenyModel {
                                               final Variable variable,
                                               final int index,
                                               final ChangeType type) {
+        if (variable == birthDiffRateParameter
+                || variable == relativeDeathRateParameter
+                || variable == hostSwitchProportionParameter)
+            updateRates();
+        else if (variable == epochHeightsParameter)
+            updateBreakpoints();
+        else if (variable == hostSwitchDecayParameter)
+            hostSwitchKernel = null;
+        else if (variable == hostRateMultipliersParameter)
+            updateHostRateMultipliers();
         fireModelChanged();
     }
 
     @Override
     protected void storeState() {
-        // Nothing to do
+        storedEpochRates = epochRates;
+        storedBreakpoints = breakpoints;
+        storedHostSwitchKernel = hostSwitchKernel;
+        storedHostRateMultipliers = hostRateMultipliers;
     }
 
     @Override
     protected void restoreState() {
-        // Nothing to do
+        epochRates = storedEpochRates;
+        breakpoints = storedBreakpoints;
+        hostSwitchKernel = storedHostSwitchKernel;
+        hostRateMultipliers = storedHostRateMultipliers;
     }
 
     @Override
@@ -176,6 +507,9 @@ public class DHSLModel extends CophylogenyModel {
                 private static final String ORIGIN_HEIGHT = "originHeight";
                 private static final String SAMPLING_PROBABILITY =
                         "samplingProbability";
+                private static final String EPOCH_HEIGHTS = "epochHeights";
+                private static final String HOST_SWITCH_DECAY = "hostSwitchDecay";
+                private static final String HOST_RATE_MULTIPLIERS = "hostRateMultipliers";
 
                 @Override
                 public String getParserName() {
@@ -202,14 +536,48 @@ public class DHSLModel extends CophylogenyModel {
                     final Parameter samplingProbabilityParameter =
                             (Parameter) xo.getChild(SAMPLING_PROBABILITY)
                             .getChild(Parameter.class);
+                    final Parameter epochHeightsParameter =
+                            xo.hasChildNamed(EPOCH_HEIGHTS)
+                            ? (Parameter) xo.getChild(EPOCH_HEIGHTS)
+                                    .getChild(Parameter.class)
+                            : null;
+                    final Parameter hostSwitchDecayParameter =
+                            xo.hasChildNamed(HOST_SWITCH_DECAY)
+                            ? (Parameter) xo.getChild(HOST_SWITCH_DECAY)
+                                    .getChild(Parameter.class)
+                            : null;
+                    final Parameter hostRateMultipliersParameter =
+                            xo.hasChildNamed(HOST_RATE_MULTIPLIERS)
+                            ? (Parameter) xo.getChild(HOST_RATE_MULTIPLIERS)
+                                    .getChild(Parameter.class)
+                            : null;
+                    if (hostRateMultipliersParameter != null
+                            && hostRateMultipliersParameter.getDimension()
+                                    != hostTree.getNodeCount())
+                        throw new XMLParseException(HOST_RATE_MULTIPLIERS
+                                + " must have one value per host node.");
                     final Units.Type units = XMLUnits.Utils.getUnitsAttr(xo);
 
+                    final int epochCount = epochHeightsParameter != null
+                            ? epochHeightsParameter.getDimension() + 1 : 1;
+                    for (final Parameter parameter : new Parameter[]{birthDiffRateParameter,
+                                                                     relativeDeathRateParameter,
+                                                                     hostSwitchProportionParameter}) {
+                        if (parameter.getDimension() != 1
+                                && parameter.getDimension() != epochCount)
+                            throw new XMLParseException("Rate parameters must have "
+                                    + "dimension 1 or " + epochCount + ".");
+                    }
+
                     return new DHSLModel(hostTree,
                                          birthDiffRateParameter,
                                          relativeDeathRateParameter,
                                          hostSwitchProportionParameter,
-                                         samplingProbabilityParameter,
                                          originHeightParameter,
+                                         samplingProbabilityParameter,
+                                         epochHeightsParameter,
+                                         hostSwitchDecayParameter,
+                                         hostRateMultipliersParameter,
                                          units);
 
                 }
@@ -221,6 +589,13 @@ public class DHSLModel extends CophylogenyModel {
                         new ElementRule(HOST_SWITCH_PROPORTION, Parameter.class),
                         new ElementRule(ORIGIN_HEIGHT, Parameter.class),
                         new ElementRule(SAMPLING_PROBABILITY, Parameter.class),
+                        new ElementRule(EPOCH_HEIGHTS, Parameter.class, "The heights "
+                                + "at which the rates change", true),
+                        new ElementRule(HOST_SWITCH_DECAY, Parameter.class, "The decay "
+                                + "of host-switch weights with patristic distance", true),
+                        new ElementRule(HOST_RATE_MULTIPLIERS, Parameter.class, "The "
+                                + "multiplier of all event rates of each host, by "
+                                + "node number", true),
                         XMLUnits.UNITS_RULE
                 };
                 @Override
@@ -0,0 +1,311 @@
+/*
+ * DHSLMultipleTryOperator.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package cophy.dhsl;
+
+import cophy.CophyUtils;
+import cophy.model.Reconciliation;
+import cophy.operation.CospeciationOperator;
+import cophy.operation.HostSwitchOperator;
+import cophy.operation.LeafHostSwitchOperator;
+import cophy.operation.SubtreeHostSwitchOperator;
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.Tree;
+import dr.inference.operators.MCMCOperator;
+import dr.inference.operators.OperatorFailedException;
+import dr.inference.operators.RandomWalkOperator;
+import dr.inference.operators.ScaleOperator;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.inference.operators.UniformOperator;
+import dr.xml.*;
+
+/**
+ * Multiple-try Metropolis wrapper around an operator on the DHSL parameters,
+ * the guest node heights or the reconciliation, such as
+ * {@link HostSwitchOperator}. Only these can be restored between tries, so
+ * the wrapped operator must be one of the host operators of Cophy or a
+ * scale, random walk or uniform operator on a parameter of the
+ * {@link DHSLModel}; a try that changes the topology of the guest tree, or a
+ * parameter operator whose move leaves the model unchanged, is an error. The
+ * wrapped operator proposes
+ * several candidates, whose cophylogeny likelihoods are computed in parallel
+ * on independent copies of the model, and one is selected in proportion to
+ * its weight {@code L(y) q(x|y) / q(y|x)}. The returned Hastings ratio
+ * completes the acceptance probability of the generalised multiple-try
+ * Metropolis algorithm of Pandolfi et al. (2010), with reference points drawn
+ * by the wrapped operator from the selected candidate. The weights must use
+ * the likelihood targeted by the chain, so the operator is restricted to the
+ * deterministic {@link DHSLExactLikelihood}: weights from fresh particle
+ * filter estimates would not match the estimate retained by the chain.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class DHSLMultipleTryOperator extends SimpleMCMCOperator {
+
+    private static final String DHSL_MULTIPLE_TRY_OPERATOR = "dhslMultipleTryOperator";
+
+    private final SimpleMCMCOperator operator;
+    private final DHSLModel model;
+    private final MutableTree guestTree;
+    private final Reconciliation reconciliation;
+    private final DHSLExactLikelihood likelihood;
+    private final int tryCount;
+    private final int threadCount;
+    private final boolean parameterOperator;
+
+    private DHSLWorkerPool workers = null;
+
+    public DHSLMultipleTryOperator(final SimpleMCMCOperator operator,
+                                   final DHSLModel model,
+                                   final MutableTree guestTree,
+                                   final Reconciliation reconciliation,
+                                   final DHSLExactLikelihood likelihood,
+                                   final int tryCount,
+                                   final int threadCount,
+                                   final double weight) {
+        this.operator = operator;
+        this.model = model;
+        this.guestTree = guestTree;
+        this.reconciliation = reconciliation;
+        this.likelihood = likelihood;
+        this.tryCount = tryCount;
+        this.threadCount = threadCount;
+        parameterOperator = !isHostOperator(operator);
+        setWeight(weight);
+    }
+
+    /**
+     * @return whether {@code operator} changes only the hosts and node
+     *         heights of the guest tree
+     */
+    private static boolean isHostOperator(final MCMCOperator operator) {
+        return operator instanceof HostSwitchOperator
+                || operator instanceof SubtreeHostSwitchOperator
+                || operator instanceof LeafHostSwitchOperator
+                || operator instanceof CospeciationOperator;
+    }
+
+    /**
+     * @return whether {@code operator} changes a single parameter
+     */
+    private static boolean isParameterOperator(final MCMCOperator operator) {
+        return operator instanceof ScaleOperator
+                || operator instanceof RandomWalkOperator
+                || operator instanceof UniformOperator;
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+        return "No performance suggestion.";
+    }
+
+    @Override
+    public String getOperatorName() {
+        return DHSL_MULTIPLE_TRY_OPERATOR + "(" + operator.getOperatorName() + ")";
+    }
+
+    @Override
+    public double doOperation() throws OperatorFailedException {
+
+        if (workers == null)
+            workers = new DHSLWorkerPool(model, guestTree, reconciliation,
+                                         likelihood, threadCount,
+                                         getOperatorName());
+
+        final DHSLState current = createState();
+
+        final DHSLState[] candidates = new DHSLState[tryCount];
+        final double[] candidateLogHRs = new double[tryCount];
+        for (int j = 0; j < tryCount; ++j) {
+            candidateLogHRs[j] = tryOperation();
+            candidates[j] = createState();
+            checkTry(current, candidates[j], candidateLogHRs[j]);
+            apply(current);
+        }
+
+        final double[] candidateLogLikelihoods = evaluate(candidates);
+        final double[] candidateLogWeights = new double[tryCount];
+        for (int j = 0; j < tryCount; ++j)
+            candidateLogWeights[j] = candidateLogLikelihoods[j] + candidateLogHRs[j];
+        final int selected = CophyUtils.nextLogWeightedInteger(candidateLogWeights);
+        if (selected < 0)
+            throw new OperatorFailedException("No valid candidates.");
+        final DHSLState proposed = candidates[selected];
+        apply(proposed);
+
+        final DHSLState[] references = new DHSLState[tryCount];
+        final double[] referenceLogHRs = new double[tryCount];
+        for (int j = 0; j < tryCount - 1; ++j) {
+            referenceLogHRs[j] = tryOperation();
+            references[j] = createState();
+            checkTry(proposed, references[j], referenceLogHRs[j]);
+            apply(proposed);
+        }
+        references[tryCount - 1] = current;
+        referenceLogHRs[tryCount - 1] = -candidateLogHRs[selected];
+
+        final double[] referenceLogLikelihoods = evaluate(references);
+        final double[] referenceLogWeights = new double[tryCount];
+        for (int j = 0; j < tryCount; ++j)
+            referenceLogWeights[j] = referenceLogLikelihoods[j] + referenceLogHRs[j];
+
+        return CophyUtils.logSumExp(candidateLogWeights) - CophyUtils.logSumExp(referenceLogWeights)
+                + referenceLogLikelihoods[tryCount - 1]
+                - candidateLogLikelihoods[selected]
+                - candidateLogHRs[selected];
+    }
+
+    private double tryOperation() {
+        try {
+            return operator.doOperation();
+        } catch (final OperatorFailedException e) {
+            return Double.NEGATIVE_INFINITY;
+        }
+    }
+
+    /**
+     * Fails if the try from {@code from} to {@code to} changed anything that
+     * cannot be restored.
+     */
+    private void checkTry(final DHSLState from,
+                          final DHSLState to,
+                          final double logHastingsRatio) {
+        if (!from.hasTopology(guestTree))
+            throw new RuntimeException(operator.getOperatorName()
+                    + " changed the topology of " + guestTree.getId()
+                    + ", which " + getOperatorName() + " cannot restore.");
+        // A parameter move that leaves the state as it was must have changed
+        // a parameter outside the model
+        if (parameterOperator
+                && logHastingsRatio > Double.NEGATIVE_INFINITY
+                && to.matches(from))
+            throw new RuntimeException(operator.getOperatorName()
+                    + " changed a parameter outside the DHSL model"
+                    + ", which " + getOperatorName() + " cannot restore.");
+    }
+
+    private DHSLState createState() {
+        return new DHSLState(model, guestTree, reconciliation);
+    }
+
+    private void apply(final DHSLState state) {
+        state.apply(model, guestTree, reconciliation);
+    }
+
+    private double[] evaluate(final DHSLState[] states)
+            throws OperatorFailedException {
+        try {
+            return workers.evaluate(states);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new OperatorFailedException("Interrupted while evaluating candidates.");
+        }
+    }
+
+    public static final AbstractXMLObjectParser PARSER =
+            new AbstractXMLObjectParser() {
+
+                private static final String GUEST = "guest";
+                private static final String TRY_COUNT = "tryCount";
+                private static final String THREAD_COUNT = "threadCount";
+
+                @Override
+                public String getParserName() {
+                    return DHSL_MULTIPLE_TRY_OPERATOR;
+                }
+
+                @Override
+                public Object parseXMLObject(final XMLObject xo)
+                        throws XMLParseException {
+
+                    final SimpleMCMCOperator operator =
+                            (SimpleMCMCOperator) xo.getChild(SimpleMCMCOperator.class);
+                    if (!isHostOperator(operator) && !isParameterOperator(operator))
+                        throw new XMLParseException(DHSL_MULTIPLE_TRY_OPERATOR
+                                + " can only wrap operators on the hosts, guest"
+                                + " node heights or DHSL parameters, not "
+                                + operator.getOperatorName() + ".");
+                    final DHSLModel model =
+                            (DHSLModel) xo.getChild(DHSLModel.class);
+                    final MutableTree guestTree =
+                            (MutableTree) xo.getChild(GUEST)
+                            .getChild(MutableTree.class);
+                    final Reconciliation reconciliation =
+                            (Reconciliation) xo.getChild(Reconciliation.class);
+                    final DHSLExactLikelihood likelihood =
+                            (DHSLExactLikelihood) xo.getChild(DHSLExactLikelihood.class);
+                    final int tryCount = xo.getIntegerAttribute(TRY_COUNT);
+                    final int threadCount =
+                            xo.getAttribute(THREAD_COUNT, tryCount);
+                    final double weight = xo.getDoubleAttribute(WEIGHT);
+
+                    if (tryCount < 1)
+                        throw new XMLParseException(TRY_COUNT + " must be positive.");
+                    if (threadCount < 1)
+                        throw new XMLParseException(THREAD_COUNT + " must be positive.");
+
+                    return new DHSLMultipleTryOperator(operator,
+                                                       model,
+                                                       guestTree,
+                                                       reconciliation,
+                                                       likelihood,
+                                                       tryCount,
+                                                       threadCount,
+                                                       weight);
+                }
+
+                private final XMLSyntaxRule[] rules = {
+                        new ElementRule(SimpleMCMCOperator.class),
+                        new ElementRule(DHSLModel.class),
+                        new ElementRule(GUEST, Tree.class),
+                        new ElementRule(Reconciliation.class),
+                        new ElementRule(DHSLExactLikelihood.class),
+                        AttributeRule.newIntegerRule(TRY_COUNT),
+                        AttributeRule.newIntegerRule(THREAD_COUNT, true),
+                        AttributeRule.newDoubleRule(WEIGHT)
+                };
+                @Override
+                public XMLSyntaxRule[] getSyntaxRules() {
+                    return rules;
+                }
+
+                @Override
+                public String getParserDescription() {
+                    return "A multiple-try Metropolis operator that evaluates"
+                            + " the candidates of another operator in parallel"
+                            + " with the exact DHSL likelihood. The operator"
+                            + " must be a host operator or a scale, random walk"
+                            + " or uniform operator on a DHSL parameter.";
+                }
+
+                @Override
+                public Class<DHSLMultipleTryOperator> getReturnType() {
+                    return DHSLMultipleTryOperator.class;
+                }
+
+    };
+
+}
@@ -0,0 +1,666 @@
+/*
+ * DHSLSMCSampler.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package cophy.dhsl;
+
+import cophy.CophyUtils;
+import cophy.model.PFCophylogenyLikelihood;
+import cophy.model.ParticlePopulation;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.Tree;
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import dr.math.distributions.Distribution;
+import dr.util.Attribute;
+import dr.xml.*;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Logger;
+
+/**
+ * An SMC^2 sampler for the DHSL parameters given a fixed guest tree and
+ * reconciliation. A population of parameter vectors, each carrying a particle
+ * filter estimate of its likelihood, is drawn from the prior and moved to the
+ * posterior through a sequence of tempered
+ * targets {@code p(theta) L(theta)^phi}, with each estimate computed by a
+ * copy of the given likelihood. Each temperature increment is chosen
+ * adaptively so that the effective sample size falls to a given fraction of
+ * the population, after which the population is resampled systematically and
+ * rejuvenated with pseudo-marginal random-walk Metropolis moves scaled to the
+ * spread of the population. The likelihood estimates are computed in
+ * parallel. The product of the mean incremental weights is an estimate of the
+ * marginal likelihood.
+ * <p>
+ * The initial population is drawn exactly if the prior is a product of
+ * {@link DistributionLikelihood}s, one for each sampled parameter. Otherwise
+ * each particle is the end of an independent Metropolis chain on the prior,
+ * run in blocks of adaptively scaled moves until the population stops
+ * drifting, so that the population and the marginal likelihood estimate are
+ * only approximate.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class DHSLSMCSampler implements Runnable {
+
+    private static final String DHSL_SMC_SAMPLER = "dhslSMCSampler";
+
+    private static final Logger LOGGER = Logger.getLogger("dr.inference");
+
+    private static final int MAX_BURN_IN_BLOCK_COUNT = 100;
+    // Drift between blocks allowed in standard errors of the population
+    private static final double MAX_DRIFT = 4.0;
+
+    private final DHSLModel model;
+    private final Tree guestTree;
+    private final Reconciliation reconciliation;
+    private final Likelihood prior;
+    private final Parameter[] parameters;
+    private final int parameterParticleCount;
+    private final PFCophylogenyLikelihood likelihood;
+    private final int moveCount;
+    private final int initialMoveCount;
+    private final int threadCount;
+    private final double essFraction;
+    private final String fileName;
+
+    private final int dimension;
+    private DHSLWorkerPool workers;
+    private double logMarginalLikelihood = Double.NaN;
+    private boolean exactPrior = false;
+
+    public DHSLSMCSampler(final DHSLModel model,
+                          final Tree guestTree,
+                          final Reconciliation reconciliation,
+                          final Likelihood prior,
+                          final Parameter[] parameters,
+                          final int parameterParticleCount,
+                          final PFCophylogenyLikelihood likelihood,
+                          final int moveCount,
+                          final int initialMoveCount,
+                          final int threadCount,
+                          final double essFraction,
+                          final String fileName) {
+
+        this.model = model;
+        this.guestTree = guestTree;
+        this.reconciliation = reconciliation;
+        this.prior = prior;
+        this.parameters = parameters;
+        this.parameterParticleCount = parameterParticleCount;
+        this.likelihood = likelihood;
+        this.moveCount = moveCount;
+        this.initialMoveCount = initialMoveCount;
+        this.threadCount = threadCount;
+        this.essFraction = essFraction;
+        this.fileName = fileName;
+
+        int dimension = 0;
+        for (final Parameter parameter : parameters)
+            dimension += parameter.getDimension();
+        this.dimension = dimension;
+    }
+
+    public double getLogMarginalLikelihood() {
+        return logMarginalLikelihood;
+    }
+
+    /**
+     * @return whether the initial population was drawn exactly from the
+     *         prior; if not, the marginal likelihood estimate is approximate
+     */
+    public boolean isPriorSampledExactly() {
+        return exactPrior;
+    }
+
+    @Override
+    public void run() {
+
+        workers = new DHSLWorkerPool(model, guestTree, reconciliation,
+                                     likelihood, threadCount,
+                                     DHSL_SMC_SAMPLER);
+
+        final double[] initialValues = getValues();
+        final double[][] values = new double[parameterParticleCount][];
+        final double[] logPriors = new double[parameterParticleCount];
+        samplePrior(values, logPriors);
+        double[] logLikelihoods = evaluate(values, logPriors);
+
+        final int[] ancestors = new int[parameterParticleCount];
+        double temperature = 0.0;
+        double logZ = 0.0;
+        int stage = 0;
+        while (temperature < 1.0) {
+
+            final double increment =
+                    nextTemperatureIncrement(logLikelihoods, 1.0 - temperature);
+            temperature = increment == 1.0 - temperature ? 1.0 : temperature + increment;
+
+            final double[] logWeights = new double[parameterParticleCount];
+            for (int i = 0; i < parameterParticleCount; ++i)
+                logWeights[i] = increment * logLikelihoods[i];
+            final double logTotalWeight = CophyUtils.logSumExp(logWeights);
+            if (logTotalWeight == Double.NEGATIVE_INFINITY)
+                throw new RuntimeException("All parameter particles have zero likelihood.");
+            logZ += logTotalWeight - Math.log(parameterParticleCount);
+
+            ParticlePopulation.resampleSystematic(logWeights,
+                                                  MathUtils.nextDouble(),
+                                                  ancestors);
+            final double[][] resampledValues = new double[parameterParticleCount][];
+            final double[] resampledLogPriors = new double[parameterParticleCount];
+            final double[] resampledLogLikelihoods = new double[parameterParticleCount];
+            for (int i = 0; i < parameterParticleCount; ++i) {
+                final int j = ancestors[i];
+                resampledValues[i] = values[j].clone();
+                resampledLogPriors[i] = logPriors[j];
+                resampledLogLikelihoods[i] = logLikelihoods[j];
+            }
+            System.arraycopy(resampledValues, 0, values, 0, parameterParticleCount);
+            System.arraycopy(resampledLogPriors, 0, logPriors, 0, parameterParticleCount);
+            logLikelihoods = resampledLogLikelihoods;
+
+            final double acceptance =
+                    rejuvenate(values, logPriors, logLikelihoods, temperature);
+
+            LOGGER.info(DHSL_SMC_SAMPLER + " stage " + ++stage
+                        + "\ttemperature " + temperature
+                        + "\tacceptance " + acceptance);
+        }
+
+        logMarginalLikelihood = logZ;
+        LOGGER.info(DHSL_SMC_SAMPLER + " log marginal likelihood "
+                    + logMarginalLikelihood
+                    + (exactPrior ? "" : " (approximate)"));
+
+        setValues(initialValues);
+
+        if (fileName != null)
+            writePopulation(values, logLikelihoods);
+    }
+
+    private double nextTemperatureIncrement(final double[] logLikelihoods,
+                                            final double maxIncrement) {
+
+        final double target = essFraction * parameterParticleCount;
+        if (getESS(logLikelihoods, maxIncrement) >= target)
+            return maxIncrement;
+
+        double lower = 0.0;
+        double upper = maxIncrement;
+        for (int k = 0; k < 50; ++k) {
+            final double middle = (lower + upper) / 2;
+            if (getESS(logLikelihoods, middle) >= target)
+                lower = middle;
+            else
+                upper = middle;
+        }
+        return lower > 0.0 ? lower : upper;
+    }
+
+    private static double getESS(final double[] logLikelihoods,
+                                 final double increment) {
+        final double[] logWeights = new double[logLikelihoods.length];
+        final double[] logSquaredWeights = new double[logLikelihoods.length];
+        for (int i = 0; i < logLikelihoods.length; ++i) {
+            logWeights[i] = increment * logLikelihoods[i];
+            logSquaredWeights[i] = 2 * logWeights[i];
+        }
+        return Math.exp(2 * CophyUtils.logSumExp(logWeights)
+                        - CophyUtils.logSumExp(logSquaredWeights));
+    }
+
+    /**
+     * Draws the parameter particles from the prior, exactly if possible and
+     * otherwise by independent Metropolis chains on the prior.
+     */
+    private void samplePrior(final double[][] values, final double[] logPriors) {
+
+        final double[] initial = getValues();
+        if (getLogPrior(initial) == Double.NEGATIVE_INFINITY)
+            throw new RuntimeException("Initial parameter values have zero prior probability.");
+
+        final Distribution[] distributions = getPriorDistributions();
+        exactPrior = distributions != null;
+        if (exactPrior) {
+            for (int i = 0; i < parameterParticleCount; ++i) {
+                values[i] = new double[dimension];
+                for (int d = 0; d < dimension; ++d)
+                    values[i][d] = distributions[d].quantile(MathUtils.nextDouble());
+                logPriors[i] = getLogPrior(values[i]);
+            }
+        } else {
+            LOGGER.warning(DHSL_SMC_SAMPLER + " cannot draw exactly from the"
+                           + " prior, so the initial population and the"
+                           + " marginal likelihood are approximate.");
+            burnInPrior(initial, values, logPriors);
+        }
+    }
+
+    /**
+     * @return the prior distribution of each sampled value, or {@code null}
+     *         unless the prior is a product of {@link DistributionLikelihood}s
+     *         that each give the sampled values they include independent
+     *         priors, with every sampled value included exactly once
+     */
+    private Distribution[] getPriorDistributions() {
+
+        final List<Likelihood> components = new ArrayList<Likelihood>();
+        addComponents(prior, components);
+
+        final Distribution[] distributions = new Distribution[dimension];
+        for (final Likelihood component : components) {
+
+            if (!(component instanceof DistributionLikelihood))
+                return null;
+            final DistributionLikelihood distributionLikelihood =
+                    (DistributionLikelihood) component;
+            final Distribution distribution =
+                    distributionLikelihood.getDistribution();
+
+            // The density must be that of the distribution alone, e.g.
+            // without an offset, for its quantiles to give exact draws
+            double logDensity = 0.0;
+            for (final Attribute<double[]> data
+                    : distributionLikelihood.getDataList()) {
+                for (final double value : data.getAttributeValue())
+                    logDensity += distribution.logPdf(value);
+                final int offset = getOffset(data);
+                if (offset < 0)
+                    continue;
+                for (int d = 0; d < data.getAttributeValue().length; ++d) {
+                    if (distributions[offset + d] != null)
+                        return null;
+                    distributions[offset + d] = distribution;
+                }
+            }
+            distributionLikelihood.makeDirty();
+            if (Math.abs(distributionLikelihood.getLogLikelihood() - logDensity)
+                    > 1e-9 * Math.max(Math.abs(logDensity), 1.0))
+                return null;
+        }
+
+        for (final Distribution distribution : distributions)
+            if (distribution == null)
+                return null;
+        return distributions;
+    }
+
+    private static void addComponents(final Likelihood likelihood,
+                                      final List<Likelihood> components) {
+        if (likelihood instanceof CompoundLikelihood) {
+            final CompoundLikelihood compound = (CompoundLikelihood) likelihood;
+            for (int i = 0; i < compound.getLikelihoodCount(); ++i)
+                addComponents(compound.getLikelihood(i), components);
+        } else {
+            components.add(likelihood);
+        }
+    }
+
+    /**
+     * @return the index of the first value of {@code data} among the sampled
+     *         values, or -1 if it is not a sampled parameter
+     */
+    private int getOffset(final Attribute<double[]> data) {
+        int offset = 0;
+        for (final Parameter parameter : parameters) {
+            if (parameter == data)
+                return offset;
+            offset += parameter.getDimension();
+        }
+        return -1;
+    }
+
+    /**
+     * Draws each parameter particle by an independent Metropolis chain on the
+     * prior started from {@code initial}. The chains run in blocks of
+     * {@code initialMoveCount} moves, scaled to the spread of the population
+     * and to the acceptance rate, until neither the mean nor the standard
+     * deviation of the population drifts by more than {@link #MAX_DRIFT}
+     * standard errors over a block.
+     */
+    private void burnInPrior(final double[] initial,
+                             final double[][] values,
+                             final double[] logPriors) {
+
+        final double initialLogPrior = getLogPrior(initial);
+        for (int i = 0; i < parameterParticleCount; ++i) {
+            values[i] = initial.clone();
+            logPriors[i] = initialLogPrior;
+        }
+
+        final double[] scales = new double[dimension];
+        for (int d = 0; d < dimension; ++d)
+            scales[d] = 0.1 * Math.max(Math.abs(initial[d]), 0.01);
+
+        final double[] means = new double[dimension];
+        final double[] sds = new double[dimension];
+        final double[] previousMeans = new double[dimension];
+        final double[] previousSds = new double[dimension];
+        double scaleFactor = 1.0;
+        for (int block = 0; block < MAX_BURN_IN_BLOCK_COUNT; ++block) {
+
+            int acceptCount = 0;
+            for (int i = 0; i < parameterParticleCount; ++i) {
+                for (int m = 0; m < initialMoveCount; ++m) {
+                    final double[] proposed = propose(values[i], scales);
+                    final double proposedLogPrior = getLogPrior(proposed);
+                    if (Math.log(MathUtils.nextDouble()) < proposedLogPrior - logPriors[i]) {
+                        values[i] = proposed;
+                        logPriors[i] = proposedLogPrior;
+                        ++acceptCount;
+                    }
+                }
+            }
+
+            System.arraycopy(means, 0, previousMeans, 0, dimension);
+            System.arraycopy(sds, 0, previousSds, 0, dimension);
+            getMoments(values, means, sds);
+
+            boolean converged = block > 0;
+            for (int d = 0; d < dimension && converged; ++d) {
+                final double standardError =
+                        sds[d] / Math.sqrt(parameterParticleCount);
+                converged = Math.abs(means[d] - previousMeans[d]) <= MAX_DRIFT * standardError
+                        && Math.abs(sds[d] - previousSds[d]) <= MAX_DRIFT * standardError;
+            }
+            final double acceptance = (double) acceptCount
+                    / (initialMoveCount * parameterParticleCount);
+            LOGGER.info(DHSL_SMC_SAMPLER + " prior burn-in block " + (block + 1)
+                        + "\tacceptance " + acceptance);
+            if (converged)
+                return;
+
+            // Aim for the acceptance rate of random-walk Metropolis
+            scaleFactor *= Math.exp(acceptance - 0.234);
+            for (int d = 0; d < dimension; ++d)
+                scales[d] = scaleFactor * 2.38 / Math.sqrt(dimension)
+                        * Math.max(sds[d], 1e-3 * Math.max(Math.abs(means[d]), 1e-3));
+        }
+
+        LOGGER.warning(DHSL_SMC_SAMPLER + " prior burn-in did not converge in "
+                       + MAX_BURN_IN_BLOCK_COUNT + " blocks.");
+    }
+
+    private void getMoments(final double[][] values,
+                            final double[] means,
+                            final double[] sds) {
+        for (int d = 0; d < dimension; ++d) {
+            double mean = 0.0;
+            double meanSquare = 0.0;
+            for (int i = 0; i < parameterParticleCount; ++i) {
+                mean += values[i][d];
+                meanSquare += values[i][d] * values[i][d];
+            }
+            mean /= parameterParticleCount;
+            meanSquare /= parameterParticleCount;
+            means[d] = mean;
+            sds[d] = Math.sqrt(Math.max(meanSquare - mean * mean, 0.0));
+        }
+    }
+
+    private double rejuvenate(final double[][] values,
+                              final double[] logPriors,
+                              final double[] logLikelihoods,
+                              final double temperature) {
+
+        final double[] means = new double[dimension];
+        final double[] sds = new double[dimension];
+        getMoments(values, means, sds);
+        final double[] scales = new double[dimension];
+        for (int d = 0; d < dimension; ++d)
+            scales[d] = 2.38 / Math.sqrt(dimension)
+                    * Math.max(sds[d], 1e-3 * Math.max(Math.abs(means[d]), 1e-3));
+
+        int acceptCount = 0;
+        for (int m = 0; m < moveCount; ++m) {
+
+            final double[][] proposed = new double[parameterParticleCount][];
+            final double[] proposedLogPriors = new double[parameterParticleCount];
+            for (int i = 0; i < parameterParticleCount; ++i) {
+                proposed[i] = propose(values[i], scales);
+                proposedLogPriors[i] = getLogPrior(proposed[i]);
+            }
+            final double[] proposedLogLikelihoods = evaluate(proposed, proposedLogPriors);
+
+            for (int i = 0; i < parameterParticleCount; ++i) {
+                if (proposedLogPriors[i] == Double.NEGATIVE_INFINITY)
+                    continue;
+                final double logRatio = proposedLogPriors[i] - logPriors[i]
+                        + temperature * (proposedLogLikelihoods[i] - logLikelihoods[i]);
+                if (Math.log(MathUtils.nextDouble()) < logRatio) {
+                    values[i] = proposed[i];
+                    logPriors[i] = proposedLogPriors[i];
+                    logLikelihoods[i] = proposedLogLikelihoods[i];
+                    ++acceptCount;
+                }
+            }
+        }
+
+        return (double) acceptCount / (moveCount * parameterParticleCount);
+    }
+
+    private double[] propose(final double[] values, final double[] scales) {
+        final double[] proposed = new double[dimension];
+        for (int d = 0; d < dimension; ++d)
+            proposed[d] = values[d] + scales[d] * MathUtils.nextGaussian();
+        return proposed;
+    }
+
+    /**
+     * @return the likelihood estimates of {@code values}, skipping (as
+     *         negative infinity) those with zero prior probability
+     */
+    private double[] evaluate(final double[][] values, final double[] logPriors) {
+
+        int count = 0;
+        for (final double logPrior : logPriors)
+            if (logPrior > Double.NEGATIVE_INFINITY)
+                ++count;
+
+        final DHSLState[] states = new DHSLState[count];
+        int k = 0;
+        for (int i = 0; i < values.length; ++i) {
+            if (logPriors[i] > Double.NEGATIVE_INFINITY) {
+                setValues(values[i]);
+                states[k++] = new DHSLState(model, guestTree, reconciliation);
+            }
+        }
+
+        final double[] results;
+        try {
+            results = workers.evaluate(states);
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while evaluating likelihoods.");
+        }
+
+        final double[] logLikelihoods = new double[values.length];
+        k = 0;
+        for (int i = 0; i < values.length; ++i)
+            logLikelihoods[i] = logPriors[i] > Double.NEGATIVE_INFINITY
+                    ? results[k++] : Double.NEGATIVE_INFINITY;
+        return logLikelihoods;
+    }
+
+    private double getLogPrior(final double[] values) {
+        setValues(values);
+        prior.makeDirty();
+        return prior.getLogLikelihood();
+    }
+
+    private double[] getValues() {
+        final double[] values = new double[dimension];
+        int k = 0;
+        for (final Parameter parameter : parameters)
+            for (int i = 0; i < parameter.getDimension(); ++i)
+                values[k++] = parameter.getParameterValue(i);
+        return values;
+    }
+
+    private void setValues(final double[] values) {
+        int k = 0;
+        for (final Parameter parameter : parameters)
+            for (int i = 0; i < parameter.getDimension(); ++i)
+                parameter.setParameterValue(i, values[k++]);
+    }
+
+    private void writePopulation(final double[][] values,
+                                 final double[] logLikelihoods) {
+
+        final PrintWriter writer;
+        try {
+            writer = new PrintWriter(new FileWriter(fileName));
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not write " + fileName + ".");
+        }
+
+        writer.print("particle");
+        for (final Parameter parameter : parameters) {
+            for (int i = 0; i < parameter.getDimension(); ++i)
+                writer.print("\t" + parameter.getId()
+                             + (parameter.getDimension() > 1 ? (i + 1) : ""));
+        }
+        writer.println("\tlogLikelihood");
+
+        for (int i = 0; i < values.length; ++i) {
+            writer.print(i);
+            for (final double value : values[i])
+                writer.print("\t" + value);
+            writer.println("\t" + logLikelihoods[i]);
+        }
+        writer.close();
+    }
+
+    public static final AbstractXMLObjectParser PARSER =
+            new AbstractXMLObjectParser() {
+
+                private static final String GUEST = "guest";
+                private static final String PRIOR = "prior";
+                private static final String PARAMETERS = "parameters";
+                private static final String PARAMETER_PARTICLE_COUNT =
+                        "parameterParticleCount";
+                private static final String MOVE_COUNT = "moveCount";
+                private static final String INITIAL_MOVE_COUNT =
+                        "initialMoveCount";
+                private static final String THREAD_COUNT = "threadCount";
+                private static final String ESS_FRACTION = "essFraction";
+                private static final String FILE_NAME = "fileName";
+
+                @Override
+                public String getParserName() {
+                    return DHSL_SMC_SAMPLER;
+                }
+
+                @Override
+                public Object parseXMLObject(final XMLObject xo)
+                        throws XMLParseException {
+
+                    final DHSLModel model =
+                            (DHSLModel) xo.getChild(DHSLModel.class);
+                    final Tree guestTree =
+                            (Tree) xo.getChild(GUEST).getChild(Tree.class);
+                    final Reconciliation reconciliation =
+                            (Reconciliation) xo.getChild(Reconciliation.class);
+                    final Likelihood prior =
+                            (Likelihood) xo.getChild(PRIOR)
+                            .getChild(Likelihood.class);
+
+                    final XMLObject cxo = xo.getChild(PARAMETERS);
+                    final Parameter[] parameters =
+                            new Parameter[cxo.getChildCount()];
+                    for (int i = 0; i < parameters.length; ++i)
+                        parameters[i] = (Parameter) cxo.getChild(i);
+
+                    final int parameterParticleCount =
+                            xo.getIntegerAttribute(PARAMETER_PARTICLE_COUNT);
+                    final PFCophylogenyLikelihood likelihood =
+                            (PFCophylogenyLikelihood) xo.getChild(PFCophylogenyLikelihood.class);
+                    final int moveCount = xo.getAttribute(MOVE_COUNT, 5);
+                    final int initialMoveCount =
+                            xo.getAttribute(INITIAL_MOVE_COUNT, 100);
+                    final int threadCount = xo.getAttribute(THREAD_COUNT,
+                            Runtime.getRuntime().availableProcessors());
+                    final double essFraction = xo.getAttribute(ESS_FRACTION, 0.5);
+                    final String fileName = xo.getAttribute(FILE_NAME, (String) null);
+
+                    if (essFraction <= 0.0 || essFraction >= 1.0)
+                        throw new XMLParseException(ESS_FRACTION + " must be in (0, 1).");
+
+                    return new DHSLSMCSampler(model,
+                                              guestTree,
+                                              reconciliation,
+                                              prior,
+                                              parameters,
+                                              parameterParticleCount,
+                                              likelihood,
+                                              moveCount,
+                                              initialMoveCount,
+                                              threadCount,
+                                              essFraction,
+                                              fileName);
+                }
+
+                private final XMLSyntaxRule[] rules = {
+                        new ElementRule(DHSLModel.class),
+                        new ElementRule(GUEST, Tree.class),
+                        new ElementRule(Reconciliation.class),
+                        new ElementRule(PFCophylogenyLikelihood.class),
+                        new ElementRule(PRIOR, Likelihood.class),
+                        new ElementRule(PARAMETERS, new XMLSyntaxRule[]{
+                                new ElementRule(Parameter.class, 1, Integer.MAX_VALUE)
+                        }),
+                        AttributeRule.newIntegerRule(PARAMETER_PARTICLE_COUNT),
+                        AttributeRule.newIntegerRule(MOVE_COUNT, true),
+                        AttributeRule.newIntegerRule(INITIAL_MOVE_COUNT, true),
+                        AttributeRule.newIntegerRule(THREAD_COUNT, true),
+                        AttributeRule.newDoubleRule(ESS_FRACTION, true),
+                        AttributeRule.newStringRule(FILE_NAME, true)
+                };
+                @Override
+                public XMLSyntaxRule[] getSyntaxRules() {
+                    return rules;
+                }
+
+                @Override
+                public String getParserDescription() {
+                    return "An SMC^2 sampler for the parameters of the DHSL model.";
+                }
+
+                @Override
+                public Class<DHSLSMCSampler> getReturnType() {
+                    return DHSLSMCSampler.class;
+                }
+
+    };
+
+}
@@ -27,7 +27,11 @@
 package cophy.dhsl;
 
 import cophy.CophyUtils;
+import cophy.HostTreeIndex;
+import cophy.dhsl.DHSLModel.RateSnapshot;
 import cophy.model.TrajectoryState;
+import cophy.particlefiltration.AntitheticUniformSource;
+import cophy.particlefiltration.UniformSource;
 import cophy.simulation.CophylogeneticEvent;
 import cophy.simulation.CophylogeneticEvent.BirthEvent;
 import cophy.simulation.CophylogeneticEvent.DeathEvent;
@@ -38,7 +42,6 @@ import dr.evolution.tree.Tree;
 import dr.math.MathUtils;
 import dr.xml.*;
 
-import java.util.HashSet;
 import java.util.Set;
 
 /**
@@ -48,8 +51,32 @@ import java.util.Set;
  */
 public class DHSLSimulator extends CophylogenySimulator<DHSLModel> {
 
+    private final boolean antithetic;
+
     public DHSLSimulator(final DHSLModel model, final boolean complete) {
+        this(model, complete, false);
+    }
+
+    /**
+     * @param antithetic whether particles are drawn in antithetic pairs with
+     *                   their early decisions stratified across the
+     *                   population, see {@link AntitheticUniformSource}
+     */
+    public DHSLSimulator(final DHSLModel model,
+                         final boolean complete,
+                         final boolean antithetic) {
         super(model, complete);
+        this.antithetic = antithetic;
+    }
+
+    @Override
+    public DHSLSimulator copy(final DHSLModel model) {
+        return new DHSLSimulator(model, isComplete(), antithetic);
+    }
+
+    @Override
+    public UniformSource createUniformSource(final int particleCount) {
+        return antithetic ? new AntitheticUniformSource(particleCount) : null;
     }
 
     @Override
@@ -59,9 +86,12 @@ public class DHSLSimulator extends CophylogenySimulator<DHSLModel> {
                                            final double until) {
 
         final Tree hostTree = getModel().getHostTree();
-        final double duplicationRate = getModel().getDuplicationRate();
-        final double hostSwitchRate = getModel().getHostSwitchRate();
-        final double lossRate = getModel().getLossRate();
+        final int segment = getSegment(height);
+        final RateSnapshot rates = getModel().getRates(getSegmentEpoch(segment));
+        final double multiplier = getModel().getHostRateMultiplier(hostNode.getNumber());
+        final double duplicationRate = multiplier * rates.duplicationRate;
+        final double hostSwitchRate = multiplier * rates.hostSwitchRate;
+        final double lossRate = multiplier * rates.lossRate;
 
         guestNode.setAttribute(HOST, hostNode);
 
@@ -85,7 +115,14 @@ public class DHSLSimulator extends CophylogenySimulator<DHSLModel> {
         NodeRef leftHost = null;
         NodeRef rightHost = null;
         final double hostHeight = hostTree.getNodeHeight(hostNode);
-        if (hostHeight > height) {
+        final double floor = getSegmentFloor(segment);
+        if (floor > height && floor > hostHeight && floor > until) {
+
+            // Rates may change at the end of the segment, so the waiting
+            // time is drawn afresh from there
+            return simulateSubtree(guestNode, hostNode, floor, until);
+
+        } else if (hostHeight > height) {
 
             height = hostHeight;
             if (hostTree.isExternal(hostNode)) {
@@ -113,10 +150,17 @@ public class DHSLSimulator extends CophylogenySimulator<DHSLModel> {
                 final NodeRef[] hosts = new NodeRef[2];
 
                 hosts[0] = hostNode;
-                final Set<NodeRef> potentialHosts =
-                        CophyUtils.getLineagesAtHeight(hostTree, height);
-                potentialHosts.remove(hostNode);
-                hosts[1]  = CophyUtils.getRandomElement(potentialHosts);
+                if (getModel().hasHostSwitchKernel()) {
+                    hosts[1] = hostTree.getNode(getModel()
+                            .getHostSwitchDestination(height,
+                                                      hostNode.getNumber(),
+                                                      MathUtils.nextDouble()));
+                } else {
+                    final Set<NodeRef> potentialHosts =
+                            CophyUtils.getLineagesAtHeight(hostTree, height);
+                    potentialHosts.remove(hostNode);
+                    hosts[1]  = CophyUtils.getRandomElement(potentialHosts);
+                }
 
                 final int r = MathUtils.nextInt(2);
                 leftHost = hosts[r];
@@ -168,11 +212,12 @@ public class DHSLSimulator extends CophylogenySimulator<DHSLModel> {
         final NodeRef host = (NodeRef) flexibleNode.getAttribute(HOST);
 
         final int nextEventType;
-        if (CophyUtils.getLineageCountAtHeight(hostTree, height) > 1) {
+        final RateSnapshot rates = model.getRates(model.getEpoch(height));
+        if (HostTreeIndex.getIndex(hostTree).getLineageCountAtHeight(height) > 1) {
 
             nextEventType = CophyUtils
-                    .nextWeightedInteger(model.getDuplicationProportion(),
-                                         model.getHostSwitchProportion());
+                    .nextWeightedInteger(rates.duplicationProportion,
+                                         rates.hostSwitchProportion);
 
         } else { // No host-switching possible
 
@@ -191,12 +236,20 @@ public class DHSLSimulator extends CophylogenySimulator<DHSLModel> {
             child2.setAttribute(HOST, host);
             break;
         case 1: // Host-switch event
-            final Set<NodeRef> potentialHosts =
-                    CophyUtils.getLineagesAtHeight(hostTree, height);
-            potentialHosts.remove(host);
-            final NodeRef newHost =
-                    CophyUtils.getRandomElement(potentialHosts);
+            final NodeRef newHost;
+            if (model.hasHostSwitchKernel()) {
+                newHost = hostTree.getNode(model
+                        .getHostSwitchDestination(height,
+                                                  host.getNumber(),
+                                                  MathUtils.nextDouble()));
+            } else {
+                final Set<NodeRef> potentialHosts =
+                        CophyUtils.getLineagesAtHeight(hostTree, height);
+                potentialHosts.remove(host);
+                newHost = CophyUtils.getRandomElement(potentialHosts);
+            }
             child2.setAttribute(HOST, newHost);
+            break;
         default: // Should not be needed
             throw new RuntimeException("Undefined event.");
         }
@@ -213,68 +266,57 @@ public class DHSLSimulator extends CophylogenySimulator<DHSLModel> {
         flexibleNode.insertChild(left, 0);
         flexibleNode.insertChild(right, 1);
 
-        return model.getBirthRate();
+        return rates.logBirthRate
+                + Math.log(model.getHostRateMultiplier(host.getNumber()));
 
     }
 
 
     @Override
-    protected CophylogeneticEvent nextEvent(final TrajectoryState state) {
+    protected CophylogeneticEvent nextEvent(final TrajectoryState state,
+                                            final int epoch) {
 
         final DHSLModel model = getModel();
-        final int guestCount = state.getGuestCount();
-        final double normalizedDuplicationRate = guestCount * model.getDuplicationRate();
-        final double normalizedHostSwitchRate = guestCount * model.getHostSwitchRate();
-        final double normalizedLossRate = guestCount * model.getLossRate();
-        final double nextEventHeight;
+        final RateSnapshot rates = model.getRates(epoch);
+        final UniformSource uniforms = state.getUniformSource();
+        final double guestCount = state.getWeightedGuestCount();
+        final double waitingTime;
+        final int nextEventType;
 
         if (state.getHostCount() > 1) {
 
-            nextEventHeight = CophyUtils
-                    .nextPoissonTime(normalizedDuplicationRate,
-                            normalizedLossRate,
-                            normalizedHostSwitchRate);
+            waitingTime = uniforms
+                    .nextPoissonTime(guestCount * rates.totalRate);
+            nextEventType = uniforms
+                    .nextWeightedInteger(rates.duplicationRate,
+                            rates.lossRate,
+                            rates.hostSwitchRate);
 
         } else { // No host-switching possible
 
-            nextEventHeight = CophyUtils
-                    .nextPoissonTime(normalizedDuplicationRate,
-                            normalizedLossRate);
+            waitingTime = uniforms
+                    .nextPoissonTime(guestCount * rates.totalRateWithoutSwitching);
+            nextEventType = uniforms
+                    .nextWeightedInteger(rates.duplicationRate,
+                            rates.lossRate);
 
         }
 
-        final int nextEventType;
-        if (state.getHostCount() > 1) {
-
-            nextEventType = CophyUtils
-                    .nextWeightedInteger(normalizedDuplicationRate,
-                            normalizedLossRate,
-                            normalizedHostSwitchRate);
-
-        } else { // No host-switching possible
-
-            nextEventType = CophyUtils
-                    .nextWeightedInteger(normalizedDuplicationRate,
-                            normalizedLossRate);
-
-        }
-
-        final NodeRef host = CophyUtils.nextWeightedObject(state.getGuestCounts());
+        final Tree hostTree = model.getHostTree();
+        final NodeRef host = hostTree.getNode(state.getHostOfWeightedGuest(uniforms.nextDouble()));
 
         final CophylogeneticEvent nextEvent;
 
         switch(nextEventType) {
             case 0: // Duplication event
-                nextEvent = new DuplicationEvent(nextEventHeight, host);
+                nextEvent = new DuplicationEvent(waitingTime, host);
                 break;
             case 1: // Loss event
-                nextEvent = new LossEvent(nextEventHeight, host);
+                nextEvent = new LossEvent(waitingTime, host);
                 break;
             case 2: // Host-switch event
-                final Set<NodeRef> potentialHosts = new HashSet<NodeRef>(state.getHosts());
-                potentialHosts.remove(host);
-                final NodeRef newHost = CophyUtils.getRandomElement(potentialHosts);
-                nextEvent = new HostSwitchEvent(nextEventHeight, host, newHost);
+                final NodeRef newHost = nextHostSwitchDestination(state, host);
+                nextEvent = new HostSwitchEvent(waitingTime, host, newHost);
                 break;
             default: // Should not be needed
                 throw new RuntimeException("Undefined event.");
@@ -290,13 +332,14 @@ public class DHSLSimulator extends CophylogenySimulator<DHSLModel> {
                                           final NodeRef host) {
 
         final DHSLModel model = getModel();
+        final RateSnapshot rates = model.getRates(model.getEpoch(eventHeight));
 
         final int nextEventType;
         if (state.getHostCount() > 1) {
 
-            nextEventType = CophyUtils
-                    .nextWeightedInteger(model.getDuplicationProportion(),
-                                         model.getHostSwitchProportion());
+            nextEventType = state.getUniformSource()
+                    .nextWeightedInteger(rates.duplicationProportion,
+                                         rates.hostSwitchProportion);
 
         } else { // No host-switching possible
 
@@ -304,42 +347,60 @@ public class DHSLSimulator extends CophylogenySimulator<DHSLModel> {
 
         }
 
+        // The event happens at the current height of the trajectory
+        final double waitingTime = state.getHeight() - eventHeight;
         switch(nextEventType) {
         case 0: // Duplication event
-            return new DuplicationEvent(eventHeight, host);
+            return new DuplicationEvent(waitingTime, host);
         case 1: // Host-switch event
-            final Set<NodeRef> potentialHosts =
-                    new HashSet<NodeRef>(state.getHosts());
-            potentialHosts.remove(host);
-            final NodeRef newHost =
-                    CophyUtils.getRandomElement(potentialHosts);
-            return new HostSwitchEvent(eventHeight, host, newHost);
+            final NodeRef newHost = nextHostSwitchDestination(state, host);
+            return new HostSwitchEvent(waitingTime, host, newHost);
         default: // Should not be needed
             throw new RuntimeException("Undefined event.");
         }
     }
 
+    private NodeRef nextHostSwitchDestination(final TrajectoryState state,
+                                              final NodeRef source) {
+
+        final DHSLModel model = getModel();
+        // The lineages just below the current height are those present until
+        // the end of the segment, even straight after a cospeciation
+        if (model.hasHostSwitchKernel())
+            return model.getHostTree().getNode(model
+                    .getHostSwitchDestination(state.getHeight(),
+                                              source.getNumber(),
+                                              state.getUniformSource().nextDouble()));
+
+        // Uniform over the live hosts other than the source
+        final int hostCount = state.getHostCount();
+        int destination = state.getHost(state.getUniformSource().nextInt(hostCount - 1));
+        if (destination == source.getNumber())
+            destination = state.getHost(hostCount - 1);
+        return model.getHostTree().getNode(destination);
+    }
+
     protected static class DuplicationEvent extends BirthEvent {
         private static final String DUPLICATION_EVENT = "duplicationEvent";
-        public DuplicationEvent(final double height,
+        public DuplicationEvent(final double waitingTime,
                                 final NodeRef host) {
-            super(DUPLICATION_EVENT, height, host, host);
+            super(DUPLICATION_EVENT, waitingTime, host, host);
         }
     }
 
     protected static class HostSwitchEvent extends BirthEvent {
         private static final String HOST_SWITCH_EVENT = "hostSwitchEvent";
-        public HostSwitchEvent(final double height,
+        public HostSwitchEvent(final double waitingTime,
                                final NodeRef sourceHost,
                                final NodeRef destinationHost) {
-            super(HOST_SWITCH_EVENT, height, sourceHost, destinationHost);
+            super(HOST_SWITCH_EVENT, waitingTime, sourceHost, destinationHost);
         }
     }
 
     protected static class LossEvent extends DeathEvent {
         private static final String LOSS_EVENT = "lossEvent";
-        public LossEvent(final double height, final NodeRef host) {
-            super(LOSS_EVENT, height, host);
+        public LossEvent(final double waitingTime, final NodeRef host) {
+            super(LOSS_EVENT, waitingTime, host);
         }
     }
 
@@ -348,6 +409,7 @@ public class DHSLSimulator extends CophylogenySimulator<DHSLModel> {
 
                 private static final String DHSL_SIMULATOR = "dhslSimulator";
                 private static final String COMPLETE_HISTORY = "completeHistory";
+                private static final String ANTITHETIC = "antithetic";
 
                 @Override
                 public String getParserName() {
@@ -362,14 +424,17 @@ public class DHSLSimulator extends CophylogenySimulator<DHSLModel> {
                             (DHSLModel) xo.getChild(DHSLModel.class);
                     final boolean complete =
                             xo.getBooleanAttribute(COMPLETE_HISTORY);
+                    final boolean antithetic =
+                            xo.getAttribute(ANTITHETIC, false);
 
-                    return new DHSLSimulator(model, complete);
+                    return new DHSLSimulator(model, complete, antithetic);
 
                 }
 
                 private final XMLSyntaxRule[] rules = {
                         new ElementRule(DHSLModel.class),
-                        AttributeRule.newBooleanRule(COMPLETE_HISTORY)
+                        AttributeRule.newBooleanRule(COMPLETE_HISTORY),
+                        AttributeRule.newBooleanRule(ANTITHETIC, true)
                 };
                 @Override
                 public XMLSyntaxRule[] getSyntaxRules() {
@@ -0,0 +1,109 @@
+/*
+ * DHSLState.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package cophy.dhsl;
+
+import cophy.model.Reconciliation;
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+
+import java.util.Arrays;
+
+/**
+ * A snapshot of the DHSL parameters, guest tree and hosts of a state. Only
+ * the node heights of the guest tree can be restored; its topology is kept to
+ * detect states that cannot.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+final class DHSLState {
+
+    final double[] parameters;
+    final double[] heights;
+    final int[] parents;
+    final int[] hosts;
+
+    DHSLState(final DHSLModel model,
+              final Tree guestTree,
+              final Reconciliation reconciliation) {
+        parameters = new double[model.getDimension()];
+        model.getParameterValues(parameters);
+        heights = new double[guestTree.getNodeCount()];
+        for (int i = 0; i < heights.length; ++i)
+            heights[i] = guestTree.getNodeHeight(guestTree.getNode(i));
+        parents = new int[guestTree.getNodeCount()];
+        for (int i = 0; i < parents.length; ++i)
+            parents[i] = getParent(guestTree, i);
+        hosts = reconciliation.getHostNumbers();
+    }
+
+    private static int getParent(final Tree guestTree, final int i) {
+        final NodeRef node = guestTree.getNode(i);
+        return guestTree.isRoot(node) ? -1
+                : guestTree.getParent(node).getNumber();
+    }
+
+    /**
+     * @return whether {@code guestTree} has the topology of this state
+     */
+    boolean hasTopology(final Tree guestTree) {
+        for (int i = 0; i < parents.length; ++i)
+            if (getParent(guestTree, i) != parents[i])
+                return false;
+        return true;
+    }
+
+    /**
+     * @return whether {@code state} has the same parameters, guest tree and
+     *         hosts as this state
+     */
+    boolean matches(final DHSLState state) {
+        return Arrays.equals(parameters, state.parameters)
+                && Arrays.equals(heights, state.heights)
+                && Arrays.equals(parents, state.parents)
+                && Arrays.equals(hosts, state.hosts);
+    }
+
+    /**
+     * Restores this state, changing only the heights that differ.
+     */
+    void apply(final DHSLModel model,
+               final MutableTree guestTree,
+               final Reconciliation reconciliation) {
+        if (!hasTopology(guestTree))
+            throw new RuntimeException("Cannot restore the topology of "
+                                       + guestTree.getId() + ".");
+        model.setParameterValues(parameters);
+        for (int i = 0; i < heights.length; ++i) {
+            final NodeRef node = guestTree.getNode(i);
+            if (guestTree.getNodeHeight(node) != heights[i])
+                guestTree.setNodeHeight(node, heights[i]);
+        }
+        reconciliation.setHostNumbers(hosts);
+    }
+
+}
@@ -0,0 +1,168 @@
+/*
+ * DHSLWorkerPool.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package cophy.dhsl;
+
+import cophy.model.CophylogenyLikelihood;
+import cophy.model.PFCophylogenyLikelihood;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.Tree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * A fixed pool of threads, each owning an independent copy of a DHSL model,
+ * guest tree, reconciliation and likelihood, for computing the likelihoods
+ * of many {@link DHSLState}s in parallel. The likelihood of each copy is
+ * configured as the given {@link DHSLExactLikelihood}, or as the given
+ * {@link CophylogenyLikelihood} and its {@link DHSLSimulator}. The copies are
+ * taken again whenever the states to evaluate have a different guest tree
+ * topology, which must then be that of the given guest tree.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+final class DHSLWorkerPool {
+
+    private final ExecutorService executor;
+    private final BlockingQueue<Worker> workers;
+
+    DHSLWorkerPool(final DHSLModel model,
+                   final Tree guestTree,
+                   final Reconciliation reconciliation,
+                   final PFCophylogenyLikelihood likelihood,
+                   final int threadCount,
+                   final String name) {
+
+        executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+            @Override
+            public Thread newThread(final Runnable runnable) {
+                final Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        workers = new ArrayBlockingQueue<Worker>(threadCount);
+        for (int i = 0; i < threadCount; ++i)
+            workers.add(new Worker(model, guestTree, reconciliation, likelihood));
+    }
+
+    /**
+     * @return the estimated log likelihood of each of {@code states}
+     */
+    double[] evaluate(final DHSLState[] states) throws InterruptedException {
+
+        final List<Callable<Double>> tasks = new ArrayList<Callable<Double>>(states.length);
+        for (final DHSLState state : states) {
+            tasks.add(new Callable<Double>() {
+                @Override
+                public Double call() throws InterruptedException {
+                    final Worker worker = workers.take();
+                    try {
+                        return worker.evaluate(state);
+                    } finally {
+                        workers.put(worker);
+                    }
+                }
+            });
+        }
+
+        final double[] logLikelihoods = new double[states.length];
+        final List<Future<Double>> results = executor.invokeAll(tasks);
+        try {
+            for (int j = 0; j < logLikelihoods.length; ++j)
+                logLikelihoods[j] = results.get(j).get();
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+        return logLikelihoods;
+    }
+
+    private static final class Worker {
+
+        final DHSLModel sourceModel;
+        final Tree sourceGuestTree;
+        final Reconciliation sourceReconciliation;
+        final PFCophylogenyLikelihood sourceLikelihood;
+
+        DHSLModel model;
+        FlexibleTree guestTree;
+        Reconciliation reconciliation;
+        PFCophylogenyLikelihood likelihood;
+
+        Worker(final DHSLModel model,
+               final Tree guestTree,
+               final Reconciliation reconciliation,
+               final PFCophylogenyLikelihood likelihood) {
+            sourceModel = model;
+            sourceGuestTree = guestTree;
+            sourceReconciliation = reconciliation;
+            sourceLikelihood = likelihood;
+            copy();
+        }
+
+        /**
+         * Copies the model, guest tree, reconciliation and likelihood, e.g.
+         * after another operator has changed the topology of the guest tree.
+         */
+        private void copy() {
+            model = sourceModel.copy();
+            guestTree = new FlexibleTree(sourceGuestTree);
+            reconciliation = new Reconciliation(guestTree, sourceReconciliation);
+            if (sourceLikelihood instanceof DHSLExactLikelihood) {
+                likelihood = ((DHSLExactLikelihood) sourceLikelihood)
+                        .copy(model, guestTree, reconciliation);
+            } else if (sourceLikelihood instanceof CophylogenyLikelihood) {
+                final CophylogenyLikelihood filter =
+                        (CophylogenyLikelihood) sourceLikelihood;
+                final DHSLSimulator simulator =
+                        ((DHSLSimulator) filter.getSimulator()).copy(model);
+                likelihood = filter.copy(simulator, guestTree, reconciliation);
+            } else {
+                throw new RuntimeException("Likelihood " + sourceLikelihood.getId()
+                                           + " cannot be copied.");
+            }
+        }
+
+        double evaluate(final DHSLState state) {
+            if (!state.hasTopology(guestTree))
+                copy();
+            state.apply(model, guestTree, reconciliation);
+            return likelihood.calculateLogLikelihood();
+        }
+
+    }
+
+}
@@ -0,0 +1,127 @@
+/*
+ * HostSwitchKernel.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.dhsl;
+
+import cophy.HostTreeIndex;
+
+import java.util.Arrays;
+
+/**
+ * Host-switch destinations weighted by {@code exp(-decay * d)}, where
+ * {@code d} is the patristic distance between the source and destination
+ * lineages at the height of the switch. As {@code d = 2 (h - t)} for the
+ * height {@code h} of their common ancestor and the switch height
+ * {@code t}, the normalised weights do not depend on {@code t} between
+ * consecutive host node heights. Each such interval therefore holds one
+ * cumulative table per source lineage, built once from the matrix of common
+ * ancestor heights, and every draw is a binary search. Instances are
+ * immutable.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+final class HostSwitchKernel {
+
+    private final HostTreeIndex index;
+    private final double[][][] cumulativeWeights;
+
+    HostSwitchKernel(final HostTreeIndex index, final double decay) {
+
+        this.index = index;
+
+        final int nodeCount = index.getNodeCount();
+        final double[][] ancestorHeights = new double[nodeCount][nodeCount];
+        final boolean[] isAncestor = new boolean[nodeCount];
+        for (int a = 0; a < nodeCount; ++a) {
+            Arrays.fill(isAncestor, false);
+            for (int node = a; node >= 0; node = index.getParent(node))
+                isAncestor[node] = true;
+            for (int b = 0; b < nodeCount; ++b) {
+                int node = b;
+                while (!isAncestor[node])
+                    node = index.getParent(node);
+                ancestorHeights[a][b] = index.getNodeHeight(node);
+            }
+        }
+
+        cumulativeWeights = new double[index.getIntervalCount()][][];
+        for (int k = 0; k < cumulativeWeights.length; ++k) {
+            final int[] lineages = index.getIntervalLineages(k);
+            cumulativeWeights[k] = new double[lineages.length][lineages.length];
+            for (int i = 0; i < lineages.length; ++i) {
+                final double[] ancestorHeightsOfSource = ancestorHeights[lineages[i]];
+                // Distances are taken relative to the nearest destination,
+                // so that the weights cannot all underflow to zero
+                double nearest = Double.POSITIVE_INFINITY;
+                for (int j = 0; j < lineages.length; ++j)
+                    if (j != i)
+                        nearest = Math.min(nearest, ancestorHeightsOfSource[lineages[j]]);
+                final double[] cumulative = cumulativeWeights[k][i];
+                double total = 0.0;
+                for (int j = 0; j < lineages.length; ++j) {
+                    if (j != i) {
+                        final double distance = 2 * (ancestorHeightsOfSource[lineages[j]] - nearest);
+                        total += Math.exp(-decay * distance);
+                    }
+                    cumulative[j] = total;
+                }
+            }
+        }
+    }
+
+    /**
+     * @param u a uniform variate on {@code [0, 1)}
+     * @return the number of the destination of a switch from host
+     *         {@code source} just below {@code height}, so that a switch at
+     *         the height of a cospeciation is among its children
+     */
+    int getDestination(final double height, final int source, final double u) {
+
+        int k = index.getInterval(height);
+        if (k >= 0 && index.getIntervalHeight(k) == height)
+            --k;
+        final int[] lineages = k >= 0 ? index.getIntervalLineages(k) : new int[0];
+        final int i = Arrays.binarySearch(lineages, source);
+        if (i < 0 || lineages.length < 2)
+            throw new RuntimeException("Cannot switch from host " + source
+                                       + " at height " + height + ".");
+
+        final double[] cumulative = cumulativeWeights[k][i];
+        final double target = u * cumulative[cumulative.length - 1];
+        int low = 0;
+        int high = cumulative.length - 1;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (cumulative[middle] > target)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+        return lineages[low];
+    }
+
+}
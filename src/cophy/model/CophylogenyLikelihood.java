@@ -26,11 +26,17 @@
 
 package cophy.model;
 
-import cophy.particlefiltration.Particle;
+import cophy.particlefiltration.ParticleStorage;
+import cophy.particlefiltration.RQMCUniformSource;
+import cophy.particlefiltration.SeededUniformSource;
+import cophy.particlefiltration.UniformSource;
 import cophy.simulation.CophylogenySimulator;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
+import dr.evolution.tree.TreeTrait;
+import dr.evolution.tree.TreeTraitProvider;
 import dr.inference.model.Model;
+import dr.math.MathUtils;
 import dr.xml.AbstractXMLObjectParser;
 import dr.xml.AttributeRule;
 import dr.xml.ElementRule;
@@ -38,51 +44,363 @@ import dr.xml.XMLObject;
 import dr.xml.XMLParseException;
 import dr.xml.XMLSyntaxRule;
 
+import java.util.ArrayList;
 import java.util.HashSet;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 import java.util.NavigableMap;
-import java.util.Queue;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 /**
+ * Particle filter estimate of the cophylogenetic likelihood. If a screening
+ * particle count is given, each proposal is first screened with a filter of
+ * that size as the first stage of a delayed acceptance scheme: it survives
+ * with probability {@code min(1, exp(beta * (l'_s - l_s)))}, where
+ * {@code l_s} is the stored screening estimate of the current state and
+ * {@code beta} is the screening temperature. The reported log likelihood is
+ * then the full estimate less {@code beta * l'_s}.
+ * <p>
+ * In randomised quasi-Monte Carlo mode the draws of the particles come from
+ * a shared {@link RQMCUniformSource}, rotated afresh between speciations, as
+ * in sequential quasi-Monte Carlo. Survivors are sorted by host signature
+ * and resampled with stratified uniforms, so that particle {@code i} of each
+ * generation, which uses point {@code i}, sits next to particles in similar
+ * states.
+ * <p>
+ * If a rejuvenation count is given, the diversity lost in each resampling
+ * step is restored with that many Metropolis-Hastings moves per particle
+ * that re-simulate its trajectory since the previous speciation; the moves
+ * run in parallel across the particles.
  *
  * @author Arman D. Bilge <armanbilge@gmail.com>
  *
  */
-public class CophylogenyLikelihood extends PFCophylogenyLikelihood {
+public class CophylogenyLikelihood extends PFCophylogenyLikelihood
+        implements TreeTraitProvider {
 
     private static final long serialVersionUID = -6527862383425163978L;
 
+    public static final String HOST_HISTORY = "hostHistory";
+
     private final CophylogenySimulator<?> simulator;
-    private final Particle<TrajectoryState>[] particles;
+    private final ParticlePopulation population;
+    private final TrajectoryState trajectory;
+    private final int[] activeParticles;
+    private final int[] lineageCounts;
     private final NavigableMap<Double,Set<NodeRef>> heightsToNodes = new TreeMap<Double, Set<NodeRef>>();
     private boolean heightsToNodesKnown = false;
+    // The entries of heightsToNodes, highest first
+    private final double[] speciationHeights;
+    private final List<Set<NodeRef>> speciationNodes;
+    private int speciationCount = 0;
     private final int particleCount;
+    private final ParticleStorage.Type storageType;
+    private final UniformSource uniforms;
+    private final boolean quasiRandom;
+
+    private final int rejuvenationCount;
+    private final ParticleStorage startStates;
+    private final double[] incrementalLogWeights;
+    private final TrajectoryState[] rejuvenationStates;
+    private final SeededUniformSource[] rejuvenationUniforms;
+    private final ParticleStorage rejuvenationBackups;
+    private final ExecutorService executor;
+
+    private final ParticleGenealogy genealogy;
+    private TrajectoryHistory history = new TrajectoryHistory();
+    private TrajectoryHistory pendingHistory = new TrajectoryHistory();
+    private boolean historyPending = false;
+
+    private final CophylogenyLikelihood screeningFilter;
+    private final double screeningTemperature;
+    private double screeningLogLikelihood;
+    private double storedScreeningLogLikelihood;
+    private boolean screeningKnown = false;
+    private boolean storedScreeningKnown = false;
+    private boolean proposing = false;
+
+    protected final TreeTraitProvider.Helper treeTraitProvider =
+            new TreeTraitProvider.Helper();
 
-    @SuppressWarnings("unchecked")
     public CophylogenyLikelihood(final
                                  CophylogenySimulator<?> simulator,
                                  final Tree guestTree,
                                  final
                                  Reconciliation reconciliation,
                                  final int particleCount) {
+        this(simulator,
+             guestTree,
+             reconciliation,
+             particleCount,
+             ParticleStorage.Type.HEAP,
+             false);
+    }
+
+    public CophylogenyLikelihood(final
+                                 CophylogenySimulator<?> simulator,
+                                 final Tree guestTree,
+                                 final
+                                 Reconciliation reconciliation,
+                                 final int particleCount,
+                                 final ParticleStorage.Type storageType,
+                                 final boolean sampleHistory) {
+        this(simulator,
+             guestTree,
+             reconciliation,
+             particleCount,
+             storageType,
+             sampleHistory,
+             0,
+             1.0);
+    }
+
+    public CophylogenyLikelihood(final
+                                 CophylogenySimulator<?> simulator,
+                                 final Tree guestTree,
+                                 final
+                                 Reconciliation reconciliation,
+                                 final int particleCount,
+                                 final ParticleStorage.Type storageType,
+                                 final boolean sampleHistory,
+                                 final int screeningParticleCount,
+                                 final double screeningTemperature) {
+        this(simulator,
+             guestTree,
+             reconciliation,
+             particleCount,
+             storageType,
+             sampleHistory,
+             screeningParticleCount,
+             screeningTemperature,
+             false);
+    }
+
+    public CophylogenyLikelihood(final
+                                 CophylogenySimulator<?> simulator,
+                                 final Tree guestTree,
+                                 final
+                                 Reconciliation reconciliation,
+                                 final int particleCount,
+                                 final ParticleStorage.Type storageType,
+                                 final boolean sampleHistory,
+                                 final int screeningParticleCount,
+                                 final double screeningTemperature,
+                                 final boolean quasiRandom) {
+        this(simulator,
+             guestTree,
+             reconciliation,
+             particleCount,
+             storageType,
+             sampleHistory,
+             screeningParticleCount,
+             screeningTemperature,
+             quasiRandom,
+             0,
+             1);
+    }
+
+    /**
+     * @param rejuvenationCount the number of moves applied to the last
+     *                          segment of each particle after resampling
+     * @param threadCount the number of threads applying the moves
+     */
+    public CophylogenyLikelihood(final
+                                 CophylogenySimulator<?> simulator,
+                                 final Tree guestTree,
+                                 final
+                                 Reconciliation reconciliation,
+                                 final int particleCount,
+                                 final ParticleStorage.Type storageType,
+                                 final boolean sampleHistory,
+                                 final int screeningParticleCount,
+                                 final double screeningTemperature,
+                                 final boolean quasiRandom,
+                                 final int rejuvenationCount,
+                                 final int threadCount) {
 
         super(simulator.getModel(), guestTree, reconciliation);
         this.simulator = simulator;
-        this.particles = new Particle[particleCount];
+        this.population = new ParticlePopulation(particleCount,
+                                                 hostTree,
+                                                 guestTree,
+                                                 storageType);
+        this.trajectory = new TrajectoryState(population);
+        this.activeParticles = new int[particleCount];
+        this.lineageCounts = new int[hostTree.getExternalNodeCount()];
         this.particleCount = particleCount;
+        this.storageType = storageType;
+        speciationHeights = new double[guestTree.getInternalNodeCount()];
+        speciationNodes = new ArrayList<Set<NodeRef>>(guestTree.getInternalNodeCount());
+
+        final UniformSource coupled =
+                simulator.createUniformSource(particleCount);
+        if (quasiRandom) {
+            if (coupled != null)
+                throw new RuntimeException("Quasi-Monte Carlo cannot be "
+                        + "combined with the variance reduction of the simulator.");
+            uniforms = new RQMCUniformSource(particleCount);
+        } else {
+            uniforms = coupled != null ? coupled : UniformSource.PSEUDO_RANDOM;
+        }
+        trajectory.setUniformSource(uniforms);
+        this.quasiRandom = quasiRandom;
+
+        if (rejuvenationCount > 0 && sampleHistory)
+            throw new RuntimeException("Rejuvenation cannot be combined "
+                    + "with sampling the history.");
+        this.rejuvenationCount = rejuvenationCount;
+        if (rejuvenationCount > 0) {
+            startStates = population.createStorage(particleCount);
+            incrementalLogWeights = new double[particleCount];
+            rejuvenationStates = new TrajectoryState[threadCount];
+            rejuvenationUniforms = new SeededUniformSource[threadCount];
+            for (int t = 0; t < threadCount; ++t) {
+                rejuvenationStates[t] = new TrajectoryState(population);
+                rejuvenationUniforms[t] = new SeededUniformSource(0);
+                rejuvenationStates[t].setUniformSource(rejuvenationUniforms[t]);
+            }
+            rejuvenationBackups = population.createStorage(threadCount);
+        } else {
+            startStates = null;
+            incrementalLogWeights = null;
+            rejuvenationStates = null;
+            rejuvenationUniforms = null;
+            rejuvenationBackups = null;
+        }
+        if (rejuvenationCount > 0 && threadCount > 1) {
+            executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+                @Override
+                public Thread newThread(final Runnable runnable) {
+                    final Thread thread = new Thread(runnable, "rejuvenation");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        } else {
+            executor = null;
+        }
+
+        if (sampleHistory) {
+            genealogy = new ParticleGenealogy(particleCount);
+            trajectory.setGenealogy(genealogy);
+            treeTraitProvider.addTrait(new TreeTrait<String>() {
+                @Override
+                public String getTraitName() {
+                    return HOST_HISTORY;
+                }
+                @Override
+                public Intent getIntent() {
+                    return Intent.BRANCH;
+                }
+                @Override
+                public Class getTraitClass() {
+                    return String.class;
+                }
+                @Override
+                public String getTrait(final Tree tree, final NodeRef node) {
+                    if (tree != guestTree)
+                        throw new RuntimeException("Host history can be logged only on guestTree "
+                                                   + guestTree.getId() + ".");
+                    return history.getLineageHistory(node.getNumber());
+                }
+                @Override
+                public String getTraitString(final Tree tree, final NodeRef node) {
+                    return getTrait(tree, node);
+                }
+                @Override
+                public boolean getLoggable() {
+                    return true;
+                }
+            });
+        } else {
+            genealogy = null;
+        }
+
+        if (screeningParticleCount > 0)
+            screeningFilter = new CophylogenyLikelihood(simulator,
+                                                        guestTree,
+                                                        reconciliation,
+                                                        screeningParticleCount,
+                                                        storageType,
+                                                        false,
+                                                        0,
+                                                        1.0,
+                                                        quasiRandom);
+        else
+            screeningFilter = null;
+        this.screeningTemperature = screeningTemperature;
+    }
+
+    /**
+     * @return a likelihood with the same filter configuration as this one,
+     *         without history sampling, of {@code guestTree} reconciled by
+     *         {@code reconciliation} under the model of {@code simulator}
+     */
+    public CophylogenyLikelihood copy(final CophylogenySimulator<?> simulator,
+                                      final Tree guestTree,
+                                      final Reconciliation reconciliation) {
+        return new CophylogenyLikelihood(simulator,
+                                         guestTree,
+                                         reconciliation,
+                                         particleCount,
+                                         storageType,
+                                         false,
+                                         screeningFilter != null
+                                                 ? screeningFilter.particleCount
+                                                 : 0,
+                                         screeningTemperature,
+                                         quasiRandom,
+                                         rejuvenationCount,
+                                         1);
+    }
+
+    public CophylogenySimulator<?> getSimulator() {
+        return simulator;
     }
 
     @Override
     protected double calculateValidLogLikelihood() {
 
-        for (int i = 0; i < particles.length; ++i) {
-            final TrajectoryState state = simulator.createTrajectory(guestTree);
-            particles[i] = new Particle<TrajectoryState>(state);
+        if (screeningFilter == null)
+            return filter();
+
+        screeningKnown = false;
+        screeningLogLikelihood = screeningFilter.filter();
+        if (screeningLogLikelihood == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+        screeningKnown = true;
+
+        // First stage, only for a proposal made from a known state
+        if (proposing && storedScreeningKnown) {
+            final double logRatio = screeningTemperature
+                    * (screeningLogLikelihood - storedScreeningLogLikelihood);
+            if (Math.log(MathUtils.nextDouble()) > logRatio)
+                return Double.NEGATIVE_INFINITY;
+        }
+
+        return filter() - screeningTemperature * screeningLogLikelihood;
+    }
+
+    private double filter() {
+
+        historyPending = false;
+        if (genealogy != null)
+            genealogy.initialize();
+
+        for (int i = 0; i < particleCount; ++i) {
+            trajectory.setParticle(i);
+            simulator.initializeTrajectory(trajectory, guestTree);
         }
 
         if (!heightsToNodesKnown) {
+            heightsToNodes.clear();
             for (int i = 0; i < guestTree.getInternalNodeCount(); ++i) {
                 final NodeRef node = guestTree.getInternalNode(i);
                 final double height = guestTree.getNodeHeight(node);
@@ -100,108 +418,332 @@ public class CophylogenyLikelihood extends PFCophylogenyLikelihood {
                 if (!represented)
                     heightsToNodes.get(height).add(node);
             }
+            speciationNodes.clear();
+            speciationCount = 0;
+            for (final Map.Entry<Double,Set<NodeRef>> entry
+                    : heightsToNodes.descendingMap().entrySet()) {
+                speciationHeights[speciationCount++] = entry.getKey();
+                speciationNodes.add(entry.getValue());
+            }
             heightsToNodesKnown = true;
         }
 
-        final Queue<Double> speciationsQueue =
-                new LinkedList<Double>(heightsToNodes.descendingKeySet());
+        int activeCount = resetActiveParticles();
 
         double logLikelihood = 0.0;
-        while (!speciationsQueue.isEmpty()) {
-            final double until = speciationsQueue.poll();
+        for (int t = 0; t < speciationCount; ++t) {
+            final double until = speciationHeights[t];
+            final Set<NodeRef> speciatingNodes = speciationNodes.get(t);
+            final NodeRef host = reconciliation.getHost(speciatingNodes.iterator().next());
 
-            double totalWeight = 0.0;
+            uniforms.randomize();
 
-            for (final Particle<TrajectoryState> particle : particles) {
+            if (rejuvenationCount > 0) {
+                for (int j = 0; j < activeCount; ++j)
+                    population.getState(activeParticles[j], startStates, activeParticles[j]);
+            }
 
-                final TrajectoryState trajectory = particle.getValue();
-                particle.multiplyWeight(simulator.resumeSimulation(trajectory, until));
+            int i = 0;
+            while (i < activeCount) {
 
-                if (particle.getWeight() == 0.0)
-                    break;
+                final int particle = activeParticles[i];
+                trajectory.setParticle(particle);
+                uniforms.setParticle(particle);
 
-                final Set<NodeRef> speciatingNodes = heightsToNodes.get(until);
+                final double logWeight = propagate(trajectory, until, speciatingNodes, host);
 
-                for (final NodeRef speciatingNode : speciatingNodes) {
-                    if (!speciatingNode.equals(trajectory.getGuestLineageHost(speciatingNode))) {
-                        particle.multiplyWeight(0.0);
-                        break;
-                    }
+                population.multiplyWeight(particle, logWeight);
+
+                if (logWeight > Double.NEGATIVE_INFINITY) {
+                    ++i;
+                } else { // Compact the dead particle away
+                    activeParticles[i] = activeParticles[--activeCount];
                 }
 
-                if (particle.getWeight() == 0.0)
-                    break;
+            }
 
-                final NodeRef host = reconciliation.getHost(speciatingNodes.iterator().next());
-                particle.multiplyWeight(simulator.simulateSpeciationEvent(trajectory, guestTree, speciatingNodes, until, host));
+            if (activeCount == 0)
+                return Double.NEGATIVE_INFINITY;
 
-                totalWeight += particle.getWeight();
+            logLikelihood += population.getLogTotalWeight(activeParticles, activeCount) - Math.log(particleCount);
 
+            if (rejuvenationCount > 0) {
+                for (int j = 0; j < activeCount; ++j)
+                    incrementalLogWeights[activeParticles[j]] = population.getLogWeight(activeParticles[j]);
             }
 
-            final double meanWeight = totalWeight / particleCount;
-            logLikelihood += Math.log(meanWeight);
-
-            Particle.resample(particles);
+            if (quasiRandom) {
+                // Particles are left in signature order for the next points
+                population.sort(activeParticles, activeCount);
+                population.resampleStratified(activeParticles,
+                                              activeCount,
+                                              MathUtils.nextDouble());
+            } else {
+                population.resample(activeParticles, activeCount);
+            }
+            activeCount = resetActiveParticles();
+            if (genealogy != null)
+                genealogy.resample(population);
+            if (rejuvenationCount > 0)
+                rejuvenate(until, speciatingNodes, host);
 
         }
 
         final CophylogenyModel model = simulator.getModel();
 
-        double totalWeight = 0.0;
-        double weight2 = 0.0;
-        for (final Particle<TrajectoryState> particle : particles) {
+        for (int j = 0; j < lineageCounts.length; ++j)
+            lineageCounts[j] = 0;
+        for (int j = 0; j < guestTree.getExternalNodeCount(); ++j)
+            ++lineageCounts[reconciliation.getHost(guestTree.getExternalNode(j)).getNumber()];
 
-            final TrajectoryState trajectory = particle.getValue();
-            particle.multiplyWeight(simulator.resumeSimulation(trajectory, 0.0));
+        uniforms.randomize();
 
-            weight2 += particle.getWeight();
+        int i = 0;
+        while (i < activeCount) {
 
-            trajectory.setHeight(0.0);
+            final int particle = activeParticles[i];
+            trajectory.setParticle(particle);
+            uniforms.setParticle(particle);
 
-            final int[] lineageCounts = new int[hostTree.getExternalNodeCount()];
-            for (int i = 0; i < guestTree.getExternalNodeCount(); ++i) {
-                final NodeRef guest = guestTree.getExternalNode(i);
-                final NodeRef host = reconciliation.getHost(guest);
-                ++lineageCounts[host.getNumber()];
-                if (!host.equals(trajectory.getGuestLineageHost(guest))) {
-                    particle.multiplyWeight(0.0);
-                    break;
-                } else {
-                    particle.multiplyWeight(model.getSamplingProbability(host));
-                }
+            double logWeight = simulator.resumeSimulation(trajectory, 0.0);
+
+            if (logWeight > Double.NEGATIVE_INFINITY) {
+                trajectory.setHeight(0.0);
+                logWeight += model.getSamplingLogProbability(trajectory, guestTree, reconciliation, lineageCounts);
             }
 
-            if (particle.getWeight() > 0.0) {
-                for (int i = 0; i < hostTree.getExternalNodeCount(); ++i) {
-                    final NodeRef host = hostTree.getExternalNode(i);
-                    final double rho = model.getSamplingProbability(host);
-                    final int count = trajectory.getGuestCount(host) - lineageCounts[host.getNumber()];
-                    particle.multiplyWeight(Math.pow(1 - rho, count));
-                    if (particle.getWeight() == 0)
-                        break;
+            population.multiplyWeight(particle, logWeight);
+
+            if (logWeight > Double.NEGATIVE_INFINITY)
+                ++i;
+            else // Compact the dead particle away
+                activeParticles[i] = activeParticles[--activeCount];
+
+        }
+
+        if (activeCount == 0)
+            return Double.NEGATIVE_INFINITY;
+
+        logLikelihood += population.getLogTotalWeight(activeParticles, activeCount) - Math.log(particleCount);
+
+        if (genealogy != null) {
+            final int particle = population.nextParticle(activeParticles, activeCount);
+            genealogy.getHistory(particle, pendingHistory);
+            historyPending = true;
+        }
+
+        return logLikelihood;
+    }
+
+    /**
+     * Simulates the trajectory viewed by {@code state} down to the speciation
+     * of {@code speciatingNodes} at {@code until} in {@code host}.
+     *
+     * @return the log incremental weight
+     */
+    private double propagate(final TrajectoryState state,
+                             final double until,
+                             final Set<NodeRef> speciatingNodes,
+                             final NodeRef host) {
+
+        double logWeight = simulator.resumeSimulation(state, until);
+
+        if (logWeight > Double.NEGATIVE_INFINITY) {
+            for (final NodeRef speciatingNode : speciatingNodes) {
+                if (!host.equals(state.getGuestLineageHost(speciatingNode)))
+                    return Double.NEGATIVE_INFINITY;
+            }
+            logWeight += simulator.simulateSpeciationEvent(state, guestTree, speciatingNodes, until, host);
+        }
+
+        return logWeight;
+    }
+
+    /**
+     * Applies the rejuvenation moves to every particle after resampling,
+     * split across the worker threads. Each worker draws from its own
+     * generator, seeded here from BEAST's, so that the sweep is reproducible
+     * regardless of how the threads are scheduled.
+     */
+    private void rejuvenate(final double until,
+                            final Set<NodeRef> speciatingNodes,
+                            final NodeRef host) {
+
+        for (final SeededUniformSource source : rejuvenationUniforms)
+            source.setSeed(MathUtils.nextLong());
+
+        if (executor == null) {
+            rejuvenate(0, 0, particleCount, until, speciatingNodes, host);
+            return;
+        }
+
+        // The workers share the simulator, so its lazy state is built first
+        simulator.prepareSimulation();
+
+        final int threadCount = rejuvenationStates.length;
+        final List<Callable<Object>> tasks = new ArrayList<Callable<Object>>(threadCount);
+        for (int t = 0; t < threadCount; ++t) {
+            final int thread = t;
+            tasks.add(Executors.callable(new Runnable() {
+                @Override
+                public void run() {
+                    rejuvenate(thread,
+                               thread * particleCount / threadCount,
+                               (thread + 1) * particleCount / threadCount,
+                               until,
+                               speciatingNodes,
+                               host);
                 }
+            }));
+        }
+
+        try {
+            for (final Future<Object> result : executor.invokeAll(tasks))
+                result.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (final ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Independent Metropolis-Hastings moves on the last segment of each of
+     * the particles {@code from} to {@code to - 1}: the segment is simulated
+     * afresh from the state of the ancestor at the previous speciation and
+     * accepted with probability {@code min(1, w' / w)} for incremental
+     * weights {@code w}, which leaves the filtering distribution invariant.
+     */
+    private void rejuvenate(final int thread,
+                            final int from,
+                            final int to,
+                            final double until,
+                            final Set<NodeRef> speciatingNodes,
+                            final NodeRef host) {
+
+        final TrajectoryState state = rejuvenationStates[thread];
+        for (int particle = from; particle < to; ++particle) {
+            final int ancestor = population.getAncestor(particle);
+            double logWeight = incrementalLogWeights[ancestor];
+            state.setParticle(particle);
+            for (int k = 0; k < rejuvenationCount; ++k) {
+                population.getState(particle, rejuvenationBackups, thread);
+                population.setState(particle, startStates, ancestor);
+                final double proposedLogWeight = propagate(state, until, speciatingNodes, host);
+                if (Math.log(state.getUniformSource().nextDouble())
+                        < proposedLogWeight - logWeight)
+                    logWeight = proposedLogWeight;
+                else
+                    population.setState(particle, rejuvenationBackups, thread);
             }
+        }
+    }
 
-            totalWeight += particle.getWeight();
+    private int resetActiveParticles() {
+        for (int i = 0; i < particleCount; ++i)
+            activeParticles[i] = i;
+        return particleCount;
+    }
 
+    /**
+     * @return the trajectory drawn from the filter at the current state, or
+     *         {@code null} if histories are not being sampled
+     */
+    public TrajectoryHistory getHistory() {
+        return genealogy != null ? history : null;
+    }
+
+    private void commitHistory() {
+        if (historyPending) {
+            final TrajectoryHistory temp = history;
+            history = pendingHistory;
+            pendingHistory = temp;
+            historyPending = false;
         }
+    }
 
-        final double meanWeight = totalWeight / particleCount;
-        System.out.println(weight2 / particleCount);
-        System.out.println(meanWeight);
-        logLikelihood += Math.log(meanWeight);
+    @Override
+    protected void storeState() {
+        // Any evaluation not yet committed belongs to the state being stored
+        commitHistory();
+        storedScreeningLogLikelihood = screeningLogLikelihood;
+        storedScreeningKnown = screeningKnown;
+        proposing = true;
+        // The screening filter is not a registered submodel
+        if (screeningFilter != null)
+            screeningFilter.storeState();
+        super.storeState();
+    }
 
-        return logLikelihood;
+    @Override
+    protected void restoreState() {
+        // The guest tree and reconciliation are restored without events
+        heightsToNodesKnown = false;
+        historyPending = false;
+        screeningLogLikelihood = storedScreeningLogLikelihood;
+        screeningKnown = storedScreeningKnown;
+        proposing = false;
+        if (screeningFilter != null)
+            screeningFilter.restoreState();
+        super.restoreState();
+    }
+
+    @Override
+    protected void acceptState() {
+        commitHistory();
+        proposing = false;
+        if (screeningFilter != null)
+            screeningFilter.acceptState();
+        super.acceptState();
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public TreeTrait[] getTreeTraits() {
+        return treeTraitProvider.getTreeTraits();
+    }
+
+    @SuppressWarnings("rawtypes")
+    @Override
+    public TreeTrait getTreeTrait(final String key) {
+        return treeTraitProvider.getTreeTrait(key);
     }
 
     @Override
     protected void handleModelChangedEvent(final Model model, final Object object, final int index) {
-        if (model == guestTree)
+        if (model == reconciliation && object instanceof Reconciliation.HostChangedEvent) {
+            if (heightsToNodesKnown)
+                updateRepresentatives(guestTree.getNode(((Reconciliation.HostChangedEvent) object).getGuest()));
+        } else if (model == guestTree || model == reconciliation) {
             heightsToNodesKnown = false;
+        }
         super.handleModelChangedEvent(model, object, index);
     }
 
+    /**
+     * Recomputes the speciating nodes representing each host at the height
+     * of {@code node} after its host has changed.
+     */
+    private void updateRepresentatives(final NodeRef node) {
+        if (guestTree.isExternal(node))
+            return;
+        final double height = guestTree.getNodeHeight(node);
+        final Set<NodeRef> representatives = heightsToNodes.get(height);
+        if (representatives == null) {
+            heightsToNodesKnown = false;
+            return;
+        }
+        representatives.clear();
+        final Set<NodeRef> hosts = new HashSet<NodeRef>();
+        for (int i = 0; i < guestTree.getInternalNodeCount(); ++i) {
+            final NodeRef other = guestTree.getInternalNode(i);
+            if (guestTree.getNodeHeight(other) == height
+                    && hosts.add(reconciliation.getHost(other)))
+                representatives.add(other);
+        }
+    }
+
     public static final AbstractXMLObjectParser PARSER =
             new AbstractXMLObjectParser() {
 
@@ -209,6 +751,15 @@ public class CophylogenyLikelihood extends PFCophylogenyLikelihood {
                         TRAJECTORY_PF_COPHYLOGENY_LIKELIHOOD =
                         "cophylogenyLikelihood";
                 private static final String PARTICLE_COUNT = "particleCount";
+                private static final String PARTICLE_STORAGE = "particleStorage";
+                private static final String SAMPLE_HISTORY = "sampleHistory";
+                private static final String SCREENING_PARTICLE_COUNT =
+                        "screeningParticleCount";
+                private static final String SCREENING_TEMPERATURE =
+                        "screeningTemperature";
+                private static final String RQMC = "rqmc";
+                private static final String REJUVENATION_COUNT = "rejuvenationCount";
+                private static final String THREAD_COUNT = "threadCount";
 
                 @Override
                 public String getParserName() {
@@ -227,18 +778,63 @@ public class CophylogenyLikelihood extends PFCophylogenyLikelihood {
                             (Reconciliation) xo.getChild(Reconciliation.class);
                     final int particleCount =
                             xo.getIntegerAttribute(PARTICLE_COUNT);
+                    final String storage =
+                            xo.getAttribute(PARTICLE_STORAGE, "heap");
+                    final ParticleStorage.Type storageType;
+                    try {
+                        storageType = ParticleStorage.Type
+                                .valueOf(storage.toUpperCase());
+                    } catch (final IllegalArgumentException e) {
+                        throw new XMLParseException("Unknown particle storage "
+                                                    + storage + ".");
+                    }
+                    final boolean sampleHistory =
+                            xo.getAttribute(SAMPLE_HISTORY, false);
+                    final int screeningParticleCount =
+                            xo.getAttribute(SCREENING_PARTICLE_COUNT, 0);
+                    final double screeningTemperature =
+                            xo.getAttribute(SCREENING_TEMPERATURE, 1.0);
+                    if (screeningTemperature <= 0.0
+                            || screeningTemperature > 1.0)
+                        throw new XMLParseException(SCREENING_TEMPERATURE
+                                + " must be in (0, 1].");
+                    final boolean quasiRandom = xo.getAttribute(RQMC, false);
+                    final int rejuvenationCount =
+                            xo.getAttribute(REJUVENATION_COUNT, 0);
+                    if (rejuvenationCount > 0 && sampleHistory)
+                        throw new XMLParseException(REJUVENATION_COUNT
+                                + " cannot be combined with " + SAMPLE_HISTORY
+                                + ".");
+                    final int threadCount = xo.getAttribute(THREAD_COUNT, 1);
+                    if (threadCount < 1)
+                        throw new XMLParseException(THREAD_COUNT
+                                + " must be positive.");
 
                     return new CophylogenyLikelihood(simulator,
                                                        guestTree,
                                                        reconciliation,
-                                                       particleCount);
+                                                       particleCount,
+                                                       storageType,
+                                                       sampleHistory,
+                                                       screeningParticleCount,
+                                                       screeningTemperature,
+                                                       quasiRandom,
+                                                       rejuvenationCount,
+                                                       threadCount);
                 }
 
                 private final XMLSyntaxRule[] rules = {
                         new ElementRule(CophylogenySimulator.class),
                         new ElementRule(Tree.class),
                         new ElementRule(Reconciliation.class),
-                        AttributeRule.newIntegerRule(PARTICLE_COUNT)
+                        AttributeRule.newIntegerRule(PARTICLE_COUNT),
+                        AttributeRule.newStringRule(PARTICLE_STORAGE, true),
+                        AttributeRule.newBooleanRule(SAMPLE_HISTORY, true),
+                        AttributeRule.newIntegerRule(SCREENING_PARTICLE_COUNT, true),
+                        AttributeRule.newDoubleRule(SCREENING_TEMPERATURE, true),
+                        AttributeRule.newBooleanRule(RQMC, true),
+                        AttributeRule.newIntegerRule(REJUVENATION_COUNT, true),
+                        AttributeRule.newIntegerRule(THREAD_COUNT, true)
                 };
                 @Override
                 public XMLSyntaxRule[] getSyntaxRules() {
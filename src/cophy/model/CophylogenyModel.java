@@ -41,6 +41,8 @@ public abstract class CophylogenyModel extends AbstractModel implements Units {
 
     private static final long serialVersionUID = -2874567072654237379L;
 
+    protected static final double[] NO_BREAKPOINTS = new double[0];
+
     protected final Tree hostTree;
     protected Units.Type units;
 
@@ -74,8 +76,104 @@ public abstract class CophylogenyModel extends AbstractModel implements Units {
 
     public abstract double getDeathRate();
 
+    /**
+     * @return the total dimension of all parameters of this model
+     */
+    public abstract int getDimension();
+
+    /**
+     * Copies the values of all parameters of this model into {@code values}.
+     */
+    public abstract void getParameterValues(double[] values);
+
+    /**
+     * @return the birth rate at {@code height}
+     */
+    public double getBirthRate(final double height) {
+        return getBirthRate();
+    }
+
+    /**
+     * @return the factor by which the rates of guests in host {@code host}
+     *         are multiplied
+     */
+    public double getHostRateMultiplier(final int host) {
+        return 1.0;
+    }
+
+    /**
+     * @return the rate multipliers of all hosts indexed by node number, or
+     *         {@code null} if they are all one; the array is replaced rather
+     *         than modified when they change and must not be modified by the
+     *         caller
+     */
+    public double[] getHostRateMultipliers() {
+        return null;
+    }
+
+    /**
+     * Builds any state the model computes lazily during simulation, so that
+     * trajectories can afterwards be simulated concurrently.
+     */
+    public void prepareSimulation() {
+        // Nothing to do
+    }
+
+    /**
+     * @return the heights at which the rates of the model change, in
+     *         increasing order; the array is replaced rather than modified
+     *         when they change and must not be modified by the caller
+     */
+    public double[] getEpochBreakpoints() {
+        return NO_BREAKPOINTS;
+    }
+
+    /**
+     * @return the epoch of constant rates containing {@code height}, i.e. the
+     *         number of breakpoints at or below it
+     */
+    public int getEpoch(final double height) {
+        final double[] breakpoints = getEpochBreakpoints();
+        int epoch = 0;
+        while (epoch < breakpoints.length && breakpoints[epoch] <= height)
+            ++epoch;
+        return epoch;
+    }
+
     public double getSamplingProbability(final NodeRef host) {
         return 1.0;
     }
 
+    /**
+     * @return the log probability that, of all the guests in trajectory
+     *         {@code state} at the present, exactly the extant guests of
+     *         {@code guestTree} are sampled, in the hosts given by
+     *         {@code reconciliation}; {@code sampledCounts} holds the number of
+     *         sampled guests in each extant host
+     */
+    public double getSamplingLogProbability(final TrajectoryState state,
+                                            final Tree guestTree,
+                                            final Reconciliation reconciliation,
+                                            final int[] sampledCounts) {
+
+        double logP = 0.0;
+
+        for (int i = 0; i < guestTree.getExternalNodeCount(); ++i) {
+            final NodeRef guest = guestTree.getExternalNode(i);
+            final NodeRef host = reconciliation.getHost(guest);
+            if (!host.equals(state.getGuestLineageHost(guest)))
+                return Double.NEGATIVE_INFINITY;
+            logP += Math.log(getSamplingProbability(host));
+        }
+
+        for (int i = 0; i < hostTree.getExternalNodeCount(); ++i) {
+            final NodeRef host = hostTree.getExternalNode(i);
+            final int count = state.getGuestCount(host) - sampledCounts[host.getNumber()];
+            if (count > 0)
+                logP += count * Math.log1p(-getSamplingProbability(host));
+        }
+
+        return logP;
+    }
+
 }
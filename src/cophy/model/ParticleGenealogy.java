@@ -0,0 +1,303 @@
+/*
+ * ParticleGenealogy.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.model;
+
+import cophy.particlefiltration.ParticleStorage;
+
+import java.util.Arrays;
+
+/**
+ * Path storage for the ancestry of a {@link ParticlePopulation}. Every
+ * particle owns one segment per generation holding the host assignments of
+ * guest lineages recorded during that generation, and each segment points to
+ * the segment of its ancestor. Segments that no longer have descendants are
+ * pruned as soon as a resampling step leaves them behind, so the memory in use
+ * stays proportional to the surviving ancestry rather than to the number of
+ * generations times the number of particles. Segments and events are pooled
+ * in primitive arrays and recycled through free lists. Optionally each
+ * segment also keeps a snapshot of the state of its particle at the end of
+ * the generation, so that whole trajectories can be recovered for conditional
+ * SMC.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class ParticleGenealogy {
+
+    private static final int NONE = -1;
+
+    private final int particleCount;
+    private final int[] leaves;
+    private final int[] previousLeaves;
+
+    private int[] parents;
+    private int[] childCounts;
+    private int[] firstEvents;
+    private int[] lastEvents;
+    private int segmentCount = 0;
+    private int freeSegment = NONE;
+
+    private double[] eventHeights;
+    private int[] eventGuests;
+    private int[] eventHosts;
+    private int[] nextEvents;
+    private int eventCount = 0;
+    private int freeEvent = NONE;
+
+    private final ParticlePopulation population;
+    private ParticleStorage snapshots;
+    private double[] snapshotLogWeights;
+    private int[] snapshotHosts;
+
+    private int[] path = new int[16];
+
+    public ParticleGenealogy(final int particleCount) {
+        this(particleCount, null);
+    }
+
+    /**
+     * Creates a genealogy that can take snapshots of the states of the
+     * particles in {@code population}.
+     */
+    public ParticleGenealogy(final ParticlePopulation population) {
+        this(population.getParticleCount(), population);
+    }
+
+    private ParticleGenealogy(final int particleCount,
+                              final ParticlePopulation population) {
+
+        this.particleCount = particleCount;
+        leaves = new int[particleCount];
+        previousLeaves = new int[particleCount];
+
+        final int segmentCapacity = 2 * particleCount;
+        parents = new int[segmentCapacity];
+        childCounts = new int[segmentCapacity];
+        firstEvents = new int[segmentCapacity];
+        lastEvents = new int[segmentCapacity];
+
+        final int eventCapacity = 4 * particleCount;
+        eventHeights = new double[eventCapacity];
+        eventGuests = new int[eventCapacity];
+        eventHosts = new int[eventCapacity];
+        nextEvents = new int[eventCapacity];
+
+        this.population = population;
+        if (population != null) {
+            snapshots = population.createStorage(segmentCapacity);
+            snapshotLogWeights = new double[segmentCapacity];
+            snapshotHosts = new int[segmentCapacity];
+        }
+    }
+
+    /**
+     * Discards all ancestry and starts a new root segment for every particle.
+     */
+    public void initialize() {
+        segmentCount = 0;
+        freeSegment = NONE;
+        eventCount = 0;
+        freeEvent = NONE;
+        for (int i = 0; i < particleCount; ++i)
+            leaves[i] = allocateSegment(NONE);
+    }
+
+    public void record(final int particle,
+                       final double height,
+                       final int guest,
+                       final int host) {
+
+        final int event = allocateEvent();
+        eventHeights[event] = height;
+        eventGuests[event] = guest;
+        eventHosts[event] = host;
+        nextEvents[event] = NONE;
+
+        final int segment = leaves[particle];
+        if (firstEvents[segment] == NONE)
+            firstEvents[segment] = event;
+        else
+            nextEvents[lastEvents[segment]] = event;
+        lastEvents[segment] = event;
+    }
+
+    /**
+     * Saves the current state of {@code particle} in its segment for this
+     * generation, along with a log weight and a host to be returned by
+     * {@link #getSnapshots}.
+     */
+    public void snapshot(final int particle,
+                         final double logWeight,
+                         final int host) {
+
+        final int segment = leaves[particle];
+        population.getState(particle, snapshots, segment);
+        snapshotLogWeights[segment] = logWeight;
+        snapshotHosts[segment] = host;
+    }
+
+    /**
+     * Copies the snapshots on the path of {@code particle}, oldest first,
+     * into {@code states}, {@code logWeights} and {@code hosts}.
+     *
+     * @return the number of generations on the path
+     */
+    public int getSnapshots(final int particle,
+                            final ParticleStorage states,
+                            final double[] logWeights,
+                            final int[] hosts) {
+
+        final int depth = getPath(particle);
+        for (int i = 0; i < depth; ++i) {
+            final int segment = path[depth - i - 1];
+            snapshots.copy(segment, states, i);
+            logWeights[i] = snapshotLogWeights[segment];
+            hosts[i] = snapshotHosts[segment];
+        }
+        return depth;
+    }
+
+    /**
+     * Starts a new generation after {@code population} has been resampled,
+     * pruning every branch of the ancestry that left no descendants.
+     */
+    public void resample(final ParticlePopulation population) {
+
+        System.arraycopy(leaves, 0, previousLeaves, 0, particleCount);
+
+        for (int i = 0; i < particleCount; ++i) {
+            final int parent = previousLeaves[population.getAncestor(i)];
+            leaves[i] = allocateSegment(parent);
+            ++childCounts[parent];
+        }
+
+        for (int i = 0; i < particleCount; ++i)
+            prune(previousLeaves[i]);
+    }
+
+    /**
+     * Copies the recorded events on the path of {@code particle}, oldest
+     * first, into {@code history}.
+     */
+    public void getHistory(final int particle, final TrajectoryHistory history) {
+
+        int depth = getPath(particle);
+        history.clear();
+        while (depth > 0) {
+            for (int event = firstEvents[path[--depth]];
+                 event != NONE;
+                 event = nextEvents[event])
+                history.add(eventHeights[event],
+                            eventGuests[event],
+                            eventHosts[event]);
+        }
+    }
+
+    private int getPath(final int particle) {
+        int depth = 0;
+        for (int segment = leaves[particle];
+             segment != NONE;
+             segment = parents[segment]) {
+            if (depth == path.length)
+                path = Arrays.copyOf(path, 2 * path.length);
+            path[depth++] = segment;
+        }
+        return depth;
+    }
+
+    private void prune(int segment) {
+        while (segment != NONE && childCounts[segment] == 0) {
+            final int parent = parents[segment];
+            freeSegment(segment);
+            if (parent != NONE)
+                --childCounts[parent];
+            segment = parent;
+        }
+    }
+
+    private int allocateSegment(final int parent) {
+        final int segment;
+        if (freeSegment != NONE) {
+            segment = freeSegment;
+            freeSegment = parents[segment];
+        } else {
+            if (segmentCount == parents.length)
+                growSegments();
+            segment = segmentCount++;
+        }
+        parents[segment] = parent;
+        childCounts[segment] = 0;
+        firstEvents[segment] = NONE;
+        lastEvents[segment] = NONE;
+        return segment;
+    }
+
+    private void freeSegment(final int segment) {
+        if (firstEvents[segment] != NONE) {
+            nextEvents[lastEvents[segment]] = freeEvent;
+            freeEvent = firstEvents[segment];
+        }
+        parents[segment] = freeSegment;
+        freeSegment = segment;
+    }
+
+    private int allocateEvent() {
+        if (freeEvent != NONE) {
+            final int event = freeEvent;
+            freeEvent = nextEvents[event];
+            return event;
+        }
+        if (eventCount == eventHeights.length)
+            growEvents();
+        return eventCount++;
+    }
+
+    private void growSegments() {
+        final int capacity = 2 * parents.length;
+        parents = Arrays.copyOf(parents, capacity);
+        childCounts = Arrays.copyOf(childCounts, capacity);
+        firstEvents = Arrays.copyOf(firstEvents, capacity);
+        lastEvents = Arrays.copyOf(lastEvents, capacity);
+        if (population != null) {
+            final ParticleStorage grown = population.createStorage(capacity);
+            for (int i = 0; i < segmentCount; ++i)
+                snapshots.copy(i, grown, i);
+            snapshots = grown;
+            snapshotLogWeights = Arrays.copyOf(snapshotLogWeights, capacity);
+            snapshotHosts = Arrays.copyOf(snapshotHosts, capacity);
+        }
+    }
+
+    private void growEvents() {
+        final int capacity = 2 * eventHeights.length;
+        eventHeights = Arrays.copyOf(eventHeights, capacity);
+        eventGuests = Arrays.copyOf(eventGuests, capacity);
+        eventHosts = Arrays.copyOf(eventHosts, capacity);
+        nextEvents = Arrays.copyOf(nextEvents, capacity);
+    }
+
+}
@@ -0,0 +1,439 @@
+/*
+ * ParticlePopulation.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.model;
+
+import cophy.particlefiltration.ParticleStorage;
+import dr.evolution.tree.Tree;
+import dr.math.MathUtils;
+
+
+/**
+ * A population of trajectory particles stored as structure-of-arrays. The
+ * state of every particle is a fixed-width record in a
+ * {@link ParticleStorage} (its height and weighted guest count, then guest
+ * counts per host followed by the host of each guest lineage) and the log
+ * weights are a primitive {@code double[]}. The records are double
+ * buffered, so resampling is a sequence of record copies into the spare
+ * buffer followed by a swap, and neither resampling nor sorting allocates.
+ * The simulator still creates a small event object for each event it
+ * simulates.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class ParticlePopulation {
+
+    static final int NONE = -1;
+
+    static final int GUEST_COUNT = 0;
+    static final int HOST_COUNT = 1;
+    private static final int HEADER_LENGTH = 2;
+    private static final int HEIGHT = 0;
+    private static final int WEIGHTED_GUEST_COUNT = 1;
+    private static final int DOUBLE_COUNT = 2;
+
+    private final Tree hostTree;
+    private final Tree guestTree;
+    private final int particleCount;
+    private final int hostNodeCount;
+    private final int guestNodeCount;
+    private final int stride;
+
+    private final double[] logWeights;
+    private final double[] weights;
+    private ParticleStorage states;
+    private ParticleStorage statesBuffer;
+
+    private double[] hostWeights = null;
+
+    private final int[] ancestors;
+    private final double[] uniforms;
+    private final int[] order;
+
+    public ParticlePopulation(final int particleCount,
+                              final Tree hostTree,
+                              final Tree guestTree) {
+        this(particleCount, hostTree, guestTree, ParticleStorage.Type.HEAP);
+    }
+
+    public ParticlePopulation(final int particleCount,
+                              final Tree hostTree,
+                              final Tree guestTree,
+                              final ParticleStorage.Type storageType) {
+
+        this.hostTree = hostTree;
+        this.guestTree = guestTree;
+        this.particleCount = particleCount;
+        hostNodeCount = hostTree.getNodeCount();
+        guestNodeCount = guestTree.getNodeCount();
+        stride = HEADER_LENGTH + hostNodeCount + guestNodeCount;
+
+        logWeights = new double[particleCount];
+        weights = new double[particleCount];
+        states = storageType.create(particleCount, stride, DOUBLE_COUNT);
+        statesBuffer = storageType.create(particleCount, stride, DOUBLE_COUNT);
+
+        ancestors = new int[particleCount];
+        uniforms = new double[particleCount];
+        order = new int[particleCount];
+    }
+
+    public int getParticleCount() {
+        return particleCount;
+    }
+
+    public Tree getHostTree() {
+        return hostTree;
+    }
+
+    public Tree getGuestTree() {
+        return guestTree;
+    }
+
+    public int getHostNodeCount() {
+        return hostNodeCount;
+    }
+
+    public int getGuestNodeCount() {
+        return guestNodeCount;
+    }
+
+    /**
+     * @return the weights of the guests in each host, indexed by host node
+     *         number, or {@code null} if every guest has weight one
+     */
+    public double[] getHostWeights() {
+        return hostWeights;
+    }
+
+    /**
+     * Sets the weights of the guests in each host, from which the weighted
+     * guest count of every particle initialized afterwards is maintained.
+     * The array must not be modified while in use.
+     */
+    public void setHostWeights(final double[] hostWeights) {
+        this.hostWeights = hostWeights;
+    }
+
+    public double getLogWeight(final int particle) {
+        return logWeights[particle];
+    }
+
+    public void setLogWeight(final int particle, final double logWeight) {
+        logWeights[particle] = logWeight;
+    }
+
+    /**
+     * Multiplies the weight of {@code particle} by {@code exp(logValue)}.
+     */
+    public void multiplyWeight(final int particle, final double logValue) {
+        logWeights[particle] += logValue;
+    }
+
+    /**
+     * @return the log of the total weight of the {@code count} particles
+     *         listed in {@code particles}, computed with the log-sum-exp trick
+     */
+    public double getLogTotalWeight(final int[] particles, final int count) {
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; ++i)
+            maxLogWeight = Math.max(maxLogWeight, logWeights[particles[i]]);
+        if (maxLogWeight == Double.NEGATIVE_INFINITY)
+            return maxLogWeight;
+        double total = 0.0;
+        for (int i = 0; i < count; ++i)
+            total += Math.exp(logWeights[particles[i]] - maxLogWeight);
+        return maxLogWeight + Math.log(total);
+    }
+
+    /**
+     * @return heap storage for {@code recordCount} particle states in the
+     *         record layout of this population
+     */
+    public ParticleStorage createStorage(final int recordCount) {
+        return ParticleStorage.Type.HEAP.create(recordCount,
+                                                stride,
+                                                DOUBLE_COUNT);
+    }
+
+    /**
+     * Copies the state of {@code particle} into {@code record} of
+     * {@code destination}, which must come from {@link #createStorage(int)}.
+     */
+    public void getState(final int particle,
+                         final ParticleStorage destination,
+                         final int record) {
+        states.copy(particle, destination, record);
+    }
+
+    /**
+     * Overwrites the state of {@code particle} with {@code record} of
+     * {@code source}, which must come from {@link #createStorage(int)}.
+     */
+    public void setState(final int particle,
+                         final ParticleStorage source,
+                         final int record) {
+        source.copy(record, states, particle);
+    }
+
+    void initialize(final int particle,
+                    final double height,
+                    final int guest,
+                    final int host) {
+
+        for (int i = 0; i < stride; ++i)
+            states.setInt(particle, i, NONE);
+        states.setInt(particle, GUEST_COUNT, 1);
+        states.setInt(particle, HOST_COUNT, 1);
+        states.setInt(particle, HEADER_LENGTH + host, 1);
+        states.setInt(particle, HEADER_LENGTH + hostNodeCount + guest, host);
+        states.setDouble(particle, HEIGHT, height);
+        states.setDouble(particle, WEIGHTED_GUEST_COUNT,
+                         hostWeights != null ? hostWeights[host] : 1.0);
+        logWeights[particle] = 0.0;
+    }
+
+    double getHeight(final int particle) {
+        return states.getDouble(particle, HEIGHT);
+    }
+
+    void setHeight(final int particle, final double height) {
+        states.setDouble(particle, HEIGHT, height);
+    }
+
+    double getWeightedGuestCount(final int particle) {
+        return states.getDouble(particle, WEIGHTED_GUEST_COUNT);
+    }
+
+    void setWeightedGuestCount(final int particle, final double count) {
+        states.setDouble(particle, WEIGHTED_GUEST_COUNT, count);
+    }
+
+    int getHeader(final int particle, final int field) {
+        return states.getInt(particle, field);
+    }
+
+    void setHeader(final int particle, final int field, final int value) {
+        states.setInt(particle, field, value);
+    }
+
+    int getGuestCount(final int particle, final int host) {
+        return states.getInt(particle, HEADER_LENGTH + host);
+    }
+
+    void setGuestCount(final int particle, final int host, final int count) {
+        states.setInt(particle, HEADER_LENGTH + host, count);
+    }
+
+    int getGuestLineageHost(final int particle, final int guest) {
+        return states.getInt(particle, HEADER_LENGTH + hostNodeCount + guest);
+    }
+
+    void setGuestLineageHost(final int particle,
+                             final int guest,
+                             final int host) {
+        states.setInt(particle, HEADER_LENGTH + hostNodeCount + guest, host);
+    }
+
+    /**
+     * @return a particle drawn from the {@code count} particles listed in
+     *         {@code particles} in proportion to their weights
+     */
+    public int nextParticle(final int[] particles, final int count) {
+        final double logTotalWeight = getLogTotalWeight(particles, count);
+        double u = MathUtils.nextDouble();
+        for (int i = 0; i < count - 1; ++i) {
+            u -= Math.exp(logWeights[particles[i]] - logTotalWeight);
+            if (u < 0.0)
+                return particles[i];
+        }
+        return particles[count - 1];
+    }
+
+    /**
+     * @return the particle from which {@code particle} was copied in the
+     *         last resampling step
+     */
+    public int getAncestor(final int particle) {
+        return ancestors[particle];
+    }
+
+    /**
+     * Resamples the whole population in proportion to the weights of the
+     * {@code count} particles listed in {@code survivors}, after which all
+     * weights are reset to one.
+     */
+    public void resample(final int[] survivors, final int count) {
+        resample(survivors, count, false);
+    }
+
+    /**
+     * Resamples as {@link #resample(int[], int)}, except that if
+     * {@code conditional} the first particle, which must be a survivor, is
+     * kept as its own ancestor as in conditional SMC.
+     */
+    public void resample(final int[] survivors,
+                         final int count,
+                         final boolean conditional) {
+
+        // Sorted uniforms from normalised exponential spacings give
+        // multinomial resampling in a single pass
+        final int first = conditional ? 1 : 0;
+        double spacing = 0.0;
+        for (int i = first; i < particleCount; ++i) {
+            spacing += MathUtils.nextExponential(1.0);
+            uniforms[i] = spacing;
+        }
+        spacing += MathUtils.nextExponential(1.0);
+        for (int i = first; i < particleCount; ++i)
+            uniforms[i] /= spacing;
+
+        resample(survivors, count, first);
+    }
+
+    /**
+     * Resamples as {@link #resample(int[], int)}, but with the stratified
+     * uniforms {@code (i + u) / N} so that the ancestors follow the order in
+     * which the survivors are listed.
+     */
+    public void resampleStratified(final int[] survivors,
+                                   final int count,
+                                   final double u) {
+
+        for (int i = 0; i < particleCount; ++i)
+            uniforms[i] = (i + u) / particleCount;
+
+        resample(survivors, count, 0);
+    }
+
+    private void resample(final int[] survivors,
+                          final int count,
+                          final int first) {
+
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (int i = 0; i < count; ++i)
+            maxLogWeight = Math.max(maxLogWeight, logWeights[survivors[i]]);
+
+        // Weights relative to the heaviest particle cannot underflow to zero
+        double totalWeight = 0.0;
+        for (int i = 0; i < count; ++i) {
+            final int survivor = survivors[i];
+            weights[survivor] = Math.exp(logWeights[survivor] - maxLogWeight);
+            totalWeight += weights[survivor];
+        }
+
+        for (int i = 0; i < first; ++i)
+            ancestors[i] = i;
+
+        int j = 0;
+        double cumulativeWeight = weights[survivors[0]];
+        for (int i = first; i < particleCount; ++i) {
+            final double u = uniforms[i] * totalWeight;
+            while (u >= cumulativeWeight && j < count - 1)
+                cumulativeWeight += weights[survivors[++j]];
+            ancestors[i] = survivors[j];
+        }
+
+        for (int i = 0; i < particleCount; ++i)
+            states.copy(ancestors[i], statesBuffer, i);
+
+        final ParticleStorage temp = states;
+        states = statesBuffer;
+        statesBuffer = temp;
+
+        for (int i = 0; i < particleCount; ++i)
+            logWeights[i] = 0.0;
+
+    }
+
+    /**
+     * Draws {@code ancestors.length} ancestors in proportion to the weights
+     * {@code exp(logWeights)}, which must not all be zero, with the
+     * stratified uniforms {@code (i + u) / N} of systematic resampling.
+     */
+    public static void resampleSystematic(final double[] logWeights,
+                                          final double u,
+                                          final int[] ancestors) {
+
+        double maxLogWeight = Double.NEGATIVE_INFINITY;
+        for (final double logWeight : logWeights)
+            maxLogWeight = Math.max(maxLogWeight, logWeight);
+
+        double totalWeight = 0.0;
+        for (final double logWeight : logWeights)
+            totalWeight += Math.exp(logWeight - maxLogWeight);
+
+        int j = 0;
+        double cumulativeWeight = Math.exp(logWeights[0] - maxLogWeight);
+        for (int i = 0; i < ancestors.length; ++i) {
+            final double v = (i + u) / ancestors.length * totalWeight;
+            while (v >= cumulativeWeight && j < logWeights.length - 1)
+                cumulativeWeight += Math.exp(logWeights[++j] - maxLogWeight);
+            ancestors[i] = j;
+        }
+    }
+
+    /**
+     * Sorts the {@code count} particles listed in {@code particles} by their
+     * host signature: the guest counts of the hosts in node order, then the
+     * hosts of the guest lineages. Particles in similar states end up
+     * adjacent, as required to pair them with a low-discrepancy point set.
+     */
+    public void sort(final int[] particles, final int count) {
+        mergeSort(particles, 0, count);
+    }
+
+    private void mergeSort(final int[] particles,
+                           final int from,
+                           final int to) {
+        if (to - from < 2)
+            return;
+        final int middle = (from + to) >>> 1;
+        mergeSort(particles, from, middle);
+        mergeSort(particles, middle, to);
+        System.arraycopy(particles, from, order, from, to - from);
+        int i = from;
+        int j = middle;
+        for (int k = from; k < to; ++k) {
+            if (j == to || (i < middle && compare(order[i], order[j]) <= 0))
+                particles[k] = order[i++];
+            else
+                particles[k] = order[j++];
+        }
+    }
+
+    private int compare(final int a, final int b) {
+        for (int field = HEADER_LENGTH; field < stride; ++field) {
+            final int x = states.getInt(a, field);
+            final int y = states.getInt(b, field);
+            if (x != y)
+                return x < y ? -1 : 1;
+        }
+        return 0;
+    }
+
+}
@@ -31,6 +31,7 @@ import java.util.Map;
 import java.util.Set;
 
 import cophy.CophyUtils;
+import cophy.HostTreeIndex;
 import cophy.NodeRefTrait;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
@@ -49,6 +50,15 @@ import dr.xml.XMLParseException;
 import dr.xml.XMLSyntaxRule;
 
 /**
+ * A mapping of every guest node to a host node. Each change of host fires a
+ * model changed event carrying a {@link HostChangedEvent} and the number of
+ * the guest node, and marks the guest node dirty. The dirty nodes are those
+ * changed since the last accepted state: they are cleared on accept and
+ * restored on reject.
+ * <p>
+ * Rather than copying the whole mapping on every store, the first change to
+ * each guest node since the last store is journaled with its previous host
+ * and the journal is replayed on restore.
  *
  * @author Arman D. Bilge <armanbilge@gmail.com>
  *
@@ -65,7 +75,16 @@ public class Reconciliation extends AbstractModel implements TreeTraitProvider {
     protected boolean initialized = false;
     protected final boolean[] sampleable;
     protected int[] map;
-    protected int[] storedMap;
+
+    private final boolean[] journaled;
+    private final int[] journalNodes;
+    private final int[] journalHosts;
+    private int journalCount = 0;
+
+    private final boolean[] dirty;
+    private final int[] dirtyNodes;
+    private int dirtyCount = 0;
+    private int storedDirtyCount = 0;
 
     protected final TreeTraitProvider.Helper treeTraitProvider;
 
@@ -90,10 +109,16 @@ public class Reconciliation extends AbstractModel implements TreeTraitProvider {
         this.hostTraitName = hostTraitName;
 
         map = new int[guestTree.getNodeCount()];
-        storedMap = new int[guestTree.getNodeCount()];
+
+        journaled = new boolean[guestTree.getNodeCount()];
+        journalNodes = new int[guestTree.getNodeCount()];
+        journalHosts = new int[guestTree.getNodeCount()];
 
         sampleable = new boolean[guestTree.getNodeCount()];
 
+        dirty = new boolean[guestTree.getNodeCount()];
+        dirtyNodes = new int[guestTree.getNodeCount()];
+
         final NodeRefTrait trait = new NodeRefTrait(hostTraitName) {
             @Override
             public NodeRef getTrait(Tree tree, NodeRef node) {
@@ -109,8 +134,211 @@ public class Reconciliation extends AbstractModel implements TreeTraitProvider {
 
     }
 
+    /**
+     * Creates a reconciliation of {@code guestTree}, which must have the same
+     * node numbering as the guest tree of {@code reconciliation}, with the
+     * same hosts as {@code reconciliation}.
+     */
+    public Reconciliation(final Tree guestTree,
+                          final Reconciliation reconciliation) {
+        this(guestTree, reconciliation.hostTree, reconciliation.hostTraitName);
+        System.arraycopy(reconciliation.sampleable, 0, sampleable, 0, sampleable.length);
+        System.arraycopy(reconciliation.map, 0, map, 0, map.length);
+        initialized = reconciliation.initialized;
+    }
+
     public void initialize() {
 
+        initializeExternalNodes();
+
+        for (int i = 0; i < guestTree.getInternalNodeCount(); ++i) {
+            final NodeRef guestNode = guestTree.getInternalNode(i);
+            final double height = guestTree.getNodeHeight(guestNode);
+            final Set<NodeRef> potentialHosts =
+                    CophyUtils.getLineagesAtHeight(hostTree, height);
+            final NodeRef hostNode =
+                    CophyUtils.getRandomElement(potentialHosts);
+            setHost(guestNode, hostNode);
+        }
+
+        initialized = true;
+
+    }
+
+    /**
+     * Initializes the reconciliation to one of minimum total cost given the
+     * current node heights, by dynamic programming over the host lineages
+     * present at the height of each guest node. A guest node cospeciates
+     * when its height equals that of its host; every other internal guest
+     * node is a duplication. The children of a cospeciation begin on distinct
+     * children of its host, and those of a duplication on its host. A guest
+     * branch whose host is not descended from the host it begins on is a host
+     * switch, otherwise it incurs a loss for each host speciation it passes,
+     * as in the approximate likelihood.
+     *
+     * @return the total cost of the reconciliation
+     */
+    public double initializeParsimony(final double duplicationCost,
+                                    final double hostSwitchCost,
+                                    final double lossCost) {
+
+        initializeExternalNodes();
+
+        final HostTreeIndex index = HostTreeIndex.getIndex(hostTree);
+        final int hostCount = index.getNodeCount();
+        final int[] depths = new int[hostCount];
+        final boolean[][] ancestors = new boolean[hostCount][hostCount];
+        for (int i = 0; i < hostCount; ++i) {
+            ancestors[i][i] = true;
+            for (int p = index.getParent(i); p >= 0; p = index.getParent(p)) {
+                ancestors[i][p] = true;
+                ++depths[i];
+            }
+        }
+
+        final int nodeCount = guestTree.getNodeCount();
+        final int[] order = new int[nodeCount];
+        final int[] stack = new int[nodeCount];
+        int stackSize = 0;
+        stack[stackSize++] = guestTree.getRoot().getNumber();
+        for (int i = 0; stackSize > 0; ++i) {
+            final NodeRef guestNode = guestTree.getNode(stack[--stackSize]);
+            order[i] = guestNode.getNumber();
+            for (int j = 0; j < guestTree.getChildCount(guestNode); ++j)
+                stack[stackSize++] =
+                        guestTree.getChild(guestNode, j).getNumber();
+        }
+
+        // costs[g][k] is the minimum cost of the subtree below guest node g
+        // when it is on host candidates[g][k], attained with its children on
+        // their candidates choices[g][2k] and choices[g][2k + 1]
+        final int[][] candidates = new int[nodeCount][];
+        final double[][] costs = new double[nodeCount][];
+        final int[][] choices = new int[nodeCount][];
+        for (int i = nodeCount - 1; i >= 0; --i) {
+            final int g = order[i];
+            final NodeRef guestNode = guestTree.getNode(g);
+            if (guestTree.isExternal(guestNode)) {
+                candidates[g] = new int[]{map[g]};
+                costs[g] = new double[]{0.0};
+                continue;
+            }
+            final double height = guestTree.getNodeHeight(guestNode);
+            candidates[g] = index.getLineagesAtHeight(height);
+            costs[g] = new double[candidates[g].length];
+            choices[g] = new int[2 * candidates[g].length];
+            final double[][] sideCosts = new double[2][2];
+            final int[][] sideChoices = new int[2][2];
+            for (int k = 0; k < candidates[g].length; ++k) {
+                final int host = candidates[g][k];
+                final NodeRef hostNode = hostTree.getNode(host);
+                final boolean cospeciates = !hostTree.isExternal(hostNode)
+                        && height == index.getNodeHeight(host);
+                if (!cospeciates) {
+                    double cost = duplicationCost;
+                    for (int j = 0; j < 2; ++j) {
+                        final int c =
+                                guestTree.getChild(guestNode, j).getNumber();
+                        cost += getMinBranchCost(host, c, candidates, costs,
+                                                 depths, ancestors,
+                                                 hostSwitchCost, lossCost,
+                                                 sideChoices[0], j);
+                        choices[g][2 * k + j] = sideChoices[0][j];
+                    }
+                    costs[g][k] = cost;
+                    continue;
+                }
+                // the two children of a cospeciation begin on distinct
+                // children of the host, so cost both assignments of sides
+                for (int j = 0; j < 2; ++j) {
+                    final int c = guestTree.getChild(guestNode, j).getNumber();
+                    for (int s = 0; s < 2; ++s) {
+                        final int side =
+                                hostTree.getChild(hostNode, s).getNumber();
+                        sideCosts[j][s] = getMinBranchCost(side, c, candidates,
+                                                           costs, depths,
+                                                           ancestors,
+                                                           hostSwitchCost,
+                                                           lossCost,
+                                                           sideChoices[j], s);
+                    }
+                }
+                final double straight = sideCosts[0][0] + sideCosts[1][1];
+                final double swapped = sideCosts[0][1] + sideCosts[1][0];
+                final int swap = straight <= swapped ? 0 : 1;
+                costs[g][k] = Math.min(straight, swapped);
+                choices[g][2 * k] = sideChoices[0][swap];
+                choices[g][2 * k + 1] = sideChoices[1][1 - swap];
+            }
+        }
+
+        final int root = guestTree.getRoot().getNumber();
+        final int hostRoot = hostTree.getRoot().getNumber();
+        final int[] chosen = new int[nodeCount];
+        double minCost = Double.POSITIVE_INFINITY;
+        for (int k = 0; k < candidates[root].length; ++k) {
+            final double cost = costs[root][k]
+                    + getBranchCost(hostRoot, candidates[root][k], depths,
+                                    ancestors, hostSwitchCost, lossCost);
+            if (cost < minCost) {
+                minCost = cost;
+                chosen[root] = k;
+            }
+        }
+
+        for (int i = 0; i < nodeCount; ++i) {
+            final int g = order[i];
+            final NodeRef guestNode = guestTree.getNode(g);
+            if (guestTree.isExternal(guestNode))
+                continue;
+            setHost(guestNode, hostTree.getNode(candidates[g][chosen[g]]));
+            for (int j = 0; j < 2; ++j)
+                chosen[guestTree.getChild(guestNode, j).getNumber()] =
+                        choices[g][2 * chosen[g] + j];
+        }
+
+        initialized = true;
+
+        return minCost;
+
+    }
+
+    private static double getMinBranchCost(final int startHost,
+                                           final int c,
+                                           final int[][] candidates,
+                                           final double[][] costs,
+                                           final int[] depths,
+                                           final boolean[][] ancestors,
+                                           final double hostSwitchCost,
+                                           final double lossCost,
+                                           final int[] choice,
+                                           final int i) {
+        double minCost = Double.POSITIVE_INFINITY;
+        for (int l = 0; l < candidates[c].length; ++l) {
+            final double cost = costs[c][l]
+                    + getBranchCost(startHost, candidates[c][l], depths,
+                                    ancestors, hostSwitchCost, lossCost);
+            if (cost < minCost) {
+                minCost = cost;
+                choice[i] = l;
+            }
+        }
+        return minCost;
+    }
+
+    private static double getBranchCost(final int startHost,
+                                        final int host,
+                                        final int[] depths,
+                                        final boolean[][] ancestors,
+                                        final double hostSwitchCost,
+                                        final double lossCost) {
+        if (ancestors[host][startHost])
+            return (depths[host] - depths[startHost]) * lossCost;
+        return hostSwitchCost;
+    }
+
+    private void initializeExternalNodes() {
+
         final Map<Taxon,NodeRef> hostTaxa2Nodes =
                 new HashMap<Taxon,NodeRef>(hostTree.getTaxonCount());
         for (int i = 0; i < hostTree.getExternalNodeCount(); ++i) {
@@ -139,21 +367,17 @@ public class Reconciliation extends AbstractModel implements TreeTraitProvider {
             setHost(guestNode, hostNode);
         }
 
-        for (int i = 0; i < guestTree.getInternalNodeCount(); ++i) {
-            final NodeRef guestNode = guestTree.getInternalNode(i);
-            final double height = guestTree.getNodeHeight(guestNode);
-            final Set<NodeRef> potentialHosts =
-                    CophyUtils.getLineagesAtHeight(hostTree, height);
-            final NodeRef hostNode =
-                    CophyUtils.getRandomElement(potentialHosts);
-            setHost(guestNode, hostNode);
-        }
-
         for (int i = 0; i < sampleable.length; ++i)
             sampleable[i] = !guestTree.isExternal(guestTree.getNode(i));
 
-        initialized = true;
+    }
 
+    public Tree getGuestTree() {
+        return guestTree;
+    }
+
+    public Tree getHostTree() {
+        return hostTree;
     }
 
     public NodeRef getHost(final NodeRef guest) {
@@ -164,7 +388,78 @@ public class Reconciliation extends AbstractModel implements TreeTraitProvider {
         if (initialized && !sampleable[guest.getNumber()])
             throw new RuntimeException("Cannot set host for node "
                                        + guest + ".");
-        map[guest.getNumber()] = host.getNumber();
+        final int g = guest.getNumber();
+        final int oldHost = map[g];
+        journal(g);
+        map[g] = host.getNumber();
+        markDirty(g);
+        fireModelChanged(new HostChangedEvent(g, oldHost, map[g]), g);
+    }
+
+    private void journal(final int guest) {
+        if (!journaled[guest]) {
+            journaled[guest] = true;
+            journalNodes[journalCount] = guest;
+            journalHosts[journalCount] = map[guest];
+            ++journalCount;
+        }
+    }
+
+    private void clearJournal() {
+        while (journalCount > 0)
+            journaled[journalNodes[--journalCount]] = false;
+    }
+
+    private void markDirty(final int guest) {
+        if (!dirty[guest]) {
+            dirty[guest] = true;
+            dirtyNodes[dirtyCount++] = guest;
+        }
+    }
+
+    /**
+     * @return whether the host of {@code guest} has changed since the last
+     *         accepted state
+     */
+    public boolean isDirty(final NodeRef guest) {
+        return dirty[guest.getNumber()];
+    }
+
+    /**
+     * @return the number of guest nodes whose hosts have changed since the
+     *         last accepted state
+     */
+    public int getDirtyNodeCount() {
+        return dirtyCount;
+    }
+
+    /**
+     * @return the {@code k}th guest node whose host has changed since the
+     *         last accepted state, in order of first change
+     */
+    public NodeRef getDirtyNode(final int k) {
+        return guestTree.getNode(dirtyNodes[k]);
+    }
+
+    /**
+     * @return the number of the host of every guest node, by guest node number
+     */
+    public int[] getHostNumbers() {
+        return map.clone();
+    }
+
+    /**
+     * Sets the host of every guest node from {@code hosts}, as returned by
+     * {@link #getHostNumbers()}.
+     */
+    public void setHostNumbers(final int[] hosts) {
+        for (int i = 0; i < map.length; ++i) {
+            if (map[i] != hosts[i]) {
+                journal(i);
+                map[i] = hosts[i];
+                markDirty(i);
+            }
+        }
         fireModelChanged();
     }
 
@@ -185,19 +480,68 @@ public class Reconciliation extends AbstractModel implements TreeTraitProvider {
 
     @Override
     protected void storeState() {
-        System.arraycopy(map, 0, storedMap, 0, map.length);
+        clearJournal();
+        storedDirtyCount = dirtyCount;
     }
 
     @Override
     protected void restoreState() {
-        int[] temp = map;
-        map = storedMap;
-        storedMap = temp;
+        while (journalCount > 0) {
+            --journalCount;
+            map[journalNodes[journalCount]] = journalHosts[journalCount];
+            journaled[journalNodes[journalCount]] = false;
+        }
+        while (dirtyCount > storedDirtyCount)
+            dirty[dirtyNodes[--dirtyCount]] = false;
     }
 
     @Override
     protected void acceptState() {
-        // Nothing to do
+        clearJournal();
+        while (dirtyCount > 0)
+            dirty[dirtyNodes[--dirtyCount]] = false;
+        storedDirtyCount = 0;
+    }
+
+    /**
+     * The payload of the model changed event fired when the host of a single
+     * guest node changes.
+     */
+    public static final class HostChangedEvent {
+
+        private final int guest;
+        private final int oldHost;
+        private final int newHost;
+
+        public HostChangedEvent(final int guest,
+                                final int oldHost,
+                                final int newHost) {
+            this.guest = guest;
+            this.oldHost = oldHost;
+            this.newHost = newHost;
+        }
+
+        /**
+         * @return the number of the guest node
+         */
+        public int getGuest() {
+            return guest;
+        }
+
+        /**
+         * @return the number of the previous host
+         */
+        public int getOldHost() {
+            return oldHost;
+        }
+
+        /**
+         * @return the number of the new host
+         */
+        public int getNewHost() {
+            return newHost;
+        }
+
     }
 
     @SuppressWarnings("rawtypes")
@@ -212,12 +556,20 @@ public class Reconciliation extends AbstractModel implements TreeTraitProvider {
         return treeTraitProvider.getTreeTrait(key);
     }
 
+    public static enum Initialization {
+        RANDOM, PARSIMONY
+    }
+
     public static final AbstractXMLObjectParser PARSER =
             new AbstractXMLObjectParser() {
 
                 private static final String GUEST = "guest";
                 private static final String HOST = "host";
                 private static final String HOST_TRAIT_NAME = "hostTraitName";
+                private static final String INITIALIZATION = "initialization";
+                private static final String DUPLICATION_COST = "duplicationCost";
+                private static final String HOST_SWITCH_COST = "hostSwitchCost";
+                private static final String LOSS_COST = "lossCost";
 
                 @Override
                 public String getParserName() {
@@ -234,13 +586,37 @@ public class Reconciliation extends AbstractModel implements TreeTraitProvider {
                             (Tree) xo.getChild(HOST).getChild(Tree.class);
                     final String hostTraitName =
                             xo.getStringAttribute(HOST_TRAIT_NAME);
+                    final String initializationName =
+                            xo.getAttribute(INITIALIZATION, "random");
+                    final Initialization initialization;
+                    try {
+                        initialization = Initialization
+                                .valueOf(initializationName.toUpperCase());
+                    } catch (final IllegalArgumentException e) {
+                        throw new XMLParseException("Unknown initialization "
+                                                    + initializationName + ".");
+                    }
+                    final double duplicationCost =
+                            xo.getAttribute(DUPLICATION_COST, 2.0);
+                    final double hostSwitchCost =
+                            xo.getAttribute(HOST_SWITCH_COST, 3.0);
+                    final double lossCost = xo.getAttribute(LOSS_COST, 1.0);
+                    if (duplicationCost < 0.0 || hostSwitchCost < 0.0
+                            || lossCost < 0.0)
+                        throw new XMLParseException("Reconciliation costs "
+                                                    + "must be non-negative.");
 
                     final Reconciliation reconciliation =
                             new Reconciliation(guestTree,
                                                hostTree,
                                                hostTraitName);
 
-                    reconciliation.initialize();
+                    if (initialization == Initialization.PARSIMONY)
+                        reconciliation.initializeParsimony(duplicationCost,
+                                                           hostSwitchCost,
+                                                           lossCost);
+                    else
+                        reconciliation.initialize();
 
                     return reconciliation;
                 }
@@ -249,7 +625,11 @@ public class Reconciliation extends AbstractModel implements TreeTraitProvider {
                 private final XMLSyntaxRule[] rules = {
                         new ElementRule(GUEST, Tree.class),
                         new ElementRule(HOST, Tree.class),
-                        AttributeRule.newStringRule(HOST_TRAIT_NAME)
+                        AttributeRule.newStringRule(HOST_TRAIT_NAME),
+                        AttributeRule.newStringRule(INITIALIZATION, true),
+                        AttributeRule.newDoubleRule(DUPLICATION_COST, true),
+                        AttributeRule.newDoubleRule(HOST_SWITCH_COST, true),
+                        AttributeRule.newDoubleRule(LOSS_COST, true)
                 };
                 @Override
                 public XMLSyntaxRule[] getSyntaxRules() {
@@ -0,0 +1,305 @@
+/*
+ * ReconciliationSummaryLogger.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.model;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.inference.loggers.Logger;
+import dr.xml.AbstractXMLObjectParser;
+import dr.xml.AttributeRule;
+import dr.xml.ElementRule;
+import dr.xml.XMLObject;
+import dr.xml.XMLParseException;
+import dr.xml.XMLSyntaxRule;
+
+/**
+ * Summarizes the posterior distribution of a reconciliation while the chain
+ * runs, instead of logging its host trait into tree files. For each clade of
+ * the guest tree it counts the samples containing the clade, those in which
+ * its root cospeciates and those in which its root is on each host, and
+ * periodically rewrites a summary of the frequencies. Clades are keyed by
+ * their tips, so the summary remains valid when the guest topology is
+ * sampled.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class ReconciliationSummaryLogger implements Logger {
+
+    public static final String RECONCILIATION_SUMMARY_LOGGER =
+            "reconciliationSummaryLogger";
+
+    private final Reconciliation reconciliation;
+    private final Tree guestTree;
+    private final Tree hostTree;
+    private final String fileName;
+    private final long logEvery;
+    private final long summaryEvery;
+
+    private final Map<BitSet,Integer> cladesToIndices;
+    private final List<BitSet> clades;
+    private int[] cladeCounts;
+    private int[] cospeciationCounts;
+    private int[][] hostCounts;
+    private int sampleCount = 0;
+
+    private final int[] order;
+    private final int[] stack;
+    private final BitSet[] nodeClades;
+
+    public ReconciliationSummaryLogger(final Reconciliation reconciliation,
+                                       final Tree guestTree,
+                                       final Tree hostTree,
+                                       final String fileName,
+                                       final long logEvery,
+                                       final long summaryEvery) {
+
+        this.reconciliation = reconciliation;
+        this.guestTree = guestTree;
+        this.hostTree = hostTree;
+        this.fileName = fileName;
+        this.logEvery = logEvery;
+        this.summaryEvery = summaryEvery;
+
+        cladesToIndices = new HashMap<BitSet,Integer>();
+        clades = new ArrayList<BitSet>();
+        final int capacity = guestTree.getInternalNodeCount();
+        cladeCounts = new int[capacity];
+        cospeciationCounts = new int[capacity];
+        hostCounts = new int[capacity][];
+
+        order = new int[guestTree.getNodeCount()];
+        stack = new int[guestTree.getNodeCount()];
+        nodeClades = new BitSet[guestTree.getNodeCount()];
+        for (int i = 0; i < nodeClades.length; ++i)
+            nodeClades[i] = new BitSet(guestTree.getExternalNodeCount());
+    }
+
+    @Override
+    public void startLogging() {
+        // Nothing to do
+    }
+
+    @Override
+    public void log(final long state) {
+        if (state % logEvery == 0)
+            sample();
+        if (summaryEvery > 0 && state > 0 && state % summaryEvery == 0)
+            writeSummary();
+    }
+
+    @Override
+    public void stopLogging() {
+        writeSummary();
+    }
+
+    private void sample() {
+
+        int stackSize = 0;
+        stack[stackSize++] = guestTree.getRoot().getNumber();
+        for (int i = 0; stackSize > 0; ++i) {
+            final NodeRef guestNode = guestTree.getNode(stack[--stackSize]);
+            order[i] = guestNode.getNumber();
+            for (int j = 0; j < guestTree.getChildCount(guestNode); ++j)
+                stack[stackSize++] =
+                        guestTree.getChild(guestNode, j).getNumber();
+        }
+
+        for (int i = order.length - 1; i >= 0; --i) {
+
+            final NodeRef guestNode = guestTree.getNode(order[i]);
+            final BitSet clade = nodeClades[order[i]];
+            clade.clear();
+            if (guestTree.isExternal(guestNode)) {
+                clade.set(order[i]);
+                continue;
+            }
+            for (int j = 0; j < guestTree.getChildCount(guestNode); ++j)
+                clade.or(nodeClades[guestTree.getChild(guestNode, j)
+                        .getNumber()]);
+
+            final int c = getCladeIndex(clade);
+            final NodeRef hostNode = reconciliation.getHost(guestNode);
+            ++cladeCounts[c];
+            ++hostCounts[c][hostNode.getNumber()];
+            if (guestTree.getNodeHeight(guestNode)
+                    == hostTree.getNodeHeight(hostNode))
+                ++cospeciationCounts[c];
+        }
+
+        ++sampleCount;
+    }
+
+    private int getCladeIndex(final BitSet clade) {
+
+        final Integer index = cladesToIndices.get(clade);
+        if (index != null)
+            return index;
+
+        final int c = clades.size();
+        if (c == cladeCounts.length) {
+            final int capacity = 2 * c;
+            final int[] newCladeCounts = new int[capacity];
+            System.arraycopy(cladeCounts, 0, newCladeCounts, 0, c);
+            cladeCounts = newCladeCounts;
+            final int[] newCospeciationCounts = new int[capacity];
+            System.arraycopy(cospeciationCounts, 0, newCospeciationCounts, 0, c);
+            cospeciationCounts = newCospeciationCounts;
+            final int[][] newHostCounts = new int[capacity][];
+            System.arraycopy(hostCounts, 0, newHostCounts, 0, c);
+            hostCounts = newHostCounts;
+        }
+        // The clade of a node is reused by the next sample, so keep a copy
+        final BitSet key = (BitSet) clade.clone();
+        hostCounts[c] = new int[hostTree.getNodeCount()];
+        clades.add(key);
+        cladesToIndices.put(key, c);
+        return c;
+    }
+
+    private void writeSummary() {
+
+        final PrintWriter writer;
+        try {
+            writer = new PrintWriter(new FileWriter(fileName));
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not write " + fileName + ".");
+        }
+
+        writer.println("clade\tfrequency\tcospeciation\tbirth\thosts");
+        for (int c = 0; c < clades.size(); ++c) {
+
+            final BitSet clade = clades.get(c);
+            final StringBuilder taxa = new StringBuilder("{");
+            for (int i = clade.nextSetBit(0); i >= 0;
+                 i = clade.nextSetBit(i + 1)) {
+                if (taxa.length() > 1)
+                    taxa.append(',');
+                taxa.append(guestTree.getNodeTaxon(guestTree.getNode(i))
+                        .getId());
+            }
+            taxa.append('}');
+
+            final double count = cladeCounts[c];
+            writer.print(taxa + "\t" + count / sampleCount
+                         + "\t" + cospeciationCounts[c] / count
+                         + "\t" + (count - cospeciationCounts[c]) / count
+                         + "\t");
+
+            boolean first = true;
+            for (int h = 0; h < hostCounts[c].length; ++h) {
+                if (hostCounts[c][h] == 0)
+                    continue;
+                if (!first)
+                    writer.print(',');
+                first = false;
+                writer.print(getHostLabel(h) + "=" + hostCounts[c][h] / count);
+            }
+            writer.println();
+        }
+        writer.close();
+    }
+
+    private String getHostLabel(final int host) {
+        final NodeRef hostNode = hostTree.getNode(host);
+        return hostTree.isExternal(hostNode)
+                ? hostTree.getNodeTaxon(hostNode).getId()
+                : Integer.toString(host);
+    }
+
+    public static final AbstractXMLObjectParser PARSER =
+            new AbstractXMLObjectParser() {
+
+                private static final String FILE_NAME = "fileName";
+                private static final String LOG_EVERY = "logEvery";
+                private static final String SUMMARY_EVERY = "summaryEvery";
+
+                @Override
+                public String getParserName() {
+                    return RECONCILIATION_SUMMARY_LOGGER;
+                }
+
+                @Override
+                public Object parseXMLObject(final XMLObject xo)
+                        throws XMLParseException {
+
+                    final Reconciliation reconciliation =
+                            (Reconciliation) xo.getChild(Reconciliation.class);
+                    final String fileName = xo.getStringAttribute(FILE_NAME);
+                    final int logEvery = xo.getIntegerAttribute(LOG_EVERY);
+                    if (logEvery <= 0)
+                        throw new XMLParseException(LOG_EVERY
+                                                    + " must be positive.");
+                    final int summaryEvery =
+                            xo.getAttribute(SUMMARY_EVERY, 100 * logEvery);
+                    if (summaryEvery < 0)
+                        throw new XMLParseException(SUMMARY_EVERY
+                                                    + " must be non-negative.");
+
+                    return new ReconciliationSummaryLogger(
+                            reconciliation,
+                            reconciliation.getGuestTree(),
+                            reconciliation.getHostTree(),
+                            fileName,
+                            logEvery,
+                            summaryEvery);
+                }
+
+                private final XMLSyntaxRule[] rules = {
+                        new ElementRule(Reconciliation.class),
+                        AttributeRule.newStringRule(FILE_NAME),
+                        AttributeRule.newIntegerRule(LOG_EVERY),
+                        AttributeRule.newIntegerRule(SUMMARY_EVERY, true)
+                };
+                @Override
+                public XMLSyntaxRule[] getSyntaxRules() {
+                    return rules;
+                }
+
+                @Override
+                public String getParserDescription() {
+                    return "Summarizes the posterior host and event "
+                            + "frequencies of each guest clade.";
+                }
+
+                @Override
+                public Class<ReconciliationSummaryLogger> getReturnType() {
+                    return ReconciliationSummaryLogger.class;
+                }
+
+    };
+
+}
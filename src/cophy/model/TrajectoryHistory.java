@@ -0,0 +1,103 @@
+/*
+ * TrajectoryHistory.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.model;
+
+import java.util.Arrays;
+
+/**
+ * The host assignments of guest lineages along a single trajectory, in the
+ * order in which they occurred: each event records that at {@code height} the
+ * lineage above guest node {@code guest} was in host node {@code host}.
+ * <p>
+ * Only the observed lineages, those above nodes of the guest tree, are
+ * recorded, and only their hosts: the type of the event that moved a lineage
+ * (cospeciation, host switch or speciation) is not kept, and the lineages
+ * that leave no sampled descendants are tracked by the particles as counts
+ * per host only, so their duplications, switches and losses do not appear.
+ * The history is therefore a reconciliation of the guest tree through time
+ * rather than a complete record of the simulated events.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class TrajectoryHistory {
+
+    private double[] heights = new double[16];
+    private int[] guests = new int[16];
+    private int[] hosts = new int[16];
+    private int size = 0;
+
+    public void clear() {
+        size = 0;
+    }
+
+    public void add(final double height, final int guest, final int host) {
+        if (size == heights.length) {
+            heights = Arrays.copyOf(heights, 2 * size);
+            guests = Arrays.copyOf(guests, 2 * size);
+            hosts = Arrays.copyOf(hosts, 2 * size);
+        }
+        heights[size] = height;
+        guests[size] = guest;
+        hosts[size] = host;
+        ++size;
+    }
+
+    public int getEventCount() {
+        return size;
+    }
+
+    public double getHeight(final int event) {
+        return heights[event];
+    }
+
+    public int getGuest(final int event) {
+        return guests[event];
+    }
+
+    public int getHost(final int event) {
+        return hosts[event];
+    }
+
+    /**
+     * @return the hosts visited by the lineage above {@code guest} and the
+     *         heights at which it entered them, as {@code {{host,height},...}}
+     */
+    public String getLineageHistory(final int guest) {
+        final StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < size; ++i) {
+            if (guests[i] == guest) {
+                if (sb.length() > 1)
+                    sb.append(',');
+                sb.append('{').append(hosts[i]).append(',')
+                        .append(heights[i]).append('}');
+            }
+        }
+        return sb.append('}').toString();
+    }
+
+}
@@ -26,123 +26,284 @@
 
 package cophy.model;
 
-import cophy.particlefiltration.Copyable;
+import cophy.particlefiltration.UniformSource;
 import dr.evolution.tree.NodeRef;
-
-import java.util.*;
+import dr.evolution.tree.Tree;
 
 /**
+ * A view of the trajectory of a single particle in a
+ * {@link ParticlePopulation}. Views are cursors: the same instance can be
+ * moved across the population with {@link #setParticle(int)}.
  *
  * @author Arman D. Bilge <armanbilge@gmail.com>
  *
  */
-public class TrajectoryState implements Copyable {
+public class TrajectoryState {
+
+    private final ParticlePopulation population;
+    private final Tree hostTree;
+    private final Tree guestTree;
+    private int particle;
+    private ParticleGenealogy genealogy = null;
+    private UniformSource uniforms = UniformSource.PSEUDO_RANDOM;
+
+    public TrajectoryState(final ParticlePopulation population) {
+        this(population, 0);
+    }
+
+    public TrajectoryState(final ParticlePopulation population,
+                           final int particle) {
+        this.population = population;
+        this.hostTree = population.getHostTree();
+        this.guestTree = population.getGuestTree();
+        this.particle = particle;
+    }
 
-    private final Map<NodeRef,Integer> guestCounts = new HashMap<NodeRef,Integer>();
-    private int guestCount;
-    private final Map<NodeRef,NodeRef> guestLineageHosts = new HashMap<NodeRef,NodeRef>();
-    private double height;
+    public ParticlePopulation getPopulation() {
+        return population;
+    }
 
-    public TrajectoryState(final double origin, final NodeRef guest, final NodeRef host) {
-        setHeight(origin);
-        increment(host);
-        setGuestLineageHost(guest, host);
+    public int getParticle() {
+        return particle;
     }
 
-    private TrajectoryState() {}
+    public void setParticle(final int particle) {
+        this.particle = particle;
+    }
+
+    /**
+     * Records every host assignment of a guest lineage made through this view
+     * in {@code genealogy}, or stops recording if it is {@code null}.
+     */
+    public void setGenealogy(final ParticleGenealogy genealogy) {
+        this.genealogy = genealogy;
+    }
+
+    /**
+     * @return the variates from which the random draws of the current
+     *         particle are made
+     */
+    public UniformSource getUniformSource() {
+        return uniforms;
+    }
+
+    public void setUniformSource(final UniformSource uniforms) {
+        this.uniforms = uniforms;
+    }
+
+    public void initialize(final double origin,
+                           final NodeRef guest,
+                           final NodeRef host) {
+        population.initialize(particle,
+                              origin,
+                              guest.getNumber(),
+                              host.getNumber());
+        if (genealogy != null)
+            genealogy.record(particle, origin, guest.getNumber(), host.getNumber());
+    }
 
     public double getHeight() {
-        return height;
+        return population.getHeight(particle);
     }
 
     public void setHeight(final double height) {
-        this.height = height;
+        population.setHeight(particle, height);
     }
 
     public void forwardTime(final double time) {
-        height -= time;
+        population.setHeight(particle, getHeight() - time);
     }
 
     public int getHostCount() {
-        return guestCounts.size();
+        return population.getHeader(particle, ParticlePopulation.HOST_COUNT);
     }
 
-    public Set<NodeRef> getHosts() {
-        return guestCounts.keySet();
+    /**
+     * @return the number of the {@code k}th live host, in node order
+     */
+    public int getHost(final int k) {
+        int remaining = k;
+        for (int host = 0; host < population.getHostNodeCount(); ++host) {
+            if (population.getGuestCount(particle, host)
+                    != ParticlePopulation.NONE && remaining-- == 0)
+                return host;
+        }
+        throw new InvalidTrajectoryException("No live host " + k + ".");
+    }
+
+    /**
+     * @return the number of the host of the {@code k}th guest, with guests
+     *         ordered by the node order of their hosts
+     */
+    public int getHostOfGuest(final int k) {
+        int remaining = k;
+        for (int host = 0; host < population.getHostNodeCount(); ++host) {
+            remaining -= Math.max(population.getGuestCount(particle, host), 0);
+            if (remaining < 0)
+                return host;
+        }
+        throw new InvalidTrajectoryException("No guest " + k + ".");
     }
 
     public int getGuestCount() {
-        return guestCount;
+        return population.getHeader(particle, ParticlePopulation.GUEST_COUNT);
     }
 
-    public Map<NodeRef,Integer> getGuestCounts() {
-        return Collections.unmodifiableMap(guestCounts);
+    /**
+     * @return the sum over hosts of the guest count times the host weight of
+     *         the population, maintained as the counts change
+     */
+    public double getWeightedGuestCount() {
+        if (population.getHostWeights() == null)
+            return getGuestCount();
+        return population.getWeightedGuestCount(particle);
+    }
+
+    /**
+     * @return the number of the host of a guest drawn in proportion to the
+     *         host weights of the population with the uniform variate
+     *         {@code u}
+     */
+    public int getHostOfWeightedGuest(final double u) {
+        final double[] hostWeights = population.getHostWeights();
+        if (hostWeights == null)
+            return getHostOfGuest(Math.min((int) (u * getGuestCount()), getGuestCount() - 1));
+        double remaining = u * population.getWeightedGuestCount(particle);
+        int last = -1;
+        for (int host = 0; host < population.getHostNodeCount(); ++host) {
+            final int count = population.getGuestCount(particle, host);
+            if (count > 0) {
+                last = host;
+                remaining -= count * hostWeights[host];
+                if (remaining < 0.0)
+                    return host;
+            }
+        }
+        if (last < 0)
+            throw new InvalidTrajectoryException("No guests.");
+        return last;
     }
 
     public int getGuestCount(final NodeRef host) {
-        return guestCounts.containsKey(host) ? guestCounts.get(host) : 0;
+        return getGuestCount(host.getNumber());
+    }
+
+    public int getGuestCount(final int host) {
+        return Math.max(population.getGuestCount(particle, host), 0);
     }
 
     public void setGuestCount(final NodeRef host, final int count) {
-        guestCounts.put(host, count);
-        guestCount += count;
+        final int h = host.getNumber();
+        final int previous = population.getGuestCount(particle, h);
+        if (previous == ParticlePopulation.NONE) {
+            addHeader(ParticlePopulation.HOST_COUNT, 1);
+            addWeightedGuests(h, count);
+        } else {
+            addHeader(ParticlePopulation.GUEST_COUNT, -previous);
+            addWeightedGuests(h, count - previous);
+        }
+        population.setGuestCount(particle, h, count);
+        addHeader(ParticlePopulation.GUEST_COUNT, count);
     }
 
     public int removeGuests(final NodeRef host) {
-        final int n = getGuestCount(host);
-        guestCount -= n;
-        guestCounts.remove(host);
+        final int h = host.getNumber();
+        final int n = population.getGuestCount(particle, h);
+        if (n == ParticlePopulation.NONE)
+            return 0;
+        addHeader(ParticlePopulation.GUEST_COUNT, -n);
+        addHeader(ParticlePopulation.HOST_COUNT, -1);
+        addWeightedGuests(h, -n);
+        population.setGuestCount(particle, h, ParticlePopulation.NONE);
         return n;
     }
 
     public void increment(final NodeRef host) {
-        final int n = getGuestCount(host);
-        guestCounts.put(host, n+1);
-        ++guestCount;
+        final int h = host.getNumber();
+        final int n = population.getGuestCount(particle, h);
+        if (n == ParticlePopulation.NONE) {
+            addHeader(ParticlePopulation.HOST_COUNT, 1);
+            population.setGuestCount(particle, h, 1);
+        } else {
+            population.setGuestCount(particle, h, n + 1);
+        }
+        addHeader(ParticlePopulation.GUEST_COUNT, 1);
+        addWeightedGuests(h, 1);
     }
 
     public void decrement(final NodeRef host) {
-        final int n = getGuestCount(host);
-        if (n == 0)
+        final int h = host.getNumber();
+        final int n = population.getGuestCount(particle, h);
+        if (n <= 0)
             throw new InvalidTrajectoryException("Cannot have a negative number of guests.");
-        guestCounts.put(host, n - 1);
-        --guestCount;
+        population.setGuestCount(particle, h, n - 1);
+        addHeader(ParticlePopulation.GUEST_COUNT, -1);
+        addWeightedGuests(h, -1);
+    }
+
+    private void addWeightedGuests(final int host, final int count) {
+        final double[] hostWeights = population.getHostWeights();
+        if (hostWeights != null && count != 0)
+            population.setWeightedGuestCount(particle,
+                    population.getWeightedGuestCount(particle) + count * hostWeights[host]);
+    }
+
+    private void addHeader(final int field, final int value) {
+        population.setHeader(particle,
+                             field,
+                             population.getHeader(particle, field) + value);
     }
 
     public int getGuestLineageCount(final NodeRef host) {
+        final int h = host.getNumber();
         int count = 0;
-        for (final Map.Entry<NodeRef,NodeRef> entry : guestLineageHosts.entrySet()) {
-            if (entry.getValue().equals(host))
+        for (int guest = 0; guest < population.getGuestNodeCount(); ++guest) {
+            if (population.getGuestLineageHost(particle, guest) == h)
                 ++count;
         }
         return count;
     }
 
-    public Set<NodeRef> getGuestLineages(final NodeRef host) {
-        final Set<NodeRef> lineages = new HashSet<NodeRef>();
-        for (final Map.Entry<NodeRef,NodeRef> entry : guestLineageHosts.entrySet()) {
-            if (entry.getValue().equals(host))
-                lineages.add(entry.getKey());
+    /**
+     * @return the {@code k}th guest lineage in {@code host}, in node order
+     */
+    public NodeRef getGuestLineage(final NodeRef host, final int k) {
+        final int h = host.getNumber();
+        int remaining = k;
+        for (int guest = 0; guest < population.getGuestNodeCount(); ++guest) {
+            if (population.getGuestLineageHost(particle, guest) == h
+                    && remaining-- == 0)
+                return guestTree.getNode(guest);
         }
-        return lineages;
+        throw new InvalidTrajectoryException("No guest lineage " + k
+                                             + " in host " + h + ".");
+    }
+
+    public int getGuestNodeCount() {
+        return population.getGuestNodeCount();
+    }
+
+    public int getGuestLineageHost(final int guest) {
+        return population.getGuestLineageHost(particle, guest);
+    }
+
+    public void setGuestLineageHost(final int guest, final int host) {
+        population.setGuestLineageHost(particle, guest, host);
+        if (genealogy != null && host != ParticlePopulation.NONE)
+            genealogy.record(particle, getHeight(), guest, host);
     }
 
     public NodeRef getGuestLineageHost(final NodeRef guest) {
-        return guestLineageHosts.get(guest);
+        final int host = getGuestLineageHost(guest.getNumber());
+        return host != ParticlePopulation.NONE ? hostTree.getNode(host) : null;
     }
 
     public void setGuestLineageHost(final NodeRef guest, final NodeRef host) {
-        guestLineageHosts.put(guest, host);
+        setGuestLineageHost(guest.getNumber(), host.getNumber());
     }
 
-    @Override
-    public TrajectoryState copy() {
-        final TrajectoryState copy = new TrajectoryState();
-        copy.guestCounts.putAll(guestCounts);
-        copy.guestCount = guestCount;
-        copy.guestLineageHosts.putAll(guestLineageHosts);
-        copy.height = height;
-        return copy;
+    public void removeGuestLineage(final NodeRef guest) {
+        setGuestLineageHost(guest.getNumber(), ParticlePopulation.NONE);
     }
 
 }
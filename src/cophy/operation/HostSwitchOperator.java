@@ -26,7 +26,7 @@
 
 package cophy.operation;
 
-import cophy.CophyUtils;
+import cophy.HostTreeIndex;
 import cophy.model.Reconciliation;
 import dr.evolution.tree.MutableTree;
 import dr.evolution.tree.NodeRef;
@@ -37,8 +37,6 @@ import dr.inference.operators.SimpleMCMCOperator;
 import dr.math.MathUtils;
 import dr.xml.*;
 
-import java.util.Set;
-
 /**
  *
  * @author Arman D. Bilge <armanbilge@gmail.com>
@@ -94,24 +92,24 @@ public class HostSwitchOperator extends SimpleMCMCOperator {
         final double lower = Math.max(leftChildHeight, rightChildHeight);
         final double upper = guestTree.isRoot(guestNode)  ? originHeight :
                     guestTree.getNodeHeight(guestTree.getParent(guestNode));
-        final double range = upper - lower;
-
-        final double oldHeight = guestTree.getNodeHeight(guestNode);
-        final double newHeight = MathUtils.nextDouble() * range + lower;
 
-        final Set<NodeRef> potentialHosts =
-                CophyUtils.getLineagesAtHeight(hostTree, newHeight);
+        // Draw the new height and host uniformly from the host lineages
+        // between the children and the parent, so the move is symmetric
+        final HostTreeIndex index = HostTreeIndex.getIndex(hostTree);
+        final double lowerLength = index.getCumulativeLength(lower);
+        final double length = lowerLength + MathUtils.nextDouble()
+                * (index.getCumulativeLength(upper) - lowerLength);
+        final int k = index.getIntervalAtCumulativeLength(length);
+        final int[] lineages = index.getIntervalLineages(k);
+        final double newHeight = index.getIntervalHeight(k)
+                + (length - index.getCumulativeLength(k)) / lineages.length;
         final NodeRef newHost =
-                CophyUtils.getRandomElement(potentialHosts);
+                hostTree.getNode(lineages[MathUtils.nextInt(lineages.length)]);
 
         guestTree.setNodeHeight(guestNode, newHeight);
         reconciliation.setHost(guestNode, newHost);
 
-        final int inversePotentialHostCount =
-                CophyUtils.getLineageCountAtHeight(hostTree, oldHeight);
-
-        return Math.log(potentialHosts.size())
-                - Math.log(inversePotentialHostCount);
+        return 0.0;
 
     }
 
@@ -0,0 +1,476 @@
+/*
+ * ParticleGibbsOperator.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package cophy.operation;
+
+import cophy.model.CophylogenyLikelihood;
+import cophy.model.CophylogenyModel;
+import cophy.model.PFCophylogenyLikelihood;
+import cophy.model.ParticleGenealogy;
+import cophy.model.ParticlePopulation;
+import cophy.model.Reconciliation;
+import cophy.model.TrajectoryState;
+import cophy.particlefiltration.ParticleStorage;
+import cophy.simulation.CophylogenySimulator;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.inference.operators.GibbsOperator;
+import dr.inference.operators.OperatorFailedException;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.xml.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Particle Gibbs update of the hosts of all internal guest nodes at once. A
+ * conditional SMC sweep runs the particle filter with the hosts of the
+ * speciations left free, so that each particle speciates in whichever host
+ * its guest lineage currently occupies, while the first particle is pinned
+ * to the reference trajectory drawn by the previous sweep. A trajectory
+ * drawn from the final population then sets the whole reconciliation.
+ *
+ * The reference is only valid while the guest tree, host tree, parameters of
+ * the model and reconciliation are those it was drawn for. Otherwise, e.g.
+ * on the first update or after another operator has moved any of them, the
+ * update is skipped: a sweep with every particle held to the current hosts
+ * draws a new reference, and the reconciliation is left unchanged. An
+ * unconditional sweep is never accepted in its place, since it is only an
+ * approximate draw.
+ *
+ * The update is always accepted, so it leaves the posterior invariant only if
+ * the chain targets the exact likelihood of the model of the simulator, such
+ * as a {@link cophy.dhsl.DHSLExactLikelihood}. With a pseudo-marginal
+ * {@link CophylogenyLikelihood}, the estimate retained by the chain no longer
+ * belongs to the reconciliation drawn by the sweep, so the parser refuses it.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class ParticleGibbsOperator extends SimpleMCMCOperator
+        implements GibbsOperator {
+
+    protected static final String PARTICLE_GIBBS_OPERATOR = "particleGibbsOperator";
+
+    private static final int NONE = -1;
+
+    private final CophylogenySimulator<?> simulator;
+    private final Tree guestTree;
+    private final Tree hostTree;
+    private final Reconciliation reconciliation;
+    private final int particleCount;
+
+    private final ParticlePopulation population;
+    private final TrajectoryState trajectory;
+    private final ParticleGenealogy genealogy;
+    private final int[] activeParticles;
+
+    private final List<Set<NodeRef>> generations;
+    private double[] generationHeights;
+
+    private final ParticleStorage referenceStates;
+    private final double[] referenceLogWeights;
+    private final int[] referenceHosts;
+    private int referenceLength = 0;
+    private final double[] referenceParameters;
+    private final double[] parameters;
+    private final double[] referenceGuestHeights;
+    private final int[] referenceGuestParents;
+    private final int[] referenceGuestHosts;
+    private final double[] referenceHostHeights;
+
+    public ParticleGibbsOperator(final CophylogenySimulator<?> simulator,
+                                 final Tree guestTree,
+                                 final Reconciliation reconciliation,
+                                 final int particleCount,
+                                 final double weight) {
+
+        this.simulator = simulator;
+        this.guestTree = guestTree;
+        this.reconciliation = reconciliation;
+        this.particleCount = particleCount;
+        hostTree = simulator.getModel().getHostTree();
+
+        population = new ParticlePopulation(particleCount, hostTree, guestTree);
+        trajectory = new TrajectoryState(population);
+        genealogy = new ParticleGenealogy(population);
+        activeParticles = new int[particleCount];
+
+        generations = new ArrayList<Set<NodeRef>>();
+        generationHeights = new double[guestTree.getInternalNodeCount()];
+
+        final int generationCount = guestTree.getInternalNodeCount() + 1;
+        referenceStates = population.createStorage(generationCount);
+        referenceLogWeights = new double[generationCount];
+        referenceHosts = new int[generationCount];
+        referenceGuestHeights = new double[guestTree.getNodeCount()];
+        referenceGuestParents = new int[guestTree.getNodeCount()];
+        referenceGuestHosts = new int[guestTree.getNodeCount()];
+        referenceHostHeights = new double[hostTree.getNodeCount()];
+        referenceParameters =
+                new double[simulator.getModel().getDimension()];
+        parameters = new double[referenceParameters.length];
+
+        setWeight(weight);
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+        return "No performance suggestion.";
+    }
+
+    @Override
+    public String getOperatorName() {
+        return PARTICLE_GIBBS_OPERATOR + "(" + guestTree.getId() + ")";
+    }
+
+    @Override
+    public int getStepCount() {
+        return 1;
+    }
+
+    @Override
+    public double doOperation() throws OperatorFailedException {
+
+        setupGenerations();
+
+        if (!isReferenceValid()) {
+            referenceLength = 0;
+            sweep(false);
+            saveReference();
+            throw new OperatorFailedException("No valid reference trajectory.");
+        }
+
+        sweep(true);
+        for (int t = 0; t < generations.size(); ++t) {
+            final NodeRef host = hostTree.getNode(referenceHosts[t]);
+            for (final NodeRef node : generations.get(t))
+                reconciliation.setHost(node, host);
+        }
+        saveReference();
+
+        return 0.0;
+    }
+
+    /**
+     * Runs the particle filter through every generation of speciations and
+     * draws a new reference trajectory from the final population. If
+     * {@code conditional}, the first particle follows the reference and the
+     * others speciate in whichever host their guest lineage occupies;
+     * otherwise every particle is held to the hosts of the reconciliation.
+     */
+    private void sweep(final boolean conditional)
+            throws OperatorFailedException {
+
+        final CophylogenyModel model = simulator.getModel();
+        final int generationCount = generations.size();
+
+        genealogy.initialize();
+        for (int i = 0; i < particleCount; ++i) {
+            trajectory.setParticle(i);
+            simulator.initializeTrajectory(trajectory, guestTree);
+            activeParticles[i] = i;
+        }
+        int activeCount = particleCount;
+
+        for (int t = 0; t < generationCount; ++t) {
+
+            final Set<NodeRef> speciatingNodes = generations.get(t);
+            final double height = generationHeights[t];
+
+            int i = 0;
+            while (i < activeCount) {
+
+                final int particle = activeParticles[i];
+                trajectory.setParticle(particle);
+
+                final double resumeLogWeight;
+                double logWeight;
+                int host = NONE;
+                if (conditional && particle == 0) {
+                    population.setState(particle, referenceStates, t);
+                    resumeLogWeight = referenceLogWeights[t];
+                    host = referenceHosts[t];
+                    logWeight = resumeLogWeight;
+                    // As in CophylogenySimulator, only births carry a weight
+                    if (hostTree.getNodeHeight(hostTree.getNode(host)) != height)
+                        logWeight += Math.log(model.getBirthRate(height) * model.getHostRateMultiplier(host));
+                } else {
+                    resumeLogWeight = simulator.resumeSimulation(trajectory, height);
+                    logWeight = resumeLogWeight;
+                    if (logWeight > Double.NEGATIVE_INFINITY)
+                        host = conditional
+                                ? getSpeciatingHost(speciatingNodes)
+                                : getReconciledHost(speciatingNodes);
+                    if (host != NONE)
+                        logWeight += simulator.simulateSpeciationEvent(trajectory,
+                                guestTree, speciatingNodes, height, hostTree.getNode(host));
+                    else
+                        logWeight = Double.NEGATIVE_INFINITY;
+                }
+
+                population.multiplyWeight(particle, logWeight);
+
+                if (logWeight > Double.NEGATIVE_INFINITY) {
+                    genealogy.snapshot(particle, resumeLogWeight, host);
+                    ++i;
+                } else { // Compact the dead particle away
+                    activeParticles[i] = activeParticles[--activeCount];
+                }
+
+            }
+
+            if (activeCount == 0)
+                throw new OperatorFailedException("No particles survived.");
+
+            population.resample(activeParticles, activeCount, conditional);
+            genealogy.resample(population);
+            for (int j = 0; j < particleCount; ++j)
+                activeParticles[j] = j;
+            activeCount = particleCount;
+
+        }
+
+        final int[] sampledCounts = new int[hostTree.getNodeCount()];
+        for (int j = 0; j < guestTree.getExternalNodeCount(); ++j)
+            ++sampledCounts[reconciliation.getHost(guestTree.getExternalNode(j)).getNumber()];
+
+        int i = 0;
+        while (i < activeCount) {
+
+            final int particle = activeParticles[i];
+            trajectory.setParticle(particle);
+
+            final double resumeLogWeight;
+            if (conditional && particle == 0) {
+                population.setState(particle, referenceStates, generationCount);
+                resumeLogWeight = referenceLogWeights[generationCount];
+            } else {
+                resumeLogWeight = simulator.resumeSimulation(trajectory, 0.0);
+            }
+
+            double logWeight = resumeLogWeight;
+            if (logWeight > Double.NEGATIVE_INFINITY) {
+                trajectory.setHeight(0.0);
+                logWeight += model.getSamplingLogProbability(trajectory, guestTree, reconciliation, sampledCounts);
+            }
+
+            population.multiplyWeight(particle, logWeight);
+
+            if (logWeight > Double.NEGATIVE_INFINITY) {
+                genealogy.snapshot(particle, resumeLogWeight, NONE);
+                ++i;
+            } else { // Compact the dead particle away
+                activeParticles[i] = activeParticles[--activeCount];
+            }
+
+        }
+
+        if (activeCount == 0)
+            throw new OperatorFailedException("No particles survived.");
+
+        final int particle = population.nextParticle(activeParticles, activeCount);
+        referenceLength = genealogy.getSnapshots(particle,
+                                                 referenceStates,
+                                                 referenceLogWeights,
+                                                 referenceHosts);
+    }
+
+    private void setupGenerations() {
+
+        final NodeRef[] nodes = new NodeRef[guestTree.getInternalNodeCount()];
+        for (int i = 0; i < nodes.length; ++i)
+            nodes[i] = guestTree.getInternalNode(i);
+        Arrays.sort(nodes, new Comparator<NodeRef>() {
+            @Override
+            public int compare(final NodeRef a, final NodeRef b) {
+                return Double.compare(guestTree.getNodeHeight(b),
+                                      guestTree.getNodeHeight(a));
+            }
+        });
+
+        generations.clear();
+        for (final NodeRef node : nodes) {
+            final double height = guestTree.getNodeHeight(node);
+            final int t = generations.size();
+            if (t == 0 || generationHeights[t - 1] != height) {
+                generationHeights[t] = height;
+                generations.add(new HashSet<NodeRef>());
+            }
+            generations.get(generations.size() - 1).add(node);
+        }
+    }
+
+    /**
+     * @return the number of the host in which all of
+     *         {@code speciatingNodes} are found, or {@code NONE}
+     */
+    private int getSpeciatingHost(final Set<NodeRef> speciatingNodes) {
+        NodeRef host = null;
+        for (final NodeRef node : speciatingNodes) {
+            final NodeRef lineageHost = trajectory.getGuestLineageHost(node);
+            if (lineageHost == null || (host != null && !host.equals(lineageHost)))
+                return NONE;
+            host = lineageHost;
+        }
+        return host.getNumber();
+    }
+
+    /**
+     * @return the number of the host to which all of {@code speciatingNodes}
+     *         are reconciled, if their guest lineages are all found there,
+     *         or {@code NONE}
+     */
+    private int getReconciledHost(final Set<NodeRef> speciatingNodes) {
+        int host = NONE;
+        for (final NodeRef node : speciatingNodes) {
+            final int reconciledHost = reconciliation.getHost(node).getNumber();
+            final NodeRef lineageHost = trajectory.getGuestLineageHost(node);
+            if (lineageHost == null
+                    || lineageHost.getNumber() != reconciledHost
+                    || (host != NONE && host != reconciledHost))
+                return NONE;
+            host = reconciledHost;
+        }
+        return host;
+    }
+
+    private void saveReference() {
+
+        simulator.getModel().getParameterValues(referenceParameters);
+        for (int i = 0; i < guestTree.getNodeCount(); ++i) {
+            final NodeRef node = guestTree.getNode(i);
+            referenceGuestHeights[i] = guestTree.getNodeHeight(node);
+            referenceGuestParents[i] = guestTree.isRoot(node) ? NONE
+                    : guestTree.getParent(node).getNumber();
+            referenceGuestHosts[i] = reconciliation.getHost(node).getNumber();
+        }
+        for (int i = 0; i < hostTree.getNodeCount(); ++i)
+            referenceHostHeights[i] = hostTree.getNodeHeight(hostTree.getNode(i));
+    }
+
+    private boolean isReferenceValid() {
+
+        if (referenceLength != generations.size() + 1)
+            return false;
+
+        // The reference is drawn under the rates, epochs, kernel, multipliers
+        // and origin of the model, so any change of parameter invalidates it
+        final CophylogenyModel model = simulator.getModel();
+        if (model.getDimension() != referenceParameters.length)
+            return false;
+        model.getParameterValues(parameters);
+        if (!Arrays.equals(parameters, referenceParameters))
+            return false;
+
+        for (int i = 0; i < guestTree.getNodeCount(); ++i) {
+            final NodeRef node = guestTree.getNode(i);
+            final int parent = guestTree.isRoot(node) ? NONE
+                    : guestTree.getParent(node).getNumber();
+            if (referenceGuestHeights[i] != guestTree.getNodeHeight(node)
+                    || referenceGuestParents[i] != parent
+                    || referenceGuestHosts[i] != reconciliation.getHost(node).getNumber())
+                return false;
+        }
+
+        for (int i = 0; i < hostTree.getNodeCount(); ++i)
+            if (referenceHostHeights[i] != hostTree.getNodeHeight(hostTree.getNode(i)))
+                return false;
+
+        return true;
+    }
+
+    public static final AbstractXMLObjectParser PARSER =
+            new AbstractXMLObjectParser() {
+
+                private static final String PARTICLE_COUNT = "particleCount";
+
+                @Override
+                public String getParserName() {
+                    return PARTICLE_GIBBS_OPERATOR;
+                }
+
+                @Override
+                public Object parseXMLObject(final XMLObject xo)
+                        throws XMLParseException {
+
+                    final CophylogenySimulator<?> simulator =
+                            (CophylogenySimulator<?>) xo
+                            .getChild(CophylogenySimulator.class);
+                    final Tree guestTree = (Tree) xo.getChild(Tree.class);
+                    final Reconciliation reconciliation =
+                            (Reconciliation) xo.getChild(Reconciliation.class);
+                    final PFCophylogenyLikelihood likelihood =
+                            (PFCophylogenyLikelihood) xo
+                            .getChild(PFCophylogenyLikelihood.class);
+                    // An always accepted sweep keeps the posterior invariant
+                    // only if the chain targets the exact likelihood
+                    if (likelihood instanceof CophylogenyLikelihood)
+                        throw new XMLParseException(PARTICLE_GIBBS_OPERATOR
+                                + " cannot be used with the pseudo-marginal "
+                                + "likelihood " + likelihood.getId() + ".");
+                    final int particleCount =
+                            xo.getIntegerAttribute(PARTICLE_COUNT);
+                    final double weight = xo.getDoubleAttribute(WEIGHT);
+
+                    return new ParticleGibbsOperator(simulator,
+                                                     guestTree,
+                                                     reconciliation,
+                                                     particleCount,
+                                                     weight);
+                }
+
+                private final XMLSyntaxRule[] rules = {
+                        new ElementRule(CophylogenySimulator.class),
+                        new ElementRule(Tree.class),
+                        new ElementRule(Reconciliation.class),
+                        new ElementRule(PFCophylogenyLikelihood.class),
+                        AttributeRule.newIntegerRule(PARTICLE_COUNT),
+                        AttributeRule.newDoubleRule(WEIGHT)
+                };
+                @Override
+                public XMLSyntaxRule[] getSyntaxRules() {
+                    return rules;
+                }
+
+                @Override
+                public String getParserDescription() {
+                    return "A particle Gibbs operator that redraws the hosts of all guest speciations."
+                            + " The chain must target the exact likelihood, which is given to"
+                            + " check that it is not a pseudo-marginal estimate.";
+                }
+
+                @Override
+                public Class<ParticleGibbsOperator> getReturnType() {
+                    return ParticleGibbsOperator.class;
+                }
+
+    };
+
+}
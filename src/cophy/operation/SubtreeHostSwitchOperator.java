@@ -0,0 +1,271 @@
+/*
+ * SubtreeHostSwitchOperator.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.operation;
+
+import cophy.HostTreeIndex;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.inference.operators.OperatorFailedException;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.math.MathUtils;
+import dr.xml.AbstractXMLObjectParser;
+import dr.xml.AttributeRule;
+import dr.xml.ElementRule;
+import dr.xml.XMLObject;
+import dr.xml.XMLParseException;
+import dr.xml.XMLSyntaxRule;
+
+/**
+ * Jointly resamples the hosts of all internal nodes of a random guest
+ * subtree, keeping the node heights. The hosts are drawn top-down: each node
+ * is placed on a host lineage descended from the host of its parent, or with
+ * probability {@code switchProbability} on any host lineage present at its
+ * height. The Hastings ratio is the ratio of the probabilities of drawing the
+ * old and the new hosts.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class SubtreeHostSwitchOperator extends SimpleMCMCOperator {
+
+    private static final String SUBTREE_HOST_SWITCH_OPERATOR =
+            "subtreeHostSwitchOperator";
+
+    protected final Tree guestTree;
+    protected final Tree hostTree;
+    protected final Reconciliation reconciliation;
+    protected final double switchProbability;
+
+    private final int[] stack;
+    private final int[] oldHosts;
+
+    public SubtreeHostSwitchOperator(final Tree guestTree,
+                                     final Tree hostTree,
+                                     final Reconciliation reconciliation,
+                                     final double switchProbability,
+                                     final double weight) {
+
+        this.guestTree = guestTree;
+        this.hostTree = hostTree;
+        this.reconciliation = reconciliation;
+        this.switchProbability = switchProbability;
+        setWeight(weight);
+
+        stack = new int[guestTree.getNodeCount()];
+        oldHosts = new int[guestTree.getNodeCount()];
+
+    }
+
+    @Override
+    public String getPerformanceSuggestion() {
+        return "No performance suggestion.";
+    }
+
+    @Override
+    public String getOperatorName() {
+        return SUBTREE_HOST_SWITCH_OPERATOR + "(" + reconciliation.getId() + ")";
+    }
+
+    @Override
+    public double doOperation() throws OperatorFailedException {
+
+        final HostTreeIndex index = HostTreeIndex.getIndex(hostTree);
+
+        final int r = MathUtils.nextInt(guestTree.getInternalNodeCount());
+        final NodeRef subtreeRoot = guestTree.getInternalNode(r);
+        final int rootParentHost = guestTree.isRoot(subtreeRoot)
+                ? hostTree.getRoot().getNumber()
+                : reconciliation.getHost(guestTree.getParent(subtreeRoot))
+                        .getNumber();
+
+        boolean changed = false;
+        double logHastingsRatio = 0.0;
+        int stackSize = 0;
+        stack[stackSize++] = subtreeRoot.getNumber();
+        while (stackSize > 0) {
+
+            final NodeRef guestNode = guestTree.getNode(stack[--stackSize]);
+            final int g = guestNode.getNumber();
+            final double height = guestTree.getNodeHeight(guestNode);
+
+            final int oldParentHost;
+            final int newParentHost;
+            if (guestNode.equals(subtreeRoot)) {
+                oldParentHost = rootParentHost;
+                newParentHost = rootParentHost;
+            } else {
+                final NodeRef parent = guestTree.getParent(guestNode);
+                oldParentHost = oldHosts[parent.getNumber()];
+                newParentHost = reconciliation.getHost(parent).getNumber();
+            }
+
+            oldHosts[g] = reconciliation.getHost(guestNode).getNumber();
+            final int newHost = drawHost(index, newParentHost, height);
+            logHastingsRatio +=
+                    getLogProposal(index, oldHosts[g], oldParentHost, height)
+                    - getLogProposal(index, newHost, newParentHost, height);
+
+            if (newHost != oldHosts[g]) {
+                reconciliation.setHost(guestNode, hostTree.getNode(newHost));
+                changed = true;
+            }
+
+            for (int i = 0; i < guestTree.getChildCount(guestNode); ++i) {
+                final NodeRef child = guestTree.getChild(guestNode, i);
+                if (!guestTree.isExternal(child))
+                    stack[stackSize++] = child.getNumber();
+            }
+        }
+
+        if (!changed)
+            throw new OperatorFailedException("No change in state.");
+
+        return logHastingsRatio;
+
+    }
+
+    private int drawHost(final HostTreeIndex index,
+                         final int parentHost,
+                         final double height) {
+
+        final int[] lineages = index.getLineagesAtHeight(height);
+        final int descendantCount =
+                getDescendantCount(index, lineages, parentHost);
+        if (descendantCount == 0 || MathUtils.nextDouble() < switchProbability)
+            return lineages[MathUtils.nextInt(lineages.length)];
+
+        int j = MathUtils.nextInt(descendantCount);
+        for (final int lineage : lineages)
+            if (isDescendant(index, lineage, parentHost) && j-- == 0)
+                return lineage;
+        throw new RuntimeException("Descendant lineage not found.");
+    }
+
+    private double getLogProposal(final HostTreeIndex index,
+                                  final int host,
+                                  final int parentHost,
+                                  final double height) {
+
+        final int[] lineages = index.getLineagesAtHeight(height);
+        final int descendantCount =
+                getDescendantCount(index, lineages, parentHost);
+        if (descendantCount == 0)
+            return -Math.log(lineages.length);
+
+        double probability = switchProbability / lineages.length;
+        if (isDescendant(index, host, parentHost))
+            probability += (1.0 - switchProbability) / descendantCount;
+        return Math.log(probability);
+    }
+
+    private static int getDescendantCount(final HostTreeIndex index,
+                                          final int[] lineages,
+                                          final int ancestor) {
+        int count = 0;
+        for (final int lineage : lineages)
+            if (isDescendant(index, lineage, ancestor))
+                ++count;
+        return count;
+    }
+
+    private static boolean isDescendant(final HostTreeIndex index,
+                                        int host,
+                                        final int ancestor) {
+        while (host >= 0) {
+            if (host == ancestor)
+                return true;
+            host = index.getParent(host);
+        }
+        return false;
+    }
+
+    public static final AbstractXMLObjectParser PARSER =
+            new AbstractXMLObjectParser() {
+
+                private static final String GUEST = "guest";
+                private static final String HOST = "host";
+                private static final String SWITCH_PROBABILITY =
+                        "switchProbability";
+
+                @Override
+                public String getParserName() {
+                    return SUBTREE_HOST_SWITCH_OPERATOR;
+                }
+
+                @Override
+                public Object parseXMLObject(final XMLObject xo)
+                        throws XMLParseException {
+
+                    final Tree guestTree =
+                            (Tree) xo.getChild(GUEST)
+                            .getChild(MutableTree.class);
+                    final Tree hostTree =
+                            (Tree) xo.getChild(HOST).getChild(Tree.class);
+                    final Reconciliation reconciliation =
+                            (Reconciliation) xo.getChild(Reconciliation.class);
+                    final double switchProbability =
+                            xo.getAttribute(SWITCH_PROBABILITY, 0.1);
+                    if (switchProbability <= 0.0 || switchProbability > 1.0)
+                        throw new XMLParseException(SWITCH_PROBABILITY
+                                                    + " must be in (0, 1].");
+                    final double weight = xo.getDoubleAttribute(WEIGHT);
+
+                    return new SubtreeHostSwitchOperator(guestTree,
+                                                         hostTree,
+                                                         reconciliation,
+                                                         switchProbability,
+                                                         weight);
+                }
+
+                private final XMLSyntaxRule[] rules = {
+                        new ElementRule(GUEST, Tree.class),
+                        new ElementRule(HOST, Tree.class),
+                        new ElementRule(Reconciliation.class),
+                        AttributeRule.newDoubleRule(SWITCH_PROBABILITY, true),
+                        AttributeRule.newDoubleRule(WEIGHT)
+                };
+                @Override
+                public XMLSyntaxRule[] getSyntaxRules() {
+                    return rules;
+                }
+
+                @Override
+                public String getParserDescription() {
+                    return "An operator that jointly switches the hosts of "
+                            + "all guests in a subtree.";
+                }
+
+                @Override
+                public Class<SubtreeHostSwitchOperator> getReturnType() {
+                    return SubtreeHostSwitchOperator.class;
+                }
+
+    };
+
+}
@@ -0,0 +1,118 @@
+/*
+ * AntitheticUniformSource.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.particlefiltration;
+
+import dr.math.MathUtils;
+
+/**
+ * Antithetic and stratified variates for a population of particles.
+ * Particles {@code 2p} and {@code 2p + 1} form pair {@code p}: the second
+ * draws {@code 1 - u} wherever the first draws {@code u}. Within each
+ * generation the first {@link #DIMENSION} variates of the pairs are also
+ * stratified as a Latin hypercube, i.e. for every coordinate the pairs fall
+ * in distinct strata of width {@code 1 / P}, so the early decisions of a
+ * trajectory (which lineage is affected, which child goes left) are spread
+ * evenly across the population. Every variate is still marginally uniform.
+ * <p>
+ * The stream of a pair is a counter-based hash of the generation seed, so
+ * particles may draw in any order.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class AntitheticUniformSource extends UniformSource {
+
+    public static final int DIMENSION = 16;
+
+    private final int pairCount;
+    private final int[][] strata;
+    private long seed;
+    private int pair = 0;
+    private boolean antithetic = false;
+    private int coordinate = 0;
+
+    public AntitheticUniformSource(final int particleCount) {
+        pairCount = (particleCount + 1) / 2;
+        strata = new int[DIMENSION][pairCount];
+        for (int j = 0; j < DIMENSION; ++j) {
+            for (int p = 0; p < pairCount; ++p)
+                strata[j][p] = p;
+        }
+        randomize();
+    }
+
+    /**
+     * Draws a fresh seed and fresh strata for every pair.
+     */
+    @Override
+    public void randomize() {
+        seed = MathUtils.nextLong();
+        for (int j = 0; j < DIMENSION; ++j) {
+            final int[] stratum = strata[j];
+            for (int p = pairCount - 1; p > 0; --p) {
+                final int q = MathUtils.nextInt(p + 1);
+                final int temp = stratum[p];
+                stratum[p] = stratum[q];
+                stratum[q] = temp;
+            }
+        }
+    }
+
+    @Override
+    public void setParticle(final int particle) {
+        pair = particle / 2;
+        antithetic = particle % 2 == 1;
+        coordinate = 0;
+    }
+
+    @Override
+    public double nextDouble() {
+        double u = hash(seed, pair, coordinate);
+        if (coordinate < DIMENSION)
+            u = (strata[coordinate][pair] + u) / pairCount;
+        ++coordinate;
+        if (antithetic)
+            return u > 0.0 ? 1.0 - u : 0.0;
+        return u;
+    }
+
+    /**
+     * @return a uniform variate on {@code [0, 1)} from the SplitMix64
+     *         finaliser applied to the counter
+     */
+    private static double hash(final long seed,
+                               final long pair,
+                               final long coordinate) {
+        long z = seed + pair * 0x9E3779B97F4A7C15L
+                + coordinate * 0xC2B2AE3D27D4EB4FL;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z ^= z >>> 31;
+        return (z >>> 11) * 0x1.0p-53;
+    }
+
+}
@@ -0,0 +1,210 @@
+/*
+ * DelayedAcceptanceLikelihood.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+package cophy.particlefiltration;
+
+import dr.inference.model.AbstractModelLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Model;
+import dr.inference.model.Variable;
+import dr.inference.model.Variable.ChangeType;
+import dr.math.MathUtils;
+import dr.xml.AbstractXMLObjectParser;
+import dr.xml.ElementRule;
+import dr.xml.XMLObject;
+import dr.xml.XMLParseException;
+import dr.xml.XMLSyntaxRule;
+
+/**
+ * Delayed-acceptance wrapper around an expensive likelihood. A proposed state
+ * first faces a Metropolis test on the ratio of a cheap surrogate likelihood
+ * and is rejected outright, without evaluating the wrapped likelihood, if it
+ * fails. Otherwise this likelihood reports the log ratio of the wrapped and
+ * the surrogate likelihoods, so the usual Metropolis-Hastings step of the
+ * chain becomes the second-stage correction of a factorised delayed
+ * acceptance scheme. The reported value is therefore not the log likelihood
+ * of the state, and the wrapped likelihood should be logged instead.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class DelayedAcceptanceLikelihood extends AbstractModelLikelihood {
+
+    private static final long serialVersionUID = -2318236716528474384L;
+
+    private static final String DELAYED_ACCEPTANCE_LIKELIHOOD =
+            "delayedAcceptanceLikelihood";
+
+    private final Likelihood likelihood;
+    private final Likelihood surrogate;
+
+    private double logLikelihood;
+    private double storedLogLikelihood;
+    private double surrogateLogLikelihood;
+    private double storedSurrogateLogLikelihood;
+    private boolean likelihoodKnown = false;
+    private boolean storedLikelihoodKnown = false;
+    private boolean proposing = false;
+
+    public DelayedAcceptanceLikelihood(final Likelihood likelihood,
+                                       final Likelihood surrogate) {
+        super(DELAYED_ACCEPTANCE_LIKELIHOOD);
+        this.likelihood = likelihood;
+        this.surrogate = surrogate;
+        addModel(likelihood.getModel());
+        addModel(surrogate.getModel());
+    }
+
+    public Likelihood getLikelihood() {
+        return likelihood;
+    }
+
+    public Likelihood getSurrogate() {
+        return surrogate;
+    }
+
+    @Override
+    public Model getModel() {
+        return this;
+    }
+
+    @Override
+    public double getLogLikelihood() {
+        if (!likelihoodKnown) {
+            logLikelihood = calculateLogLikelihood();
+            likelihoodKnown = true;
+        }
+        return logLikelihood;
+    }
+
+    private double calculateLogLikelihood() {
+
+        surrogateLogLikelihood = surrogate.getLogLikelihood();
+        if (surrogateLogLikelihood == Double.NEGATIVE_INFINITY)
+            return Double.NEGATIVE_INFINITY;
+
+        // First stage, only for a proposal made from a known state
+        if (proposing && storedLikelihoodKnown) {
+            final double logRatio = surrogateLogLikelihood
+                    - storedSurrogateLogLikelihood;
+            if (Math.log(MathUtils.nextDouble()) > logRatio)
+                return Double.NEGATIVE_INFINITY;
+        }
+
+        return likelihood.getLogLikelihood() - surrogateLogLikelihood;
+    }
+
+    @Override
+    public void makeDirty() {
+        likelihoodKnown = false;
+        likelihood.makeDirty();
+        surrogate.makeDirty();
+    }
+
+    @Override
+    protected void handleModelChangedEvent(final Model model,
+                                           final Object object,
+                                           final int index) {
+        likelihoodKnown = false;
+    }
+
+    @Override
+    protected void handleVariableChangedEvent(@SuppressWarnings("rawtypes")
+                                              final Variable variable,
+                                              final int index,
+                                              final ChangeType type) {
+        likelihoodKnown = false;
+    }
+
+    @Override
+    protected void storeState() {
+        storedLogLikelihood = logLikelihood;
+        storedSurrogateLogLikelihood = surrogateLogLikelihood;
+        storedLikelihoodKnown = likelihoodKnown;
+        proposing = true;
+    }
+
+    @Override
+    protected void restoreState() {
+        logLikelihood = storedLogLikelihood;
+        surrogateLogLikelihood = storedSurrogateLogLikelihood;
+        likelihoodKnown = storedLikelihoodKnown;
+        proposing = false;
+    }
+
+    @Override
+    protected void acceptState() {
+        proposing = false;
+    }
+
+    public static final AbstractXMLObjectParser PARSER =
+            new AbstractXMLObjectParser() {
+
+                private static final String LIKELIHOOD = "likelihood";
+                private static final String SURROGATE = "surrogate";
+
+                @Override
+                public String getParserName() {
+                    return DELAYED_ACCEPTANCE_LIKELIHOOD;
+                }
+
+                @Override
+                public Object parseXMLObject(final XMLObject xo)
+                        throws XMLParseException {
+
+                    final Likelihood likelihood =
+                            (Likelihood) xo.getChild(LIKELIHOOD)
+                            .getChild(Likelihood.class);
+                    final Likelihood surrogate =
+                            (Likelihood) xo.getChild(SURROGATE)
+                            .getChild(Likelihood.class);
+
+                    return new DelayedAcceptanceLikelihood(likelihood,
+                                                           surrogate);
+                }
+
+                private final XMLSyntaxRule[] rules = {
+                        new ElementRule(LIKELIHOOD, Likelihood.class),
+                        new ElementRule(SURROGATE, Likelihood.class)
+                };
+                @Override
+                public XMLSyntaxRule[] getSyntaxRules() {
+                    return rules;
+                }
+
+                @Override
+                public String getParserDescription() {
+                    return "Screens proposals with a surrogate likelihood"
+                            + " before evaluating an expensive one.";
+                }
+
+                @Override
+                public Class<DelayedAcceptanceLikelihood> getReturnType() {
+                    return DelayedAcceptanceLikelihood.class;
+                }
+
+    };
+
+}
@@ -0,0 +1,176 @@
+/*
+ * DirectParticleStorage.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.particlefiltration;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Particle records kept outside the Java heap, either in direct
+ * {@link ByteBuffer}s or in a memory-mapped scratch file. Records have a
+ * fixed width, doubles first, and are split across chunks of at most
+ * {@link #MAX_CHUNK_SIZE} bytes so that populations may exceed the 2 GB
+ * limit of a single buffer.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class DirectParticleStorage implements ParticleStorage {
+
+    public static final int MAX_CHUNK_SIZE = 1 << 30;
+
+    private final int particleCount;
+    private final int intCount;
+    private final int doubleCount;
+    private final int recordSize;
+    private final int intOffset;
+    private final int particlesPerChunk;
+    private final ByteBuffer[] chunks;
+    private final ByteBuffer[] copyViews;
+
+    public DirectParticleStorage(final int particleCount,
+                                 final int intCount,
+                                 final int doubleCount,
+                                 final boolean mapped) {
+
+        this.particleCount = particleCount;
+        this.intCount = intCount;
+        this.doubleCount = doubleCount;
+        intOffset = doubleCount * 8;
+        // Pad records to keep the doubles of every record aligned
+        recordSize = (intOffset + intCount * 4 + 7) & ~7;
+        particlesPerChunk = Math.max(1, MAX_CHUNK_SIZE / recordSize);
+
+        final int chunkCount =
+                (particleCount + particlesPerChunk - 1) / particlesPerChunk;
+        chunks = new ByteBuffer[chunkCount];
+        copyViews = new ByteBuffer[chunkCount];
+
+        final FileChannel channel = mapped ? openScratchFile() : null;
+        try {
+            for (int i = 0; i < chunkCount; ++i) {
+                final int particles =
+                        Math.min(particlesPerChunk,
+                                 particleCount - i * particlesPerChunk);
+                final int size = particles * recordSize;
+                if (mapped)
+                    chunks[i] = channel.map(FileChannel.MapMode.READ_WRITE,
+                                            (long) i * particlesPerChunk
+                                                    * recordSize,
+                                            size);
+                else
+                    chunks[i] = ByteBuffer.allocateDirect(size);
+                chunks[i].order(ByteOrder.nativeOrder());
+                copyViews[i] = chunks[i].duplicate();
+            }
+            if (channel != null)
+                channel.close(); // Mappings remain valid
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not map particle storage: "
+                                       + e.getMessage());
+        }
+
+    }
+
+    private static FileChannel openScratchFile() {
+        try {
+            final File file = File.createTempFile("cophy", ".particles");
+            file.deleteOnExit();
+            return new RandomAccessFile(file, "rw").getChannel();
+        } catch (final IOException e) {
+            throw new RuntimeException("Could not create particle scratch file: "
+                                       + e.getMessage());
+        }
+    }
+
+    @Override
+    public int getParticleCount() {
+        return particleCount;
+    }
+
+    private ByteBuffer chunk(final int particle) {
+        return chunks[particle / particlesPerChunk];
+    }
+
+    private int offset(final int particle) {
+        return (particle % particlesPerChunk) * recordSize;
+    }
+
+    @Override
+    public int getInt(final int particle, final int field) {
+        return chunk(particle).getInt(offset(particle) + intOffset + 4 * field);
+    }
+
+    @Override
+    public void setInt(final int particle, final int field, final int value) {
+        chunk(particle).putInt(offset(particle) + intOffset + 4 * field, value);
+    }
+
+    @Override
+    public double getDouble(final int particle, final int field) {
+        return chunk(particle).getDouble(offset(particle) + 8 * field);
+    }
+
+    @Override
+    public void setDouble(final int particle,
+                          final int field,
+                          final double value) {
+        chunk(particle).putDouble(offset(particle) + 8 * field, value);
+    }
+
+    @Override
+    public void copy(final int particle,
+                     final ParticleStorage destination,
+                     final int destinationParticle) {
+
+        if (destination instanceof DirectParticleStorage
+                && ((DirectParticleStorage) destination).recordSize == recordSize) {
+            final DirectParticleStorage direct =
+                    (DirectParticleStorage) destination;
+            final ByteBuffer source =
+                    copyViews[particle / particlesPerChunk];
+            final int sourceOffset = offset(particle);
+            source.limit(sourceOffset + recordSize).position(sourceOffset);
+            final ByteBuffer target =
+                    direct.copyViews[destinationParticle / direct.particlesPerChunk];
+            target.clear().position(direct.offset(destinationParticle));
+            target.put(source);
+            source.clear();
+        } else {
+            for (int i = 0; i < intCount; ++i)
+                destination.setInt(destinationParticle, i, getInt(particle, i));
+            for (int i = 0; i < doubleCount; ++i)
+                destination.setDouble(destinationParticle, i, getDouble(particle, i));
+        }
+
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * HeapParticleStorage.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.particlefiltration;
+
+/**
+ * Particle records in particle-major primitive arrays on the Java heap.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class HeapParticleStorage implements ParticleStorage {
+
+    private final int particleCount;
+    private final int intCount;
+    private final int doubleCount;
+    private final int[] ints;
+    private final double[] doubles;
+
+    public HeapParticleStorage(final int particleCount,
+                               final int intCount,
+                               final int doubleCount) {
+        this.particleCount = particleCount;
+        this.intCount = intCount;
+        this.doubleCount = doubleCount;
+        ints = new int[particleCount * intCount];
+        doubles = new double[particleCount * doubleCount];
+    }
+
+    @Override
+    public int getParticleCount() {
+        return particleCount;
+    }
+
+    @Override
+    public int getInt(final int particle, final int field) {
+        return ints[particle * intCount + field];
+    }
+
+    @Override
+    public void setInt(final int particle, final int field, final int value) {
+        ints[particle * intCount + field] = value;
+    }
+
+    @Override
+    public double getDouble(final int particle, final int field) {
+        return doubles[particle * doubleCount + field];
+    }
+
+    @Override
+    public void setDouble(final int particle,
+                          final int field,
+                          final double value) {
+        doubles[particle * doubleCount + field] = value;
+    }
+
+    @Override
+    public void copy(final int particle,
+                     final ParticleStorage destination,
+                     final int destinationParticle) {
+
+        if (destination instanceof HeapParticleStorage) {
+            final HeapParticleStorage heap = (HeapParticleStorage) destination;
+            System.arraycopy(ints, particle * intCount,
+                             heap.ints, destinationParticle * intCount,
+                             intCount);
+            System.arraycopy(doubles, particle * doubleCount,
+                             heap.doubles, destinationParticle * doubleCount,
+                             doubleCount);
+        } else {
+            for (int i = 0; i < intCount; ++i)
+                destination.setInt(destinationParticle, i, getInt(particle, i));
+            for (int i = 0; i < doubleCount; ++i)
+                destination.setDouble(destinationParticle, i, getDouble(particle, i));
+        }
+
+    }
+
+}
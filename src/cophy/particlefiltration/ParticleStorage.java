@@ -0,0 +1,97 @@
+/*
+ * ParticleStorage.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.particlefiltration;
+
+/**
+ * Fixed-width records holding the state of a population of particles. Each
+ * record has the same number of {@code double} and {@code int} fields.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public interface ParticleStorage {
+
+    int getParticleCount();
+
+    int getInt(int particle, int field);
+
+    void setInt(int particle, int field, int value);
+
+    double getDouble(int particle, int field);
+
+    void setDouble(int particle, int field, double value);
+
+    /**
+     * Copies the whole record of {@code particle} over the record of
+     * {@code destinationParticle} in {@code destination}.
+     */
+    void copy(int particle, ParticleStorage destination, int destinationParticle);
+
+    enum Type {
+
+        HEAP {
+            @Override
+            public ParticleStorage create(final int particleCount,
+                                          final int intCount,
+                                          final int doubleCount) {
+                return new HeapParticleStorage(particleCount,
+                                               intCount,
+                                               doubleCount);
+            }
+        },
+
+        DIRECT {
+            @Override
+            public ParticleStorage create(final int particleCount,
+                                          final int intCount,
+                                          final int doubleCount) {
+                return new DirectParticleStorage(particleCount,
+                                                 intCount,
+                                                 doubleCount,
+                                                 false);
+            }
+        },
+
+        MAPPED {
+            @Override
+            public ParticleStorage create(final int particleCount,
+                                          final int intCount,
+                                          final int doubleCount) {
+                return new DirectParticleStorage(particleCount,
+                                                 intCount,
+                                                 doubleCount,
+                                                 true);
+            }
+        };
+
+        public abstract ParticleStorage create(int particleCount,
+                                               int intCount,
+                                               int doubleCount);
+
+    }
+
+}
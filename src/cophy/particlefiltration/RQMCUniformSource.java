@@ -0,0 +1,107 @@
+/*
+ * RQMCUniformSource.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.particlefiltration;
+
+import dr.math.MathUtils;
+
+/**
+ * Randomised quasi-Monte Carlo variates for a population of particles. The
+ * population shares a Halton point set with one point per particle, and the
+ * {@code k}th variate drawn by a particle is the {@code k}th coordinate of
+ * its point. The point set is randomised by a Cranley-Patterson rotation
+ * (a uniform shift modulo one in each coordinate), so every variate is still
+ * marginally uniform and estimators stay unbiased. Coordinates beyond the
+ * dimension of the point set are padded with pseudo-random variates.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public class RQMCUniformSource extends UniformSource {
+
+    private static final int[] PRIMES = {2, 3, 5, 7, 11, 13, 17, 19,
+                                         23, 29, 31, 37, 41, 43, 47, 53};
+
+    public static final int DIMENSION = PRIMES.length;
+
+    private final double[][] points;
+    private final double[] shifts = new double[DIMENSION];
+    private int point = 0;
+    private int coordinate = 0;
+
+    public RQMCUniformSource(final int pointCount) {
+        points = new double[pointCount][DIMENSION];
+        for (int i = 0; i < pointCount; ++i) {
+            for (int j = 0; j < DIMENSION; ++j)
+                points[i][j] = radicalInverse(i, PRIMES[j]);
+        }
+        randomize();
+    }
+
+    private static double radicalInverse(int i, final int base) {
+        double value = 0.0;
+        double scale = 1.0 / base;
+        while (i > 0) {
+            value += (i % base) * scale;
+            i /= base;
+            scale /= base;
+        }
+        return value;
+    }
+
+    public int getPointCount() {
+        return points.length;
+    }
+
+    /**
+     * Draws a fresh rotation of the point set.
+     */
+    @Override
+    public void randomize() {
+        for (int j = 0; j < DIMENSION; ++j)
+            shifts[j] = MathUtils.nextDouble();
+    }
+
+    /**
+     * Directs the following variates to the first coordinate of the point
+     * of {@code particle}.
+     */
+    @Override
+    public void setParticle(final int particle) {
+        point = particle;
+        coordinate = 0;
+    }
+
+    @Override
+    public double nextDouble() {
+        if (coordinate >= DIMENSION)
+            return MathUtils.nextDouble();
+        final double u = points[point][coordinate] + shifts[coordinate];
+        ++coordinate;
+        return u < 1.0 ? u : u - 1.0;
+    }
+
+}
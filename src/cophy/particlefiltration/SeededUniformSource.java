@@ -1,5 +1,5 @@
 /*
- * Copyable.java
+ * SeededUniformSource.java
  *
  * Cophy: Cophylogenetics for BEAST
  *
@@ -26,13 +26,31 @@
 
 package cophy.particlefiltration;
 
+import dr.math.MersenneTwisterFast;
+
 /**
+ * Draws from a private pseudo-random number generator, so that threads
+ * drawing in parallel neither contend for nor interleave on the shared
+ * generator of BEAST. The stream is reproducible given its seed.
  *
  * @author Arman D. Bilge <armanbilge@gmail.com>
  *
  */
-public interface Copyable {
+public class SeededUniformSource extends UniformSource {
+
+    private final MersenneTwisterFast random;
+
+    public SeededUniformSource(final long seed) {
+        random = new MersenneTwisterFast(seed);
+    }
+
+    public void setSeed(final long seed) {
+        random.setSeed(seed);
+    }
 
-    Object copy();
+    @Override
+    public double nextDouble() {
+        return random.nextDouble();
+    }
 
 }
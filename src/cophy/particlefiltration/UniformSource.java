@@ -0,0 +1,122 @@
+/*
+ * UniformSource.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.particlefiltration;
+
+import dr.math.MathUtils;
+
+/**
+ * A stream of uniform variates on {@code [0, 1)} from which the random draws
+ * of a particle are derived. Each draw consumes exactly one variate, so that
+ * structured streams (e.g. quasi-random ones) map their coordinates onto
+ * successive decisions of a trajectory. Sources that couple the streams of
+ * a population are told which particle is drawing with
+ * {@link #setParticle(int)} and when a generation of draws starts with
+ * {@link #randomize()}.
+ *
+ * @author Arman D. Bilge <armanbilge@gmail.com>
+ *
+ */
+public abstract class UniformSource {
+
+    /**
+     * Draws from the pseudo-random number generator of BEAST.
+     */
+    public static final UniformSource PSEUDO_RANDOM = new UniformSource() {
+        @Override
+        public double nextDouble() {
+            return MathUtils.nextDouble();
+        }
+    };
+
+    public abstract double nextDouble();
+
+    /**
+     * Starts a new generation of draws across the population. Does nothing
+     * unless the streams of the particles are coupled.
+     */
+    public void randomize() {
+        // Nothing to do
+    }
+
+    /**
+     * Directs the following variates to the stream of {@code particle}. Does
+     * nothing unless the streams of the particles are coupled.
+     */
+    public void setParticle(final int particle) {
+        // Nothing to do
+    }
+
+    /**
+     * @return an integer drawn uniformly from {@code 0} to {@code n - 1}
+     */
+    public int nextInt(final int n) {
+        return Math.min((int) (nextDouble() * n), n - 1);
+    }
+
+    public boolean nextBoolean() {
+        return nextDouble() < 0.5;
+    }
+
+    /**
+     * @return {@code true} with probability {@code p}
+     */
+    public boolean nextBoolean(final double p) {
+        return nextDouble() < p;
+    }
+
+    /**
+     * @return the waiting time to the first of several Poisson processes
+     *         with the given rates
+     */
+    public double nextPoissonTime(final double...rates) {
+        double rate = 0.0;
+        for (final double r : rates)
+            rate += r;
+        return -Math.log(1.0 - nextDouble()) / rate;
+    }
+
+    /**
+     * @return an index drawn in proportion to {@code weights}
+     */
+    public int nextWeightedInteger(final double...weights) {
+        double total = 0.0;
+        for (final double weight : weights)
+            total += weight;
+        double u = nextDouble() * total;
+        int last = -1;
+        for (int i = 0; i < weights.length; ++i) {
+            if (weights[i] <= 0.0)
+                continue;
+            last = i;
+            u -= weights[i];
+            if (u < 0.0)
+                return i;
+        }
+        return last;
+    }
+
+}
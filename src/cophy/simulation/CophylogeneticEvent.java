@@ -26,11 +26,10 @@
 
 package cophy.simulation;
 
-import cophy.CophyUtils;
 import cophy.model.TrajectoryState;
+import cophy.particlefiltration.UniformSource;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
-import dr.math.MathUtils;
 
 import java.util.Set;
 
@@ -41,6 +40,8 @@ import java.util.Set;
  */
 public abstract class CophylogeneticEvent {
 
+    protected static final double LOG_TWO = Math.log(2.0);
+
     private final String name;
     private final double waitingTime;
 
@@ -98,13 +99,20 @@ public abstract class CophylogeneticEvent {
         @Override
         public double mutateTrajectory(final TrajectoryState state) {
             state.setHeight(height);
-            final Set<NodeRef> lineages = state.getGuestLineages(host);
             final int n = state.removeGuests(host);
             state.setGuestCount(leftChild, n);
             state.setGuestCount(rightChild, n);
-            for (final NodeRef lineage : lineages)
-                state.setGuestLineageHost(lineage, MathUtils.nextBoolean() ? leftChild : rightChild);
-            return 1L << lineages.size(); // Premature optimization is the root of all evil!
+            final UniformSource uniforms = state.getUniformSource();
+            final int h = host.getNumber();
+            int lineages = 0;
+            for (int guest = 0; guest < state.getGuestNodeCount(); ++guest) {
+                if (state.getGuestLineageHost(guest) == h) {
+                    final NodeRef child = uniforms.nextBoolean() ? leftChild : rightChild;
+                    state.setGuestLineageHost(guest, child.getNumber());
+                    ++lineages;
+                }
+            }
+            return lineages * LOG_TWO;
         }
 
         @Override
@@ -114,13 +122,14 @@ public abstract class CophylogeneticEvent {
             state.setGuestCount(leftChild, n);
             state.setGuestCount(rightChild, n);
             for (final NodeRef guest : speciatingNodes) {
-                final int i = MathUtils.nextInt(2);
+                final int i = state.getUniformSource().nextInt(2);
                 final NodeRef leftGuest = tree.getChild(guest, i);
                 final NodeRef rightGuest = tree.getChild(guest, 1 - i);
+                state.removeGuestLineage(guest);
                 state.setGuestLineageHost(leftGuest, leftChild);
                 state.setGuestLineageHost(rightGuest, rightChild);
             }
-            return 1.0;
+            return 0.0;
         }
 
         public double getHeight() {
@@ -135,10 +144,10 @@ public abstract class CophylogeneticEvent {
         final protected NodeRef destinationHost;
 
         public BirthEvent(final String eventName,
-                          final double eventHeight,
+                          final double waitingTime,
                           final NodeRef sourceHost,
                           final NodeRef destinationHost) {
-            super(eventName, eventHeight);
+            super(eventName, waitingTime);
             this.sourceHost = sourceHost;
             this.destinationHost = destinationHost;
         }
@@ -153,29 +162,31 @@ public abstract class CophylogeneticEvent {
 
         @Override
         public double mutateTrajectory(final TrajectoryState state) {
-            final Set<NodeRef> lineages = state.getGuestLineages(sourceHost);
-            final double lineageAffected = lineages.size() / (double) state.getGuestCount(sourceHost);
+            final UniformSource uniforms = state.getUniformSource();
+            final int lineages = state.getGuestLineageCount(sourceHost);
+            final double lineageAffected = lineages / (double) state.getGuestCount(sourceHost);
             state.increment(destinationHost);
-            if (CophyUtils.nextBoolean(lineageAffected)) {
-                final NodeRef affectedLineage = CophyUtils.getRandomElement(lineages);
-                if (MathUtils.nextBoolean())
+            if (uniforms.nextBoolean(lineageAffected)) {
+                final NodeRef affectedLineage = state.getGuestLineage(sourceHost, uniforms.nextInt(lineages));
+                if (uniforms.nextBoolean())
                     state.setGuestLineageHost(affectedLineage, destinationHost);
-                return 2.0;
+                return LOG_TWO;
             } else {
-                return 1.0;
+                return 0.0;
             }
         }
 
         @Override
         public double mutateTrajectory(final TrajectoryState state, final Tree tree, final Set<NodeRef> speciatingNodes) {
             state.increment(destinationHost);
-            final int i = MathUtils.nextInt(2);
+            final int i = state.getUniformSource().nextInt(2);
             final NodeRef speciatingNode = speciatingNodes.iterator().next();
             final NodeRef leftGuest = tree.getChild(speciatingNode, i);
             final NodeRef rightGuest = tree.getChild(speciatingNode, 1 - i);
+            state.removeGuestLineage(speciatingNode);
             state.setGuestLineageHost(leftGuest, sourceHost);
             state.setGuestLineageHost(rightGuest, destinationHost);
-            return 1.0;
+            return 0.0;
         }
 
     }
@@ -193,10 +204,10 @@ public abstract class CophylogeneticEvent {
 
         @Override
         public double mutateTrajectory(final TrajectoryState state) {
-            if (CophyUtils.nextBoolean(state.getGuestLineageCount(host) / (double) state.getGuestCount(host)))
-                return 0.0;
+            if (state.getUniformSource().nextBoolean(state.getGuestLineageCount(host) / (double) state.getGuestCount(host)))
+                return Double.NEGATIVE_INFINITY;
             state.decrement(host);
-            return 1.0;
+            return 0.0;
         }
 
     }
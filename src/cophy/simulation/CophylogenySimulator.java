@@ -28,6 +28,7 @@ package cophy.simulation;
 
 import cophy.model.CophylogenyModel;
 import cophy.model.TrajectoryState;
+import cophy.particlefiltration.UniformSource;
 import cophy.simulation.CophylogeneticEvent.BirthEvent;
 import cophy.simulation.CophylogeneticEvent.CospeciationEvent;
 import dr.evolution.tree.FlexibleNode;
@@ -37,10 +38,12 @@ import dr.evolution.tree.MutableTreeListener;
 import dr.evolution.tree.NodeRef;
 import dr.evolution.tree.Tree;
 
+import java.util.Collections;
 import java.util.Map;
 import java.util.NavigableMap;
 import java.util.Set;
 import java.util.TreeMap;
+import java.util.WeakHashMap;
 
 /**
  *
@@ -55,43 +58,150 @@ public abstract class CophylogenySimulator<M extends CophylogenyModel> {
     private final M model;
     private final boolean complete;
 
-    private final NavigableMap<Double,CospeciationEvent> cospeciationEvents;
+    // Cospeciations depend on the host tree alone, so simulators of different
+    // chains on one host tree share them
+    private static final Map<Tree,NavigableMap<Double,CospeciationEvent>>
+            sharedCospeciationEvents =
+            new WeakHashMap<Tree,NavigableMap<Double,CospeciationEvent>>();
+    private static final Set<Tree> listenedHostTrees =
+            Collections.newSetFromMap(new WeakHashMap<Tree,Boolean>());
+    private static final MutableTreeListener COSPECIATION_INVALIDATOR =
+            new MutableTreeListener() {
+                @Override
+                public void treeChanged(final Tree hostTree) {
+                    synchronized (CophylogenySimulator.class) {
+                        sharedCospeciationEvents.remove(hostTree);
+                    }
+                }
+            };
+
+    private NavigableMap<Double,CospeciationEvent> cospeciationEvents;
 
     private boolean cospeciationsKnown = false;
 
+    // Flat schedule of constant-rate segments, highest first: segment s ends
+    // at segmentFloors[s] with a cospeciation or a change of epoch
+    private double[] segmentFloors;
+    private int[] segmentEpochs;
+    private CospeciationEvent[] segmentEvents;
+    private double[] scheduleBreakpoints = null;
+    private boolean scheduleKnown = false;
+
     public CophylogenySimulator(final M model, final boolean complete) {
         this.model = model;
         this.complete = complete;
         final Tree hostTree = model.getHostTree();
-        cospeciationEvents = new TreeMap<Double, CospeciationEvent>();
         if (hostTree instanceof MutableTree) {
             ((MutableTree) hostTree).addMutableTreeListener(new MutableTreeListener() {
                 @Override
                 public void treeChanged(final Tree hostTree) {
                     cospeciationsKnown = false;
+                    scheduleKnown = false;
                 }
             });
         }
     }
 
-    private void setupCospeciationEvents() {
-        cospeciationEvents.clear();
-        final Tree hostTree = model.getHostTree();
+    private static synchronized NavigableMap<Double,CospeciationEvent>
+            getCospeciationEvents(final Tree hostTree) {
+
+        NavigableMap<Double,CospeciationEvent> events =
+                sharedCospeciationEvents.get(hostTree);
+        if (events != null)
+            return events;
+
+        events = new TreeMap<Double, CospeciationEvent>();
         for (int i = 0; i < hostTree.getInternalNodeCount(); ++i) {
             final NodeRef host = hostTree.getInternalNode(i);
             final double height = hostTree.getNodeHeight(host);
             final CospeciationEvent event = new CospeciationEvent(host, hostTree.getChild(host, 0), hostTree.getChild(host, 1), height);
-            cospeciationEvents.put(height, event);
-            cospeciationsKnown = true;
+            events.put(height, event);
         }
+
+        if (hostTree instanceof MutableTree && listenedHostTrees.add(hostTree))
+            ((MutableTree) hostTree).addMutableTreeListener(COSPECIATION_INVALIDATOR);
+        sharedCospeciationEvents.put(hostTree, events);
+        return events;
     }
 
     public NavigableMap<Double,CospeciationEvent> getCospeciationEvents() {
-        if (!cospeciationsKnown)
-            setupCospeciationEvents();
+        if (!cospeciationsKnown) {
+            cospeciationEvents = getCospeciationEvents(model.getHostTree());
+            cospeciationsKnown = true;
+        }
         return cospeciationEvents;
     }
 
+    private void setupSchedule() {
+        final double[] breakpoints = model.getEpochBreakpoints();
+        final NavigableMap<Double,CospeciationEvent> barriers =
+                new TreeMap<Double,CospeciationEvent>();
+        for (final double breakpoint : breakpoints)
+            barriers.put(breakpoint, null);
+        barriers.putAll(getCospeciationEvents());
+
+        final int segmentCount = barriers.size() + 1;
+        segmentFloors = new double[segmentCount];
+        segmentEpochs = new int[segmentCount];
+        segmentEvents = new CospeciationEvent[segmentCount];
+        int segment = 0;
+        for (final Map.Entry<Double,CospeciationEvent> entry
+                : barriers.descendingMap().entrySet()) {
+            segmentFloors[segment] = entry.getKey();
+            segmentEpochs[segment] = model.getEpoch(entry.getKey());
+            segmentEvents[segment] = entry.getValue();
+            ++segment;
+        }
+        segmentFloors[segment] = Double.NEGATIVE_INFINITY;
+        segmentEpochs[segment] = 0;
+
+        scheduleBreakpoints = breakpoints;
+        scheduleKnown = true;
+    }
+
+    /**
+     * @return the segment of constant rates containing {@code height}, i.e.
+     *         the first whose floor lies below it
+     */
+    protected final int getSegment(final double height) {
+        if (!scheduleKnown || scheduleBreakpoints != model.getEpochBreakpoints())
+            setupSchedule();
+        int low = 0;
+        int high = segmentFloors.length - 1;
+        while (low < high) {
+            final int middle = (low + high) >>> 1;
+            if (segmentFloors[middle] < height)
+                high = middle;
+            else
+                low = middle + 1;
+        }
+        return low;
+    }
+
+    /**
+     * Builds the schedule and any other state computed lazily during
+     * simulation, so that trajectories can afterwards be simulated
+     * concurrently.
+     */
+    public void prepareSimulation() {
+        getSegment(Double.POSITIVE_INFINITY);
+        model.prepareSimulation();
+    }
+
+    /**
+     * @return the height at which {@code segment} ends
+     */
+    protected final double getSegmentFloor(final int segment) {
+        return segmentFloors[segment];
+    }
+
+    /**
+     * @return the epoch of the rates in force during {@code segment}
+     */
+    protected final int getSegmentEpoch(final int segment) {
+        return segmentEpochs[segment];
+    }
+
     protected final boolean isComplete() {
         return complete;
     }
@@ -163,14 +273,14 @@ public abstract class CophylogenySimulator<M extends CophylogenyModel> {
         final Tree hostTree = model.getHostTree();
         final NodeRef hostNode = (NodeRef) tree.getNodeAttribute(node, HOST);
 
-        final double w;
+        final double logW;
         if (hostTree.getNodeHeight(hostNode) == height) // Cospeciation event
-            w = simulateCospeciationEvent(tree, node, height);
+            logW = simulateCospeciationEvent(tree, node, height);
         else // Birth event
-            w = simulateBirthEvent(tree, node, height);
+            logW = simulateBirthEvent(tree, node, height);
 
         ((FlexibleTree) tree).adoptTreeModelOrdering();
-        return w;
+        return logW;
     }
 
     protected double
@@ -188,7 +298,7 @@ public abstract class CophylogenySimulator<M extends CophylogenyModel> {
         right.setAttribute(HOST, right);
         mutableTree.addChild(node, right);
 
-        return 1.0; // Cospeciation events are always guaranteed
+        return 0.0; // Cospeciation events are always guaranteed
                     // i.e. occur with equal weight
 }
 
@@ -198,34 +308,60 @@ public abstract class CophylogenySimulator<M extends CophylogenyModel> {
                                final double height);
 
 
-    public TrajectoryState createTrajectory(final Tree guest) {
-        return new TrajectoryState(getModel().getOriginHeight(), guest.getRoot(), getModel().getHostTree().getRoot());
+    /**
+     * @return a source coupling the draws of a population of
+     *         {@code particleCount} trajectories, or {@code null} if they are
+     *         to be drawn independently
+     */
+    public UniformSource createUniformSource(final int particleCount) {
+        return null;
+    }
+
+    public void initializeTrajectory(final TrajectoryState state, final Tree guest) {
+        state.getPopulation().setHostWeights(getModel().getHostRateMultipliers());
+        state.initialize(getModel().getOriginHeight(), guest.getRoot(), getModel().getHostTree().getRoot());
     }
 
     public double resumeSimulation(final TrajectoryState state, final double until) {
 
-        double p = 1.0;
-        CospeciationEvent nextCospeciationEvent = nextCospeciationEvent(state.getHeight());
-        while (state.getHeight() > Math.max(until, nextCospeciationEvent != null ? nextCospeciationEvent.getHeight() : 0.0)) {
+        double logP = 0.0;
+        int segment = getSegment(state.getHeight());
+        while (state.getHeight() > Math.max(until, segmentFloors[segment])) {
 
-            final CophylogeneticEvent nextEvent = nextEvent(state);
+            final CophylogeneticEvent nextEvent = nextEvent(state, segmentEpochs[segment]);
             final double nextEventHeight = state.getHeight() - nextEvent.getWaitingTime();
-            if (nextEventHeight <= until) {
+            if (nextEventHeight <= segmentFloors[segment]
+                    && segmentFloors[segment] > until) {
+                // Waiting times are memoryless, so the next draw can start
+                // afresh from the end of the segment
+                final CospeciationEvent cospeciationEvent = segmentEvents[segment];
+                if (cospeciationEvent != null)
+                    logP += cospeciationEvent.apply(state);
+                else
+                    state.setHeight(segmentFloors[segment]);
+                ++segment;
+            } else if (nextEventHeight <= until) {
+                // A floor at until itself is left to the speciation there
                 state.setHeight(until);
                 break;
-            } else if (nextCospeciationEvent != null && nextEventHeight <= nextCospeciationEvent.getHeight()) {
-                p *= nextCospeciationEvent.apply(state);
-                nextCospeciationEvent = nextCospeciationEvent(state.getHeight());
             } else {
-                p *= nextEvent.apply(state);
+                logP += nextEvent.apply(state);
             }
 
+            if (logP == Double.NEGATIVE_INFINITY) // No point in continuing a dead trajectory
+                break;
+
         }
-        return p;
+        return logP;
 
     }
 
-    protected abstract CophylogeneticEvent nextEvent(final TrajectoryState state);
+    /**
+     * @return the next event of the trajectory {@code state} under the rates
+     *         of {@code epoch}
+     */
+    protected abstract CophylogeneticEvent nextEvent(final TrajectoryState state,
+                                                     final int epoch);
 
     protected CospeciationEvent nextCospeciationEvent(final double height) {
         final Map.Entry<Double,CospeciationEvent> entry = getCospeciationEvents().lowerEntry(height);
@@ -264,7 +400,8 @@ public abstract class CophylogenySimulator<M extends CophylogenyModel> {
                                double height,
                                NodeRef host) {
 
-        return getModel().getBirthRate() * createBirthEvent(state, height, host).apply(state, tree, speciatingNodes);
+        return Math.log(getModel().getBirthRate(height) * getModel().getHostRateMultiplier(host.getNumber()))
+                + createBirthEvent(state, height, host).apply(state, tree, speciatingNodes);
     }
 
     protected abstract BirthEvent createBirthEvent(TrajectoryState state, double height, NodeRef host);
@@ -273,4 +410,9 @@ public abstract class CophylogenySimulator<M extends CophylogenyModel> {
         return model;
     }
 
+    /**
+     * @return a simulator configured as this one for {@code model}
+     */
+    public abstract CophylogenySimulator<M> copy(M model);
+
 }
@@ -0,0 +1,121 @@
+/*
+ * CophyTestUtils.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy;
+
+import cophy.model.Reconciliation;
+import dr.evolution.io.NewickImporter;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Taxon;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Fixtures shared by the tests: the host of each guest taxon is the host
+ * taxon whose name is the guest name in upper case up to its first digit.
+ */
+public final class CophyTestUtils {
+
+    public static final String HOST = "host";
+
+    private CophyTestUtils() {}
+
+    public static Tree importTree(final String newick) {
+        try {
+            return new NewickImporter(newick).importTree(null);
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return a randomly initialized reconciliation of {@code guestTree} in
+     *         {@code hostTree}
+     */
+    public static Reconciliation createReconciliation(final Tree guestTree,
+                                                      final Tree hostTree) {
+        final Reconciliation reconciliation =
+                createUninitializedReconciliation(guestTree, hostTree);
+        reconciliation.initialize();
+        return reconciliation;
+    }
+
+    /**
+     * @return a reconciliation of {@code guestTree} in {@code hostTree}
+     *         that is yet to be initialized
+     */
+    public static Reconciliation createUninitializedReconciliation(
+            final Tree guestTree,
+            final Tree hostTree) {
+
+        final Map<String,Taxon> hostTaxa = new HashMap<String,Taxon>();
+        for (int i = 0; i < hostTree.getExternalNodeCount(); ++i) {
+            final Taxon taxon =
+                    hostTree.getNodeTaxon(hostTree.getExternalNode(i));
+            hostTaxa.put(taxon.getId(), taxon);
+        }
+        for (int i = 0; i < guestTree.getExternalNodeCount(); ++i) {
+            final Taxon taxon =
+                    guestTree.getNodeTaxon(guestTree.getExternalNode(i));
+            final String id = taxon.getId().replaceAll("[0-9].*$", "");
+            taxon.setAttribute(HOST, hostTaxa.get(id.toUpperCase()));
+        }
+
+        return new Reconciliation(guestTree, hostTree, HOST);
+    }
+
+    /**
+     * @return the most recent common ancestor of the tips named {@code ids}
+     */
+    public static NodeRef getNode(final Tree tree, final String... ids) {
+        NodeRef mrca = null;
+        for (final String id : ids) {
+            NodeRef tip = null;
+            for (int i = 0; i < tree.getExternalNodeCount(); ++i)
+                if (tree.getNodeTaxon(tree.getExternalNode(i)).getId().equals(id))
+                    tip = tree.getExternalNode(i);
+            if (tip == null)
+                throw new IllegalArgumentException("No tip " + id + ".");
+            mrca = mrca == null ? tip : getCommonAncestor(tree, mrca, tip);
+        }
+        return mrca;
+    }
+
+    private static NodeRef getCommonAncestor(final Tree tree,
+                                             NodeRef a,
+                                             NodeRef b) {
+        while (!a.equals(b)) {
+            if (tree.getNodeHeight(a) < tree.getNodeHeight(b))
+                a = tree.getParent(a);
+            else
+                b = tree.getParent(b);
+        }
+        return a;
+    }
+
+}
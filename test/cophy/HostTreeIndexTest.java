@@ -0,0 +1,93 @@
+/*
+ * HostTreeIndexTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy;
+
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.MutableTreeListener;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+public class HostTreeIndexTest {
+
+    private static final String NEWICK = "((A:1.0,B:1.0):1.0,C:2.0);";
+
+    private static final class CountingTree extends FlexibleTree {
+
+        int listenerCount = 0;
+
+        CountingTree() {
+            super(CophyTestUtils.importTree(NEWICK));
+        }
+
+        @Override
+        public void addMutableTreeListener(final MutableTreeListener listener) {
+            ++listenerCount;
+            super.addMutableTreeListener(listener);
+        }
+
+    }
+
+    @Test
+    public void testSharedBetweenCopies() {
+        final HostTreeIndex index =
+                HostTreeIndex.getIndex(CophyTestUtils.importTree(NEWICK));
+        assertSame(index,
+                   HostTreeIndex.getIndex(CophyTestUtils.importTree(NEWICK)));
+        assertEquals(3, index.getLineagesAtHeight(0.5).length);
+        assertEquals(2, index.getLineagesAtHeight(1.5).length);
+    }
+
+    @Test
+    public void testInvalidatedOnChange() {
+        final CountingTree tree = new CountingTree();
+        final HostTreeIndex index = HostTreeIndex.getIndex(tree);
+        tree.setNodeHeight(CophyTestUtils.getNode(tree, "A", "B"), 1.5);
+        final HostTreeIndex changed = HostTreeIndex.getIndex(tree);
+        assertNotSame(index, changed);
+        assertArrayEquals(new double[]{0.0, 1.5, 2.0},
+                          new double[]{changed.getIntervalHeight(0),
+                                       changed.getIntervalHeight(1),
+                                       changed.getIntervalHeight(2)},
+                          0.0);
+    }
+
+    @Test
+    public void testListenerAddedOnce() {
+        final CountingTree tree = new CountingTree();
+        for (int i = 0; i < 10; ++i) {
+            HostTreeIndex.getIndex(tree);
+            tree.setNodeHeight(CophyTestUtils.getNode(tree, "A", "B"),
+                               1.0 + 0.01 * i);
+        }
+        assertEquals(1, tree.listenerCount);
+    }
+
+}
@@ -0,0 +1,109 @@
+/*
+ * DHSLExactLikelihoodTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.dhsl;
+
+import cophy.CophyTestUtils;
+import cophy.model.CophylogenyLikelihood;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class DHSLExactLikelihoodTest {
+
+    private static final int REPLICATE_COUNT = 50;
+    private static final int PARTICLE_COUNT = 1000;
+
+    private Tree hostTree;
+    private Tree guestTree;
+    private Reconciliation reconciliation;
+    private DHSLModel model;
+
+    @Before
+    public void setUp() {
+
+        MathUtils.setSeed(666);
+
+        hostTree = CophyTestUtils.importTree("(A:1.0,B:1.0);");
+        guestTree =
+                CophyTestUtils.importTree("((a1:0.5,b1:0.5):0.5,b2:1.0);");
+        reconciliation =
+                CophyTestUtils.createReconciliation(guestTree, hostTree);
+        // The cherry in A, so that b1 must have switched to B
+        reconciliation.setHost(CophyTestUtils.getNode(guestTree, "a1", "b1"),
+                               CophyTestUtils.getNode(hostTree, "A"));
+
+        model = new DHSLModel(hostTree,
+                              new Parameter.Default(0.5),
+                              new Parameter.Default(0.5),
+                              new Parameter.Default(0.5),
+                              new Parameter.Default(2.0),
+                              new Parameter.Default(2, 0.5),
+                              null,
+                              null,
+                              null,
+                              Units.Type.YEARS);
+    }
+
+    @Test
+    public void testAgreesWithParticleFilter() {
+
+        final double exact = new DHSLExactLikelihood(model,
+                                                     guestTree,
+                                                     reconciliation,
+                                                     1000)
+                .calculateLogLikelihood();
+
+        // The filter is unbiased for the likelihood, so its estimates
+        // relative to the exact likelihood have mean one
+        final CophylogenyLikelihood filter =
+                new CophylogenyLikelihood(new DHSLSimulator(model, false),
+                                          guestTree,
+                                          reconciliation,
+                                          PARTICLE_COUNT);
+        double sum = 0.0;
+        double sumOfSquares = 0.0;
+        for (int i = 0; i < REPLICATE_COUNT; ++i) {
+            final double ratio =
+                    Math.exp(filter.calculateLogLikelihood() - exact);
+            sum += ratio;
+            sumOfSquares += ratio * ratio;
+        }
+        final double mean = sum / REPLICATE_COUNT;
+        final double variance = (sumOfSquares / REPLICATE_COUNT - mean * mean)
+                * REPLICATE_COUNT / (REPLICATE_COUNT - 1);
+        final double standardError = Math.sqrt(variance / REPLICATE_COUNT);
+
+        assertEquals(1.0, mean, 4.0 * standardError);
+    }
+
+}
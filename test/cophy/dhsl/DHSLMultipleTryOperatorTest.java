@@ -0,0 +1,111 @@
+/*
+ * DHSLMultipleTryOperatorTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.dhsl;
+
+import cophy.CophyTestUtils;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import dr.inference.model.Parameter;
+import dr.inference.operators.OperatorFailedException;
+import dr.inference.operators.ScaleOperator;
+import dr.inference.operators.SimpleMCMCOperator;
+import dr.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DHSLMultipleTryOperatorTest {
+
+    private MutableTree guestTree;
+    private Reconciliation reconciliation;
+    private Parameter birthDiffRate;
+    private DHSLModel model;
+    private DHSLExactLikelihood likelihood;
+
+    @Before
+    public void setUp() {
+
+        MathUtils.setSeed(666);
+
+        final Tree hostTree = CophyTestUtils.importTree("(A:1.0,B:1.0);");
+        guestTree = (MutableTree) CophyTestUtils
+                .importTree("((a1:0.5,b1:0.5):0.5,b2:1.0);");
+        reconciliation =
+                CophyTestUtils.createReconciliation(guestTree, hostTree);
+        reconciliation.setHost(CophyTestUtils.getNode(guestTree, "a1", "b1"),
+                               CophyTestUtils.getNode(hostTree, "A"));
+
+        birthDiffRate = new Parameter.Default(0.5);
+        model = new DHSLModel(hostTree,
+                              birthDiffRate,
+                              new Parameter.Default(0.5),
+                              new Parameter.Default(0.5),
+                              new Parameter.Default(2.0),
+                              new Parameter.Default(2, 0.5),
+                              Units.Type.YEARS);
+        likelihood = new DHSLExactLikelihood(model,
+                                             guestTree,
+                                             reconciliation,
+                                             100);
+    }
+
+    private DHSLMultipleTryOperator createOperator(
+            final SimpleMCMCOperator operator) {
+        return new DHSLMultipleTryOperator(operator,
+                                           model,
+                                           guestTree,
+                                           reconciliation,
+                                           likelihood,
+                                           3,
+                                           1,
+                                           1.0);
+    }
+
+    @Test
+    public void testModelParameter() throws OperatorFailedException {
+        final int[] hosts = reconciliation.getHostNumbers();
+        final double logHastingsRatio =
+                createOperator(new ScaleOperator(birthDiffRate, 0.75))
+                        .doOperation();
+        assertFalse(Double.isNaN(logHastingsRatio));
+        // Only the selected scaling of the rate remains
+        assertTrue(birthDiffRate.getParameterValue(0) != 0.5);
+        assertArrayEquals(hosts, reconciliation.getHostNumbers());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testParameterOutsideModel() throws OperatorFailedException {
+        final Parameter clockRate = new Parameter.Default(1.0);
+        createOperator(new ScaleOperator(clockRate, 0.75)).doOperation();
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * DHSLSMCSamplerTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.dhsl;
+
+import cophy.CophyTestUtils;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import dr.inference.distribution.DistributionLikelihood;
+import dr.inference.model.CompoundLikelihood;
+import dr.inference.model.Likelihood;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import dr.math.distributions.Distribution;
+import dr.math.distributions.ExponentialDistribution;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DHSLSMCSamplerTest {
+
+    private static final int PARAMETER_PARTICLE_COUNT = 200;
+    private static final int PRIOR_SAMPLE_COUNT = 2000;
+
+    private Tree guestTree;
+    private Reconciliation reconciliation;
+    private Parameter birthDiffRate;
+    private DHSLModel model;
+    private DHSLExactLikelihood likelihood;
+
+    @Before
+    public void setUp() {
+
+        MathUtils.setSeed(666);
+
+        final Tree hostTree = CophyTestUtils.importTree("(A:1.0,B:1.0);");
+        guestTree =
+                CophyTestUtils.importTree("((a1:0.5,b1:0.5):0.5,b2:1.0);");
+        reconciliation =
+                CophyTestUtils.createReconciliation(guestTree, hostTree);
+        reconciliation.setHost(CophyTestUtils.getNode(guestTree, "a1", "b1"),
+                               CophyTestUtils.getNode(hostTree, "A"));
+
+        birthDiffRate = new Parameter.Default(0.5);
+        model = new DHSLModel(hostTree,
+                              birthDiffRate,
+                              new Parameter.Default(0.5),
+                              new Parameter.Default(0.5),
+                              new Parameter.Default(2.0),
+                              new Parameter.Default(2, 0.5),
+                              Units.Type.YEARS);
+        likelihood = new DHSLExactLikelihood(model,
+                                             guestTree,
+                                             reconciliation,
+                                             100);
+    }
+
+    private DHSLSMCSampler createSampler(final Likelihood prior) {
+        return new DHSLSMCSampler(model,
+                                  guestTree,
+                                  reconciliation,
+                                  prior,
+                                  new Parameter[]{birthDiffRate},
+                                  PARAMETER_PARTICLE_COUNT,
+                                  likelihood,
+                                  2,
+                                  10,
+                                  1,
+                                  0.5,
+                                  null);
+    }
+
+    private static Likelihood createPrior(final DistributionLikelihood
+                                                  distributionLikelihood) {
+        return new CompoundLikelihood(
+                Collections.<Likelihood>singletonList(distributionLikelihood));
+    }
+
+    @Test
+    public void testMarginalLikelihood() {
+
+        final Distribution distribution = new ExponentialDistribution(2.0);
+        final DistributionLikelihood distributionLikelihood =
+                new DistributionLikelihood(distribution);
+        distributionLikelihood.addData(birthDiffRate);
+
+        // Average the likelihood over independent draws from the prior
+        double sum = 0.0;
+        double sumOfSquares = 0.0;
+        for (int i = 0; i < PRIOR_SAMPLE_COUNT; ++i) {
+            birthDiffRate.setParameterValue(0,
+                    distribution.quantile(MathUtils.nextDouble()));
+            final double value = Math.exp(likelihood.calculateLogLikelihood());
+            sum += value;
+            sumOfSquares += value * value;
+        }
+        birthDiffRate.setParameterValue(0, 0.5);
+        final double mean = sum / PRIOR_SAMPLE_COUNT;
+        final double standardError = Math.sqrt(
+                (sumOfSquares / PRIOR_SAMPLE_COUNT - mean * mean)
+                        / PRIOR_SAMPLE_COUNT);
+
+        final DHSLSMCSampler sampler =
+                createSampler(createPrior(distributionLikelihood));
+        sampler.run();
+
+        assertTrue(sampler.isPriorSampledExactly());
+        assertEquals(0.5, birthDiffRate.getParameterValue(0), 0.0);
+        // Allow for the error of the sampler as well as the average
+        assertEquals(mean,
+                     Math.exp(sampler.getLogMarginalLikelihood()),
+                     0.1 * mean + 4.0 * standardError);
+    }
+
+    @Test
+    public void testOffsetPriorIsBurnedIn() {
+
+        final DistributionLikelihood distributionLikelihood =
+                new DistributionLikelihood(new ExponentialDistribution(2.0),
+                                           0.1);
+        distributionLikelihood.addData(birthDiffRate);
+
+        final DHSLSMCSampler sampler =
+                createSampler(createPrior(distributionLikelihood));
+        sampler.run();
+
+        assertFalse(sampler.isPriorSampledExactly());
+        assertFalse(Double.isNaN(sampler.getLogMarginalLikelihood()));
+    }
+
+}
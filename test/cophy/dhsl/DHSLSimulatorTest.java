@@ -0,0 +1,132 @@
+/*
+ * DHSLSimulatorTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.dhsl;
+
+import cophy.CophyTestUtils;
+import cophy.model.CophylogenyLikelihood;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.FlexibleTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class DHSLSimulatorTest {
+
+    private Tree hostTree;
+    private Tree guestTree;
+    private Reconciliation reconciliation;
+
+    @Before
+    public void setUp() {
+
+        MathUtils.setSeed(666);
+
+        hostTree = CophyTestUtils.importTree("((A:1.0,B:1.0):1.0,C:2.0);");
+        guestTree = CophyTestUtils.importTree("((a:0.5,b:0.5):1.0,c:1.5);");
+        reconciliation =
+                CophyTestUtils.createReconciliation(guestTree, hostTree);
+        // Guest root in the ancestor of A and B, the cherry in A
+        reconciliation.setHost(guestTree.getRoot(),
+                               CophyTestUtils.getNode(hostTree, "A", "B"));
+        reconciliation.setHost(CophyTestUtils.getNode(guestTree, "a", "b"),
+                               CophyTestUtils.getNode(hostTree, "A"));
+    }
+
+    private DHSLModel createModel(final Parameter hostSwitchDecay) {
+        return new DHSLModel(hostTree,
+                             new Parameter.Default(0.5),
+                             new Parameter.Default(0.5),
+                             new Parameter.Default(0.8),
+                             new Parameter.Default(3.0),
+                             new Parameter.Default(3, 0.5),
+                             null,
+                             hostSwitchDecay,
+                             null,
+                             Units.Type.YEARS);
+    }
+
+    @Test
+    public void testHostSwitchKernelThroughCospeciation() {
+
+        final DHSLModel model = createModel(new Parameter.Default(1.0));
+        final CophylogenyLikelihood likelihood =
+                new CophylogenyLikelihood(new DHSLSimulator(model, false),
+                                          guestTree,
+                                          reconciliation,
+                                          1000);
+
+        // Switches are frequent, so many particles switch first thing after
+        // the cospeciations
+        final double logLikelihood = likelihood.getLogLikelihood();
+        assertFalse(Double.isNaN(logLikelihood));
+        assertTrue(logLikelihood > Double.NEGATIVE_INFINITY);
+    }
+
+    @Test
+    public void testBirthEventHostSwitch() {
+
+        // Every birth below the host root is a host switch
+        for (final Parameter hostSwitchDecay
+                : new Parameter[]{null, new Parameter.Default(1.0)}) {
+            final DHSLModel model = new DHSLModel(hostTree,
+                                                  new Parameter.Default(1.0),
+                                                  new Parameter.Default(0.0),
+                                                  new Parameter.Default(1.0),
+                                                  new Parameter.Default(3.0),
+                                                  new Parameter.Default(3, 1.0),
+                                                  null,
+                                                  hostSwitchDecay,
+                                                  null,
+                                                  Units.Type.YEARS);
+            final DHSLSimulator simulator = new DHSLSimulator(model, true);
+            final FlexibleTree tree = simulator.createTree();
+            final NodeRef node = tree.getRoot();
+            final NodeRef host = CophyTestUtils.getNode(hostTree, "C");
+            tree.setNodeAttribute(node, DHSLSimulator.HOST, host);
+
+            simulator.simulateSpeciationEvent(tree, node, 1.5);
+
+            assertEquals(2, tree.getChildCount(node));
+            // The only other lineage at 1.5 is the ancestor of A and B
+            int switchCount = 0;
+            for (int i = 0; i < 2; ++i)
+                if (!host.equals(tree.getNodeAttribute(tree.getChild(node, i),
+                                                       DHSLSimulator.HOST)))
+                    ++switchCount;
+            assertEquals(1, switchCount);
+        }
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * CophylogenyLikelihoodTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.model;
+
+import cophy.CophyTestUtils;
+import cophy.dhsl.DHSLModel;
+import cophy.dhsl.DHSLSimulator;
+import cophy.particlefiltration.ParticleStorage;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class CophylogenyLikelihoodTest {
+
+    private static final int PARTICLE_COUNT = 100;
+
+    private double getLogLikelihood(final ParticleStorage.Type storageType) {
+        return getLogLikelihood(storageType, 0, 1);
+    }
+
+    private double getLogLikelihood(final ParticleStorage.Type storageType,
+                                    final int rejuvenationCount,
+                                    final int threadCount) {
+
+        final Tree hostTree =
+                CophyTestUtils.importTree("((A:1.0,B:1.0):1.0,C:2.0);");
+        final Tree guestTree =
+                CophyTestUtils.importTree("((a:0.5,b:0.5):1.0,c:1.5);");
+        final Reconciliation reconciliation =
+                CophyTestUtils.createReconciliation(guestTree, hostTree);
+        // Guest root in the ancestor of A and B, the cherry in A
+        reconciliation.setHost(guestTree.getRoot(),
+                               CophyTestUtils.getNode(hostTree, "A", "B"));
+        reconciliation.setHost(CophyTestUtils.getNode(guestTree, "a", "b"),
+                               CophyTestUtils.getNode(hostTree, "A"));
+
+        // The random initialisation does not draw reproducibly
+        MathUtils.setSeed(666);
+        final DHSLModel model = new DHSLModel(hostTree,
+                                              new Parameter.Default(0.5),
+                                              new Parameter.Default(0.5),
+                                              new Parameter.Default(0.5),
+                                              new Parameter.Default(3.0),
+                                              new Parameter.Default(3, 0.5),
+                                              Units.Type.YEARS);
+        final CophylogenyLikelihood likelihood =
+                new CophylogenyLikelihood(new DHSLSimulator(model, false),
+                                          guestTree,
+                                          reconciliation,
+                                          PARTICLE_COUNT,
+                                          storageType,
+                                          false,
+                                          0,
+                                          1.0,
+                                          false,
+                                          rejuvenationCount,
+                                          threadCount);
+        return likelihood.getLogLikelihood();
+    }
+
+    @Test
+    public void testOffHeapStorage() {
+        // The storage must not change a single draw of the filter
+        final double logLikelihood =
+                getLogLikelihood(ParticleStorage.Type.HEAP);
+        assertEquals(logLikelihood,
+                     getLogLikelihood(ParticleStorage.Type.DIRECT),
+                     0.0);
+        assertEquals(logLikelihood,
+                     getLogLikelihood(ParticleStorage.Type.MAPPED),
+                     0.0);
+    }
+
+    @Test
+    public void testParallelRejuvenationIsReproducible() {
+        // The workers must not draw from the shared generator
+        final double logLikelihood =
+                getLogLikelihood(ParticleStorage.Type.HEAP, 5, 4);
+        for (int i = 0; i < 10; ++i)
+            assertEquals(logLikelihood,
+                         getLogLikelihood(ParticleStorage.Type.HEAP, 5, 4),
+                         0.0);
+    }
+
+}
@@ -0,0 +1,106 @@
+/*
+ * ParticleGenealogyTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.model;
+
+import cophy.CophyTestUtils;
+import dr.evolution.tree.Tree;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParticleGenealogyTest {
+
+    private static final int PARTICLE_COUNT = 2;
+
+    private ParticlePopulation population;
+    private ParticleGenealogy genealogy;
+    private TrajectoryHistory history;
+
+    @Before
+    public void setUp() {
+        final Tree hostTree =
+                CophyTestUtils.importTree("((A:1.0,B:1.0):1.0,C:2.0);");
+        final Tree guestTree = CophyTestUtils.importTree("(a:1.0,b:1.0);");
+        population = new ParticlePopulation(PARTICLE_COUNT,
+                                            hostTree,
+                                            guestTree);
+        genealogy = new ParticleGenealogy(PARTICLE_COUNT);
+        history = new TrajectoryHistory();
+        genealogy.initialize();
+    }
+
+    private void assertEvent(final int event,
+                             final double height,
+                             final int guest,
+                             final int host) {
+        assertEquals(height, history.getHeight(event), 0.0);
+        assertEquals(guest, history.getGuest(event));
+        assertEquals(host, history.getHost(event));
+    }
+
+    @Test
+    public void testHistory() {
+        genealogy.record(0, 0.5, 0, 1);
+        genealogy.record(1, 0.5, 1, 2);
+        genealogy.record(1, 0.75, 1, 3);
+
+        // both particles descend from particle 1
+        final int[] survivors = {1};
+        population.resample(survivors, survivors.length);
+        genealogy.resample(population);
+        genealogy.record(0, 1.0, 2, 4);
+
+        genealogy.getHistory(0, history);
+        assertEquals(3, history.getEventCount());
+        assertEvent(0, 0.5, 1, 2);
+        assertEvent(1, 0.75, 1, 3);
+        assertEvent(2, 1.0, 2, 4);
+
+        genealogy.getHistory(1, history);
+        assertEquals(2, history.getEventCount());
+        assertEvent(0, 0.5, 1, 2);
+        assertEvent(1, 0.75, 1, 3);
+    }
+
+    @Test
+    public void testManyGenerations() {
+        // the lineages of particle 1 are pruned in every generation
+        final int[] survivors = {0};
+        for (int k = 0; k < 100; ++k) {
+            genealogy.record(0, k, 0, k);
+            genealogy.record(1, k, 1, -k);
+            population.resample(survivors, survivors.length);
+            genealogy.resample(population);
+        }
+        genealogy.getHistory(1, history);
+        assertEquals(100, history.getEventCount());
+        for (int k = 0; k < 100; ++k)
+            assertEvent(k, k, 0, k);
+    }
+
+}
@@ -0,0 +1,131 @@
+/*
+ * ParticlePopulationTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.model;
+
+import cophy.CophyTestUtils;
+import cophy.particlefiltration.ParticleStorage;
+import dr.evolution.tree.Tree;
+import dr.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+public class ParticlePopulationTest {
+
+    private static final int PARTICLE_COUNT = 4;
+
+    private Tree hostTree;
+    private Tree guestTree;
+
+    @Before
+    public void setUp() {
+        MathUtils.setSeed(666);
+        hostTree = CophyTestUtils.importTree("((A:1.0,B:1.0):1.0,C:2.0);");
+        guestTree = CophyTestUtils.importTree("(a:1.0,b:1.0);");
+    }
+
+    private ParticlePopulation createPopulation(
+            final ParticleStorage.Type storageType) {
+        final ParticlePopulation population =
+                new ParticlePopulation(PARTICLE_COUNT,
+                                       hostTree,
+                                       guestTree,
+                                       storageType);
+        for (int i = 0; i < PARTICLE_COUNT; ++i) {
+            population.setHeight(i, i / 10.0);
+            population.setGuestCount(i, 0, i + 1);
+            population.setGuestLineageHost(i, 1, i);
+        }
+        return population;
+    }
+
+    @Test
+    public void testResample() {
+        for (final ParticleStorage.Type storageType
+                : ParticleStorage.Type.values()) {
+            final ParticlePopulation population =
+                    createPopulation(storageType);
+            population.setLogWeight(0, Double.NEGATIVE_INFINITY);
+            population.setLogWeight(2, -1.0);
+            final int[] survivors = {2};
+            population.resample(survivors, survivors.length);
+            for (int i = 0; i < PARTICLE_COUNT; ++i) {
+                assertEquals(2, population.getAncestor(i));
+                assertEquals(0.2, population.getHeight(i), 0.0);
+                assertEquals(3, population.getGuestCount(i, 0));
+                assertEquals(2, population.getGuestLineageHost(i, 1));
+                assertEquals(0.0, population.getLogWeight(i), 0.0);
+            }
+        }
+    }
+
+    @Test
+    public void testResampleConditional() {
+        final ParticlePopulation population =
+                createPopulation(ParticleStorage.Type.HEAP);
+        // The reference particle is negligible but must still survive
+        population.setLogWeight(0, -100.0);
+        population.setLogWeight(1, 0.0);
+        final int[] survivors = {0, 1};
+        population.resample(survivors, survivors.length, true);
+        assertEquals(0, population.getAncestor(0));
+        assertEquals(1, population.getGuestCount(0, 0));
+        for (int i = 1; i < PARTICLE_COUNT; ++i) {
+            assertEquals(1, population.getAncestor(i));
+            assertEquals(2, population.getGuestCount(i, 0));
+        }
+    }
+
+    @Test
+    public void testSort() {
+        final ParticlePopulation population =
+                createPopulation(ParticleStorage.Type.HEAP);
+        final int[] guestCounts = {3, 1, 2, 1};
+        for (int i = 0; i < PARTICLE_COUNT; ++i)
+            population.setGuestCount(i, 0, guestCounts[i]);
+        // Ties are broken by the counts of the next host
+        population.setGuestCount(1, 1, 1);
+        final int[] particles = {0, 1, 2, 3};
+        population.sort(particles, particles.length);
+        assertArrayEquals(new int[]{3, 1, 2, 0}, particles);
+    }
+
+    @Test
+    public void testResampleSystematic() {
+        final double[] logWeights = {Math.log(0.25),
+                                     Double.NEGATIVE_INFINITY,
+                                     Math.log(0.5),
+                                     Math.log(0.25)};
+        final int[] ancestors = new int[4];
+        ParticlePopulation.resampleSystematic(logWeights, 0.5, ancestors);
+        // The points 1/8, 3/8, 5/8 and 7/8 of the cumulative weights
+        assertArrayEquals(new int[]{0, 2, 2, 3}, ancestors);
+    }
+
+}
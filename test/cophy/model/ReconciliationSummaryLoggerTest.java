@@ -0,0 +1,88 @@
+/*
+ * ReconciliationSummaryLoggerTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.model;
+
+import cophy.CophyTestUtils;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.math.MathUtils;
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertTrue;
+
+public class ReconciliationSummaryLoggerTest {
+
+    @Test
+    public void testCladeHostFrequencies() throws IOException {
+
+        MathUtils.setSeed(666);
+        final Tree hostTree =
+                CophyTestUtils.importTree("((A:1.0,B:1.0):1.0,C:2.0);");
+        final Tree guestTree =
+                CophyTestUtils.importTree("((a:0.5,b:0.5):1.0,c:1.5);");
+        final Reconciliation reconciliation =
+                CophyTestUtils.createReconciliation(guestTree, hostTree);
+        final NodeRef cherry = CophyTestUtils.getNode(guestTree, "a", "b");
+
+        final File file = File.createTempFile("reconciliation", ".txt");
+        file.deleteOnExit();
+        final ReconciliationSummaryLogger logger =
+                new ReconciliationSummaryLogger(reconciliation,
+                                                guestTree,
+                                                hostTree,
+                                                file.getPath(),
+                                                1,
+                                                0);
+
+        logger.startLogging();
+        reconciliation.setHost(cherry, CophyTestUtils.getNode(hostTree, "A"));
+        logger.log(0);
+        reconciliation.setHost(cherry, CophyTestUtils.getNode(hostTree, "B"));
+        logger.log(1);
+        logger.log(2);
+        logger.stopLogging();
+
+        final List<String> lines = new ArrayList<String>();
+        final BufferedReader reader = new BufferedReader(new FileReader(file));
+        for (String line = reader.readLine(); line != null;
+             line = reader.readLine())
+            lines.add(line);
+        reader.close();
+
+        final double third = 1.0 / 3.0;
+        assertTrue(lines.toString(), lines.contains(
+                "{a,b}\t1.0\t0.0\t1.0\tA=" + third + ",B=" + 2 * third));
+    }
+
+}
@@ -0,0 +1,140 @@
+/*
+ * ReconciliationTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.model;
+
+import cophy.CophyTestUtils;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ReconciliationTest {
+
+    private static final double DUPLICATION_COST = 1.0;
+    private static final double HOST_SWITCH_COST = 2.0;
+    private static final double LOSS_COST = 1.0;
+
+    private Tree hostTree;
+
+    @Before
+    public void setUp() {
+        hostTree = CophyTestUtils.importTree("((A:1.0,B:1.0):1.0,C:2.0);");
+    }
+
+    private Reconciliation createReconciliation(final Tree guestTree) {
+        return CophyTestUtils.createUninitializedReconciliation(guestTree,
+                                                                hostTree);
+    }
+
+    private double initializeParsimony(final Reconciliation reconciliation) {
+        return reconciliation.initializeParsimony(DUPLICATION_COST,
+                                                  HOST_SWITCH_COST,
+                                                  LOSS_COST);
+    }
+
+    @Test
+    public void testCospeciation() {
+        final Tree guestTree = CophyTestUtils.importTree("(a:1.0,b:1.0);");
+        final Reconciliation reconciliation = createReconciliation(guestTree);
+        // one loss on the branch above the host cherry
+        assertEquals(LOSS_COST, initializeParsimony(reconciliation), 0.0);
+        assertEquals(CophyTestUtils.getNode(hostTree, "A", "B"),
+                     reconciliation.getHost(guestTree.getRoot()));
+    }
+
+    @Test
+    public void testCospeciationChildrenOnDistinctSides() {
+        final Tree guestTree = CophyTestUtils.importTree("(a1:1.0,a2:1.0);");
+        final Reconciliation reconciliation = createReconciliation(guestTree);
+        // both children are on A, so one of them must switch from B
+        assertEquals(HOST_SWITCH_COST + LOSS_COST,
+                     initializeParsimony(reconciliation), 0.0);
+        assertEquals(CophyTestUtils.getNode(hostTree, "A", "B"),
+                     reconciliation.getHost(guestTree.getRoot()));
+    }
+
+    @Test
+    public void testDuplicationBelowCospeciation() {
+        final Tree guestTree =
+                CophyTestUtils.importTree("((a1:0.5,a2:0.5):0.5,b:1.0);");
+        final Reconciliation reconciliation = createReconciliation(guestTree);
+        assertEquals(DUPLICATION_COST + LOSS_COST,
+                     initializeParsimony(reconciliation), 0.0);
+        assertEquals(CophyTestUtils.getNode(hostTree, "A"),
+                     reconciliation.getHost(
+                             CophyTestUtils.getNode(guestTree, "a1", "a2")));
+    }
+
+    @Test
+    public void testRestoreHost() {
+        final Tree guestTree =
+                CophyTestUtils.importTree("((a1:0.5,a2:0.5):0.5,b:1.0);");
+        final Reconciliation reconciliation = createReconciliation(guestTree);
+        initializeParsimony(reconciliation);
+        final NodeRef guest = CophyTestUtils.getNode(guestTree, "a1", "a2");
+        final NodeRef host = reconciliation.getHost(guest);
+
+        // Accept the initial state as the first MCMC step would
+        reconciliation.storeModelState();
+        reconciliation.acceptModelState();
+
+        reconciliation.storeModelState();
+        reconciliation.setHost(guest, CophyTestUtils.getNode(hostTree, "C"));
+        assertTrue(reconciliation.isDirty(guest));
+        assertEquals(1, reconciliation.getDirtyNodeCount());
+        reconciliation.restoreModelState();
+        assertEquals(host, reconciliation.getHost(guest));
+        assertFalse(reconciliation.isDirty(guest));
+        assertEquals(0, reconciliation.getDirtyNodeCount());
+    }
+
+    @Test
+    public void testAcceptHost() {
+        final Tree guestTree =
+                CophyTestUtils.importTree("((a1:0.5,a2:0.5):0.5,b:1.0);");
+        final Reconciliation reconciliation = createReconciliation(guestTree);
+        initializeParsimony(reconciliation);
+        final NodeRef guest = CophyTestUtils.getNode(guestTree, "a1", "a2");
+        final NodeRef host = CophyTestUtils.getNode(hostTree, "C");
+
+        // Accept the initial state as the first MCMC step would
+        reconciliation.storeModelState();
+        reconciliation.acceptModelState();
+
+        reconciliation.storeModelState();
+        reconciliation.setHost(guest, host);
+        reconciliation.acceptModelState();
+        assertEquals(host, reconciliation.getHost(guest));
+        assertFalse(reconciliation.isDirty(guest));
+        assertEquals(0, reconciliation.getDirtyNodeCount());
+    }
+
+}
@@ -0,0 +1,90 @@
+/*
+ * HostSwitchOperatorTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.operation;
+
+import cophy.CophyTestUtils;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.MutableTree;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.inference.model.Parameter;
+import dr.inference.operators.OperatorFailedException;
+import dr.math.MathUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class HostSwitchOperatorTest {
+
+    private static final int ITERATIONS = 100000;
+    private static final double TOLERANCE = 0.01;
+
+    @Test
+    public void testUniformProposal() throws OperatorFailedException {
+
+        MathUtils.setSeed(666);
+        final Tree hostTree =
+                CophyTestUtils.importTree("((A:1.0,B:1.0):1.0,C:2.0);");
+        final MutableTree guestTree =
+                (MutableTree) CophyTestUtils.importTree("(a:0.5,b:0.5);");
+        final Reconciliation reconciliation =
+                CophyTestUtils.createReconciliation(guestTree, hostTree);
+        final HostSwitchOperator operator =
+                new HostSwitchOperator(guestTree,
+                                       hostTree,
+                                       reconciliation,
+                                       new Parameter.Default(1.5),
+                                       1.0);
+
+        final NodeRef root = guestTree.getRoot();
+        final int[] hosts = {
+                CophyTestUtils.getNode(hostTree, "A").getNumber(),
+                CophyTestUtils.getNode(hostTree, "B").getNumber(),
+                CophyTestUtils.getNode(hostTree, "C").getNumber(),
+                CophyTestUtils.getNode(hostTree, "A", "B").getNumber()
+        };
+        final int[] hostCounts = new int[hostTree.getNodeCount()];
+        int lowerCount = 0;
+        for (int i = 0; i < ITERATIONS; ++i) {
+            // The proposal is symmetric so every move is accepted
+            assertEquals(0.0, operator.doOperation(), 0.0);
+            ++hostCounts[reconciliation.getHost(root).getNumber()];
+            if (guestTree.getNodeHeight(root) < 1.0)
+                ++lowerCount;
+        }
+
+        // The new state is uniform over the 4 units of host lineage length
+        // between the tips at 0 and the origin at 1.5
+        final double[] expected = {0.25, 0.25, 0.375, 0.125};
+        for (int i = 0; i < hosts.length; ++i)
+            assertEquals(expected[i],
+                         (double) hostCounts[hosts[i]] / ITERATIONS,
+                         TOLERANCE);
+        assertEquals(0.75, (double) lowerCount / ITERATIONS, TOLERANCE);
+    }
+
+}
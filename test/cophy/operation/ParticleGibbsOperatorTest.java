@@ -0,0 +1,111 @@
+/*
+ * ParticleGibbsOperatorTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.operation;
+
+import cophy.CophyTestUtils;
+import cophy.dhsl.DHSLModel;
+import cophy.dhsl.DHSLSimulator;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import dr.inference.model.Parameter;
+import dr.inference.operators.OperatorFailedException;
+import dr.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+public class ParticleGibbsOperatorTest {
+
+    private Reconciliation reconciliation;
+    private Parameter birthDiffRate;
+    private ParticleGibbsOperator operator;
+
+    @Before
+    public void setUp() {
+
+        final Tree hostTree =
+                CophyTestUtils.importTree("((A:1.0,B:1.0):1.0,C:2.0);");
+        final Tree guestTree =
+                CophyTestUtils.importTree("((a:0.5,b:0.5):1.0,c:1.5);");
+        reconciliation =
+                CophyTestUtils.createReconciliation(guestTree, hostTree);
+        // Guest root in the ancestor of A and B, the cherry in A
+        reconciliation.setHost(guestTree.getRoot(),
+                               CophyTestUtils.getNode(hostTree, "A", "B"));
+        reconciliation.setHost(CophyTestUtils.getNode(guestTree, "a", "b"),
+                               CophyTestUtils.getNode(hostTree, "A"));
+
+        MathUtils.setSeed(666);
+        birthDiffRate = new Parameter.Default(0.5);
+        final DHSLModel model = new DHSLModel(hostTree,
+                                              birthDiffRate,
+                                              new Parameter.Default(0.5),
+                                              new Parameter.Default(0.5),
+                                              new Parameter.Default(3.0),
+                                              new Parameter.Default(3, 0.5),
+                                              Units.Type.YEARS);
+        operator = new ParticleGibbsOperator(new DHSLSimulator(model, false),
+                                             guestTree,
+                                             reconciliation,
+                                             100,
+                                             1.0);
+    }
+
+    private void assertSkipped() {
+        final int[] hosts = reconciliation.getHostNumbers();
+        try {
+            operator.doOperation();
+            fail("Update without a valid reference.");
+        } catch (final OperatorFailedException e) {
+            // Expected
+        }
+        assertArrayEquals(hosts, reconciliation.getHostNumbers());
+    }
+
+    @Test
+    public void testSkippedWithoutReference() throws OperatorFailedException {
+        // The first update only draws a reference for the current hosts
+        assertSkipped();
+        assertEquals(0.0, operator.doOperation(), 0.0);
+        assertEquals(0.0, operator.doOperation(), 0.0);
+    }
+
+    @Test
+    public void testParameterChangeInvalidatesReference()
+            throws OperatorFailedException {
+        assertSkipped();
+        assertEquals(0.0, operator.doOperation(), 0.0);
+        birthDiffRate.setParameterValue(0, 0.6);
+        assertSkipped();
+        assertEquals(0.0, operator.doOperation(), 0.0);
+    }
+
+}
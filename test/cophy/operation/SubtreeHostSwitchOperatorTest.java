@@ -0,0 +1,104 @@
+/*
+ * SubtreeHostSwitchOperatorTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.operation;
+
+import cophy.CophyTestUtils;
+import cophy.model.Reconciliation;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.inference.operators.OperatorFailedException;
+import dr.math.MathUtils;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class SubtreeHostSwitchOperatorTest {
+
+    private static final int ITERATIONS = 120000;
+    private static final double TOLERANCE = 0.01;
+
+    /**
+     * Runs Metropolis-Hastings with a flat target, which the chain can only
+     * recover if the Hastings ratios are correct.
+     */
+    @Test
+    public void testFlatTarget() {
+
+        MathUtils.setSeed(666);
+        final Tree hostTree =
+                CophyTestUtils.importTree("((A:1.0,B:1.0):1.0,C:2.0);");
+        final Tree guestTree =
+                CophyTestUtils.importTree("((a:0.5,b:0.5):1.0,c:1.5);");
+        final Reconciliation reconciliation =
+                CophyTestUtils.createReconciliation(guestTree, hostTree);
+        final SubtreeHostSwitchOperator operator =
+                new SubtreeHostSwitchOperator(guestTree,
+                                              hostTree,
+                                              reconciliation,
+                                              0.25,
+                                              1.0);
+
+        // A, B or C below and AB or C above
+        final NodeRef[] lowerHosts = {CophyTestUtils.getNode(hostTree, "A"),
+                                      CophyTestUtils.getNode(hostTree, "B"),
+                                      CophyTestUtils.getNode(hostTree, "C")};
+        final NodeRef[] upperHosts = {
+                CophyTestUtils.getNode(hostTree, "A", "B"),
+                CophyTestUtils.getNode(hostTree, "C")};
+        final NodeRef lower = CophyTestUtils.getNode(guestTree, "a", "b");
+        final NodeRef upper = guestTree.getRoot();
+
+        final int[][] counts = new int[lowerHosts.length][upperHosts.length];
+        for (int i = 0; i < ITERATIONS; ++i) {
+            reconciliation.storeModelState();
+            try {
+                final double logHastingsRatio = operator.doOperation();
+                if (Math.log(MathUtils.nextDouble()) < logHastingsRatio)
+                    reconciliation.acceptModelState();
+                else
+                    reconciliation.restoreModelState();
+            } catch (final OperatorFailedException e) {
+                reconciliation.restoreModelState();
+            }
+            ++counts[indexOf(lowerHosts, reconciliation.getHost(lower))]
+                    [indexOf(upperHosts, reconciliation.getHost(upper))];
+        }
+
+        final double expected = 1.0 / (lowerHosts.length * upperHosts.length);
+        for (final int[] row : counts)
+            for (final int count : row)
+                assertEquals(expected, (double) count / ITERATIONS, TOLERANCE);
+    }
+
+    private static int indexOf(final NodeRef[] nodes, final NodeRef node) {
+        for (int i = 0; i < nodes.length; ++i)
+            if (nodes[i].equals(node))
+                return i;
+        throw new IllegalArgumentException("Unexpected host " + node + ".");
+    }
+
+}
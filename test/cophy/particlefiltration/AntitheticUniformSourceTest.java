@@ -0,0 +1,97 @@
+/*
+ * AntitheticUniformSourceTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.particlefiltration;
+
+import dr.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AntitheticUniformSourceTest {
+
+    private static final int PARTICLE_COUNT = 8;
+    private static final int PAIR_COUNT = PARTICLE_COUNT / 2;
+    private static final int VARIATE_COUNT =
+            2 * AntitheticUniformSource.DIMENSION;
+
+    private AntitheticUniformSource source;
+
+    @Before
+    public void setUp() {
+        MathUtils.setSeed(666);
+        source = new AntitheticUniformSource(PARTICLE_COUNT);
+    }
+
+    private double[][] draw(final int[] particles) {
+        final double[][] variates = new double[PARTICLE_COUNT][VARIATE_COUNT];
+        for (final int particle : particles) {
+            source.setParticle(particle);
+            for (int k = 0; k < VARIATE_COUNT; ++k)
+                variates[particle][k] = source.nextDouble();
+        }
+        return variates;
+    }
+
+    @Test
+    public void testAntithetic() {
+        final double[][] variates = draw(new int[]{0, 1, 2, 3, 4, 5, 6, 7});
+        for (int p = 0; p < PAIR_COUNT; ++p) {
+            for (int k = 0; k < VARIATE_COUNT; ++k) {
+                final double u = variates[2 * p][k];
+                assertTrue(u >= 0.0 && u < 1.0);
+                assertEquals(1.0 - u, variates[2 * p + 1][k], 1E-12);
+            }
+        }
+    }
+
+    @Test
+    public void testStratified() {
+        final double[][] variates = draw(new int[]{0, 1, 2, 3, 4, 5, 6, 7});
+        for (int k = 0; k < AntitheticUniformSource.DIMENSION; ++k) {
+            final boolean[] strata = new boolean[PAIR_COUNT];
+            for (int p = 0; p < PAIR_COUNT; ++p) {
+                final int stratum = (int) (variates[2 * p][k] * PAIR_COUNT);
+                assertFalse(strata[stratum]);
+                strata[stratum] = true;
+            }
+        }
+    }
+
+    @Test
+    public void testOrderIndependent() {
+        final double[][] forward = draw(new int[]{0, 1, 2, 3, 4, 5, 6, 7});
+        final double[][] backward = draw(new int[]{7, 6, 5, 4, 3, 2, 1, 0});
+        for (int i = 0; i < PARTICLE_COUNT; ++i) {
+            for (int k = 0; k < VARIATE_COUNT; ++k)
+                assertEquals(forward[i][k], backward[i][k], 0.0);
+        }
+    }
+
+}
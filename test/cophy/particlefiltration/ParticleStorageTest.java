@@ -0,0 +1,94 @@
+/*
+ * ParticleStorageTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.particlefiltration;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+public class ParticleStorageTest {
+
+    private static final int PARTICLE_COUNT = 17;
+    private static final int INT_COUNT = 5;
+    private static final int DOUBLE_COUNT = 2;
+
+    @Test
+    public void testHeap() {
+        testStorage(ParticleStorage.Type.HEAP);
+    }
+
+    @Test
+    public void testDirect() {
+        testStorage(ParticleStorage.Type.DIRECT);
+    }
+
+    @Test
+    public void testMapped() {
+        testStorage(ParticleStorage.Type.MAPPED);
+    }
+
+    @Test
+    public void testCopyBetweenTypes() {
+        testStorage(ParticleStorage.Type.HEAP, ParticleStorage.Type.DIRECT);
+        testStorage(ParticleStorage.Type.DIRECT, ParticleStorage.Type.HEAP);
+        testStorage(ParticleStorage.Type.DIRECT, ParticleStorage.Type.MAPPED);
+        testStorage(ParticleStorage.Type.MAPPED, ParticleStorage.Type.HEAP);
+    }
+
+    private void testStorage(final ParticleStorage.Type type) {
+        testStorage(type, type);
+    }
+
+    private void testStorage(final ParticleStorage.Type type,
+                             final ParticleStorage.Type bufferType) {
+
+        final ParticleStorage storage =
+                type.create(PARTICLE_COUNT, INT_COUNT, DOUBLE_COUNT);
+        final ParticleStorage buffer =
+                bufferType.create(PARTICLE_COUNT, INT_COUNT, DOUBLE_COUNT);
+
+        for (int p = 0; p < PARTICLE_COUNT; ++p) {
+            for (int i = 0; i < INT_COUNT; ++i)
+                storage.setInt(p, i, p * INT_COUNT + i);
+            for (int i = 0; i < DOUBLE_COUNT; ++i)
+                storage.setDouble(p, i, p + i / 10.0);
+        }
+
+        for (int p = 0; p < PARTICLE_COUNT; ++p)
+            storage.copy(PARTICLE_COUNT - 1 - p, buffer, p);
+
+        for (int p = 0; p < PARTICLE_COUNT; ++p) {
+            final int q = PARTICLE_COUNT - 1 - p;
+            for (int i = 0; i < INT_COUNT; ++i)
+                assertEquals(q * INT_COUNT + i, buffer.getInt(p, i));
+            for (int i = 0; i < DOUBLE_COUNT; ++i)
+                assertEquals(q + i / 10.0, buffer.getDouble(p, i), 0.0);
+        }
+
+    }
+
+}
@@ -0,0 +1,93 @@
+/*
+ * RQMCUniformSourceTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.particlefiltration;
+
+import dr.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class RQMCUniformSourceTest {
+
+    private static final int POINT_COUNT = 9;
+
+    private RQMCUniformSource source;
+
+    @Before
+    public void setUp() {
+        MathUtils.setSeed(666);
+        source = new RQMCUniformSource(POINT_COUNT);
+    }
+
+    private void assertStratified(final int coordinate,
+                                  final int pointCount,
+                                  final int strataCount) {
+        final boolean[] strata = new boolean[strataCount];
+        for (int i = 0; i < pointCount; ++i) {
+            source.setParticle(i);
+            double u = 0.0;
+            for (int k = 0; k <= coordinate; ++k)
+                u = source.nextDouble();
+            final int stratum = (int) (u * strataCount);
+            assertFalse(strata[stratum]);
+            strata[stratum] = true;
+        }
+    }
+
+    @Test
+    public void testStratified() {
+        // The first 2^3 points of the base 2 sequence and the 3^2 points of
+        // the base 3 sequence stay one per stratum under any rotation
+        for (int k = 0; k < 10; ++k) {
+            source.randomize();
+            assertStratified(0, 8, 8);
+            assertStratified(1, 9, 9);
+        }
+    }
+
+    @Test
+    public void testUniform() {
+        source.setParticle(POINT_COUNT - 1);
+        for (int k = 0; k < 2 * RQMCUniformSource.DIMENSION; ++k) {
+            final double u = source.nextDouble();
+            assertTrue(u >= 0.0 && u < 1.0);
+        }
+    }
+
+    @Test
+    public void testSetParticle() {
+        source.setParticle(3);
+        final double u = source.nextDouble();
+        source.nextDouble();
+        source.setParticle(3);
+        assertEquals(u, source.nextDouble(), 0.0);
+    }
+
+}
@@ -0,0 +1,137 @@
+/*
+ * CophylogenySimulatorTest.java
+ *
+ * Cophy: Cophylogenetics for BEAST
+ *
+ * Copyright (c) 2015 Arman Bilge <armanbilge@gmail.com>
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ */
+
+package cophy.simulation;
+
+import cophy.CophyTestUtils;
+import cophy.dhsl.DHSLModel;
+import cophy.dhsl.DHSLSimulator;
+import cophy.model.ParticlePopulation;
+import cophy.model.TrajectoryState;
+import cophy.particlefiltration.ParticleStorage;
+import dr.evolution.tree.NodeRef;
+import dr.evolution.tree.Tree;
+import dr.evolution.util.Units;
+import dr.inference.model.Parameter;
+import dr.math.MathUtils;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class CophylogenySimulatorTest {
+
+    private Tree hostTree;
+    private Tree guestTree;
+
+    @Before
+    public void setUp() {
+        MathUtils.setSeed(666);
+        hostTree = CophyTestUtils.importTree("((A:1.0,B:1.0):1.0,C:2.0);");
+        guestTree = CophyTestUtils.importTree("((a:0.5,b:0.5):1.0,c:1.5);");
+    }
+
+    private DHSLSimulator createSimulator(final Parameter birthDiffRate,
+                                          final Parameter epochHeights) {
+        final DHSLModel model = new DHSLModel(hostTree,
+                                              birthDiffRate,
+                                              new Parameter.Default(0.0),
+                                              new Parameter.Default(0.0),
+                                              new Parameter.Default(3.0),
+                                              new Parameter.Default(3, 1.0),
+                                              epochHeights,
+                                              null,
+                                              null,
+                                              Units.Type.YEARS);
+        return new DHSLSimulator(model, false);
+    }
+
+    private TrajectoryState createTrajectory(final DHSLSimulator simulator) {
+        final TrajectoryState state = new TrajectoryState(
+                new ParticlePopulation(1, hostTree, guestTree,
+                                       ParticleStorage.Type.HEAP));
+        state.setParticle(0);
+        simulator.initializeTrajectory(state, guestTree);
+        return state;
+    }
+
+    @Test
+    public void testCospeciationsAboveUntil() {
+
+        // Without births every draw overshoots both host speciations
+        final DHSLSimulator simulator =
+                createSimulator(new Parameter.Default(1e-12), null);
+        final TrajectoryState state = createTrajectory(simulator);
+
+        simulator.resumeSimulation(state, 0.5);
+
+        assertEquals(0.5, state.getHeight(), 0.0);
+        assertEquals(3, state.getGuestCount());
+        for (int i = 0; i < hostTree.getExternalNodeCount(); ++i)
+            assertEquals(1, state.getGuestCount(hostTree.getExternalNode(i)));
+    }
+
+    @Test
+    public void testEpochBreakpointAboveUntil() {
+
+        // No births above 2.5, frequent births below
+        final DHSLSimulator simulator =
+                createSimulator(new Parameter.Default(new double[]{2.0, 1e-12}),
+                                new Parameter.Default(2.5));
+        final TrajectoryState state = createTrajectory(simulator);
+
+        simulator.resumeSimulation(state, 0.5);
+
+        assertEquals(0.5, state.getHeight(), 0.0);
+        assertTrue(state.getGuestCount() > 3);
+    }
+
+    @Test
+    public void testBirthAtCurrentHeight() {
+
+        final DHSLSimulator simulator =
+                createSimulator(new Parameter.Default(1e-12), null);
+        final TrajectoryState state = createTrajectory(simulator);
+        final NodeRef guestRoot = guestTree.getRoot();
+        final double height = guestTree.getNodeHeight(guestRoot);
+
+        simulator.resumeSimulation(state, height);
+        final NodeRef host = state.getGuestLineageHost(guestRoot);
+        final int guestCount = state.getGuestCount(host);
+        simulator.simulateSpeciationEvent(state,
+                                          guestTree,
+                                          Collections.singleton(guestRoot),
+                                          height,
+                                          host);
+
+        assertEquals(height, state.getHeight(), 0.0);
+        assertEquals(guestCount + 1, state.getGuestCount(host));
+    }
+
+}